@@ -0,0 +1,55 @@
+package com.github.slamdev.mq;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Queue service implementations covered by benchmarks, selected by the name of the enum constant.
+ * <p>
+ * File based services keep the queues in the given storage, which the caller creates with
+ * {@link #createStorage()} and deletes with {@link #deleteStorage(Path)} after the service is closed,
+ * so repeated iterations do not fill the temp directory.
+ */
+public enum Backend {
+
+    IN_MEMORY(storage -> new InMemoryQueueService()),
+    IN_MEMORY_SHARDED(storage -> new InMemoryQueueService(Runtime.getRuntime().availableProcessors())),
+    BOUNDED_IN_MEMORY(storage -> new BoundedInMemoryQueueService(1 << 20, Backpressure.DROP_OLDEST)),
+    FILE(FileQueueService::new),
+    SEGMENTED_FILE(SegmentedFileQueueService::new),
+    SQS_STUB(storage -> new SqsQueueService(new StubSqsClient())),
+    SQS_LOCAL(storage -> new LocalSqsQueueService());
+
+    private final Function<Path, QueueService> factory;
+
+    Backend(Function<Path, QueueService> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param storage directory of the file based services, ignored by the others
+     */
+    QueueService create(Path storage) {
+        return factory.apply(storage);
+    }
+
+    static void close(QueueService service) throws Exception {
+        if (service instanceof AutoCloseable) {
+            ((AutoCloseable) service).close();
+        }
+    }
+
+    static Path createStorage() throws IOException {
+        return Files.createTempDirectory("benchmark");
+    }
+
+    static void deleteStorage(Path storage) throws IOException {
+        try (Stream<Path> files = Files.walk(storage)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.slamdev.mq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Push->pull->delete round trip of JSON bodies through the file queue, with and without the codec,
+ * the consumer reads the whole body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final String QUEUE = "benchmark";
+
+    @Param({"false", "true"})
+    public boolean codec;
+
+    @Param({"1024", "102400"})
+    public int bodySize;
+
+    private Path storage;
+
+    private Path blobs;
+
+    private FileQueueService fileQueue;
+
+    private QueueService service;
+
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = Backend.createStorage();
+        blobs = Backend.createStorage();
+        fileQueue = new FileQueueService(storage);
+        service = codec ? new CodecQueueService(fileQueue, new FileBlobStore(blobs)) : fileQueue;
+        body = json(bodySize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fileQueue.close();
+        Backend.deleteStorage(storage);
+        Backend.deleteStorage(blobs);
+    }
+
+    @Benchmark
+    public String pushPullDelete() {
+        service.push(QUEUE, body);
+        Message message = service.pull(QUEUE, 30);
+        service.delete(QUEUE, message.getReceiptHandle());
+        return message.getMessageBody();
+    }
+
+    private static String json(int size) {
+        StringBuilder json = new StringBuilder("[");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (json.length() < size) {
+            json.append("{\"id\":").append(random.nextInt(1_000_000))
+                    .append(",\"status\":\"").append(random.nextBoolean() ? "active" : "inactive")
+                    .append("\",\"tags\":[\"queue\",\"message\"]},");
+        }
+        json.setLength(size - 1);
+        return json.append(']').toString();
+    }
+}
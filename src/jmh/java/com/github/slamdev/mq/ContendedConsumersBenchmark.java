@@ -0,0 +1,103 @@
+package com.github.slamdev.mq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of consumers competing for the same queue. Every invocation pushes a batch of messages
+ * and waits until the given number of consumer threads pulled and deleted all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContendedConsumersBenchmark {
+
+    private static final String QUEUE = "benchmark";
+
+    private static final int MESSAGES_PER_INVOCATION = 1000;
+
+    @Param({"IN_MEMORY", "IN_MEMORY_SHARDED", "BOUNDED_IN_MEMORY", "FILE", "SEGMENTED_FILE", "SQS_STUB",
+            "SQS_LOCAL"})
+    public Backend backend;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    @Param({"64"})
+    public int bodySize;
+
+    private Path storage;
+
+    private QueueService service;
+
+    private ExecutorService executor;
+
+    private List<String> bodies;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        char[] chars = new char[bodySize];
+        Arrays.fill(chars, 'm');
+        String body = new String(chars);
+        bodies = new ArrayList<>();
+        for (int i = 0; i < MESSAGES_PER_INVOCATION; i++) {
+            bodies.add(body);
+        }
+        storage = Backend.createStorage();
+        service = backend.create(storage);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        Backend.close(service);
+        Backend.deleteStorage(storage);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public void consume() throws InterruptedException {
+        service.pushBatch(QUEUE, bodies);
+        AtomicInteger remaining = new AtomicInteger(MESSAGES_PER_INVOCATION);
+        List<Callable<Void>> consumers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            consumers.add(() -> {
+                while (remaining.get() > 0) {
+                    Message message = service.pull(QUEUE, 30);
+                    if (message != null) {
+                        service.delete(QUEUE, message.getReceiptHandle());
+                        remaining.decrementAndGet();
+                    }
+                }
+                return null;
+            });
+        }
+        executor.invokeAll(consumers);
+    }
+}
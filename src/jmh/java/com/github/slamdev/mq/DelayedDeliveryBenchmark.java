@@ -0,0 +1,58 @@
+package com.github.slamdev.mq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of delayed pushes and of pulls from a queue which holds the given number of scheduled messages
+ * of the in-memory queue, which should not depend on the number of scheduled messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DelayedDeliveryBenchmark {
+
+    private static final String QUEUE = "benchmark";
+
+    @Param({"0", "1000000"})
+    public int scheduled;
+
+    private QueueService service;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        service = new InMemoryQueueService();
+        for (int i = 0; i < scheduled; i++) {
+            service.push(QUEUE, "scheduled", 1 + ThreadLocalRandom.current().nextInt(3600), TimeUnit.SECONDS);
+        }
+    }
+
+    @Benchmark
+    public void pushDelayed() {
+        service.push(QUEUE, "delayed", 1 + ThreadLocalRandom.current().nextInt(3600), TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Message pushPullDelete() {
+        service.push(QUEUE, "message");
+        Message message = service.pull(QUEUE, 30);
+        service.delete(QUEUE, message.getReceiptHandle());
+        return message;
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.slamdev.mq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Push throughput of concurrent producers of the same file queue for every durability setting,
+ * run with {@code -t} to change the number of producers.
+ * <p>
+ * Group commit batches the directory and index forces only, every body is forced by its producer, so the gap
+ * between group commit and {@code SYNC} narrows as the body size grows and the body force dominates a push.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class FileDurabilityBenchmark {
+
+    private static final String QUEUE = "benchmark";
+
+    @Param({"NONE", "SYNC", "GROUP_COMMIT_1MS", "GROUP_COMMIT_10MS"})
+    public String durability;
+
+    @Param({"1024", "262144"})
+    public int bodySize;
+
+    private Path storage;
+
+    private FileQueueService service;
+
+    private ByteBuffer body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        body = ByteBuffer.allocateDirect(bodySize);
+        storage = Backend.createStorage();
+        service = new FileQueueService(storage, parse(durability));
+    }
+
+    /**
+     * Queue is drained after every iteration, so it never reaches the ring capacity.
+     */
+    @TearDown(Level.Iteration)
+    public void drain() {
+        List<Message> messages;
+        while (!(messages = service.pullBatch(QUEUE, 60, 1000)).isEmpty()) {
+            service.deleteBatch(QUEUE, messages.stream().map(Message::getReceiptHandle).collect(toList()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.close();
+        Backend.deleteStorage(storage);
+    }
+
+    @Benchmark
+    public void push() {
+        service.push(QUEUE, body);
+    }
+
+    private static Durability parse(String durability) {
+        switch (durability) {
+            case "NONE":
+                return Durability.NONE;
+            case "SYNC":
+                return Durability.SYNC;
+            case "GROUP_COMMIT_1MS":
+                return Durability.groupCommit(1, TimeUnit.MILLISECONDS);
+            case "GROUP_COMMIT_10MS":
+                return Durability.groupCommit(10, TimeUnit.MILLISECONDS);
+            default:
+                throw new IllegalArgumentException(durability);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.slamdev.mq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open an existing file storage with the given number of pending messages,
+ * which is the recovery time of a restarted process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileRecoveryBenchmark {
+
+    private static final String QUEUE = "benchmark";
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"10000", "100000"})
+    public int pending;
+
+    private Path storage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = Backend.createStorage();
+        List<ByteBuffer> bodies = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            bodies.add(ByteBuffer.allocate(64));
+        }
+        try (FileQueueService service = new FileQueueService(storage)) {
+            for (int i = 0; i < pending; i += BATCH_SIZE) {
+                service.pushBinaryBatch(QUEUE, bodies);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Backend.deleteStorage(storage);
+    }
+
+    @Benchmark
+    public void open() {
+        new FileQueueService(storage).close();
+    }
+}
@@ -0,0 +1,473 @@
+package com.github.slamdev.mq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Load generator and soak test of any {@link Backend}, run by {@code ./gradlew loadTest -PloadTestArgs="..."}.
+ * <p>
+ * Every process runs the given number of producer and consumer threads for the duration, then consumers
+ * drain the queue until it stays empty for the drain time. Processes share the queue, so more than
+ * one process is supported only by the file backends, which storage directory is passed to all of them.
+ * <p>
+ * Body of every message carries the producer, the sequence number of the message and the time
+ * it was scheduled to be pushed, so the report contains:
+ * - sustained push and receive rates
+ * - push to receipt latency percentiles, measured from the scheduled push time when the rate is limited,
+ * so a stalled producer does not hide the stall from the latency
+ * - lost messages, which were pushed but never received, and duplicates, which were received after they were
+ * deleted, detected within a process, since its consumers share what they received and deleted
+ * - redeliveries of the messages not deleted on purpose by {@code --skip-delete}, apart from the duplicates,
+ * counted within a process the same way
+ * - redelivered messages, which were received with a receive count above one, by backends which track it
+ * <p>
+ * Latency is measured by {@link System#nanoTime()}, which is comparable between processes of the same host
+ * on Linux, macOS and Windows, since they read the same monotonic clock of the OS.
+ * <p>
+ * Options, with defaults:
+ * - --backend FILE -> name of the {@link Backend} constant
+ * - --storage temporary directory -> storage of the file backends
+ * - --processes 1 -> number of processes, the first one is run by the current JVM
+ * - --producers 1, --consumers 1 -> threads per process
+ * - --rate 0 -> messages per second of every producer, 0 for no limit
+ * - --duration 10 -> seconds producers push for
+ * - --body-size 256 -> bytes of every body
+ * - --visibility 10 -> visibility timeout of pulled messages in seconds
+ * - --skip-delete 0 -> ratio of first receipts in a process which are not deleted, to exercise redelivery
+ * - --report-interval 5 -> seconds between progress lines, 0 to turn them off
+ */
+public class LoadTest {
+
+    private static final String QUEUE = "load-test";
+
+    private static final int BATCH_SIZE = 10;
+
+    private final Map<String, String> options;
+
+    private final int process;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        process = Integer.parseInt(option("process", "0"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        LoadTest test = new LoadTest(options);
+        if (options.containsKey("output")) {
+            Result result = test.run();
+            try (ObjectOutputStream output = new ObjectOutputStream(
+                    Files.newOutputStream(Paths.get(options.get("output"))))) {
+                output.writeObject(result);
+            }
+            return;
+        }
+        test.coordinate(args);
+    }
+
+    /**
+     * Launches the other processes, runs the first one and prints the merged report.
+     */
+    private void coordinate(String[] args) throws Exception {
+        int processes = Integer.parseInt(option("processes", "1"));
+        Backend backend = Backend.valueOf(option("backend", "FILE"));
+        if (processes > 1 && backend != Backend.FILE && backend != Backend.SEGMENTED_FILE) {
+            throw new IllegalArgumentException("Backend " + backend + " can not be shared by processes");
+        }
+        boolean temporaryStorage = !options.containsKey("storage");
+        if (temporaryStorage) {
+            options.put("storage", Backend.createStorage().toString());
+        }
+        List<Process> children = new ArrayList<>();
+        List<Path> outputs = new ArrayList<>();
+        for (int i = 1; i < processes; i++) {
+            Path output = Files.createTempFile("load-test-" + i, ".bin");
+            outputs.add(output);
+            children.add(exec(args, "--storage", options.get("storage"), "--process", String.valueOf(i),
+                    "--output", output.toString()));
+        }
+        List<Result> results = new ArrayList<>();
+        results.add(run());
+        for (int i = 0; i < children.size(); i++) {
+            if (children.get(i).waitFor() != 0) {
+                throw new IllegalStateException("Process " + (i + 1) + " failed");
+            }
+            try (ObjectInputStream input = new ObjectInputStream(Files.newInputStream(outputs.get(i)))) {
+                results.add((Result) input.readObject());
+            }
+            Files.delete(outputs.get(i));
+        }
+        if (temporaryStorage) {
+            Backend.deleteStorage(Paths.get(options.get("storage")));
+        }
+        report(backend, processes, results);
+    }
+
+    private Result run() throws Exception {
+        QueueService service = open(Backend.valueOf(option("backend", "FILE")));
+        int producers = Integer.parseInt(option("producers", "1"));
+        int consumers = Integer.parseInt(option("consumers", "1"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "10")));
+        Stats stats = new Stats();
+        Receipts receipts = new Receipts();
+        List<Producer> producerTasks = new ArrayList<>();
+        List<Consumer> consumerTasks = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < producers; i++) {
+            Producer producer = new Producer(service, process + "-" + i, start + durationNanos, stats);
+            producerTasks.add(producer);
+            threads.add(new Thread(producer, "producer-" + i));
+        }
+        for (int i = 0; i < consumers; i++) {
+            Consumer consumer = new Consumer(service, stats, receipts);
+            consumerTasks.add(consumer);
+            threads.add(new Thread(consumer, "consumer-" + i));
+        }
+        threads.forEach(Thread::start);
+        Thread reporter = startReporter(stats, start);
+        for (Thread thread : threads.subList(0, producers)) {
+            thread.join();
+        }
+        // consumers drain the queue once producers are done
+        consumerTasks.forEach(consumer -> consumer.producing = false);
+        for (Thread thread : threads.subList(producers, threads.size())) {
+            thread.join();
+        }
+        reporter.interrupt();
+        Backend.close(service);
+        Result result = new Result();
+        result.durationNanos = durationNanos;
+        consumerTasks.forEach(consumer ->
+                result.receivingNanos = Math.max(result.receivingNanos, consumer.lastReceivedAt - start));
+        producerTasks.forEach(producer -> result.sent.put(producer.id, producer.sequence));
+        receipts.producers.forEach((producer, sequences) -> result.received.put(producer, sequences.received));
+        consumerTasks.forEach(consumer -> result.merge(consumer));
+        return result;
+    }
+
+    private QueueService open(Backend backend) {
+        return backend.create(Paths.get(option("storage", "")));
+    }
+
+    private Thread startReporter(Stats stats, long start) {
+        long interval = TimeUnit.SECONDS.toMillis(Long.parseLong(option("report-interval", "5")));
+        Thread reporter = new Thread(() -> {
+            long pushed = 0;
+            long received = 0;
+            while (interval > 0 && !Thread.currentThread().isInterrupted()) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long nowPushed = stats.pushed.get();
+                long nowReceived = stats.received.get();
+                System.out.printf("[process %d, %4d s] pushed %10.1f msg/s, received %10.1f msg/s%n", process,
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                        (nowPushed - pushed) * 1000.0 / interval, (nowReceived - received) * 1000.0 / interval);
+                pushed = nowPushed;
+                received = nowReceived;
+            }
+        }, "reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+        return reporter;
+    }
+
+    private void report(Backend backend, int processes, List<Result> results) {
+        Result total = new Result();
+        results.forEach(total::merge);
+        long sent = total.sent.values().stream().mapToLong(Long::longValue).sum();
+        long unique = total.received.values().stream().mapToLong(BitSet::cardinality).sum();
+        double seconds = total.durationNanos / 1e9;
+        LatencySnapshot latency = LatencyHistogram.snapshot(total.buckets, total.totalNanos, total.maxNanos);
+        System.out.printf("%nBackend %s, %d process(es) x %s producer(s) / %s consumer(s), %.0f s%n", backend,
+                processes, option("producers", "1"), option("consumers", "1"), seconds);
+        System.out.printf("Pushed      %12d %10.1f msg/s%n", sent, sent / seconds);
+        System.out.printf("Received    %12d %10.1f msg/s, until the last receipt%n", total.receipts,
+                total.receipts / (total.receivingNanos / 1e9));
+        System.out.printf("Latency     p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms%n",
+                latency.getP50() / 1e6, latency.getP99() / 1e6, latency.getP999() / 1e6, latency.getMax() / 1e6);
+        System.out.printf("Lost        %12d %9.4f %%%n", sent - unique, percent(sent - unique, sent));
+        System.out.printf("Duplicated  %12d %9.4f %%, received after delete%n", total.duplicated,
+                percent(total.duplicated, sent));
+        System.out.printf("Skipped     %12d %9.4f %%, redelivered after --skip-delete%n", total.skipRedelivered,
+                percent(total.skipRedelivered, sent));
+        System.out.printf("Redelivered %12d %9.4f %%%n", total.redelivered, percent(total.redelivered, sent));
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private static double percent(long value, long total) {
+        return total == 0 ? 0 : value * 100.0 / total;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --name value pairs, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * Options given later override the earlier ones, so the child gets its own process number and output.
+     */
+    private static Process exec(String[] args, String... extraArgs) throws IOException {
+        List<String> commands = new ArrayList<>();
+        commands.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        commands.add("-cp");
+        commands.add(System.getProperty("java.class.path"));
+        commands.add(LoadTest.class.getName());
+        for (String arg : args) {
+            commands.add(arg);
+        }
+        for (String arg : extraArgs) {
+            commands.add(arg);
+        }
+        return new ProcessBuilder(commands).inheritIO().start();
+    }
+
+    private static class Stats {
+        final AtomicLong pushed = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+    }
+
+    /**
+     * Sequences received, skipped and deleted by the consumers of a process, shared by them, so a redelivery
+     * to another consumer is classified the same way as to the one which received the message first.
+     */
+    private static class Receipts {
+        final Map<String, Sequences> producers = new ConcurrentHashMap<>();
+
+        Sequences of(String producer) {
+            return producers.computeIfAbsent(producer, k -> new Sequences());
+        }
+    }
+
+    /**
+     * Sequences of a single producer, guarded by the instance lock.
+     */
+    private static class Sequences {
+        final BitSet received = new BitSet();
+        final BitSet skipped = new BitSet();
+        final BitSet deleted = new BitSet();
+    }
+
+    private class Producer implements Runnable {
+        final QueueService service;
+        final String id;
+        final long stopAt;
+        final Stats stats;
+        final long intervalNanos;
+        final String padding;
+        long sequence;
+
+        Producer(QueueService service, String id, long stopAt, Stats stats) {
+            this.service = service;
+            this.id = id;
+            this.stopAt = stopAt;
+            this.stats = stats;
+            long rate = Long.parseLong(option("rate", "0"));
+            intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+            int bodySize = Integer.parseInt(option("body-size", "256"));
+            StringBuilder builder = new StringBuilder();
+            while (builder.length() < bodySize) {
+                builder.append('x');
+            }
+            padding = builder.toString();
+        }
+
+        @Override
+        public void run() {
+            long scheduledAt = System.nanoTime();
+            while (scheduledAt - stopAt < 0) {
+                if (intervalNanos > 0) {
+                    long now;
+                    while ((now = System.nanoTime()) - scheduledAt < 0) {
+                        LockSupport.parkNanos(scheduledAt - now);
+                    }
+                } else {
+                    scheduledAt = System.nanoTime();
+                }
+                String header = id + ':' + sequence + ':' + scheduledAt + ';';
+                service.push(QUEUE, header + padding.substring(Math.min(header.length(), padding.length())));
+                sequence++;
+                stats.pushed.incrementAndGet();
+                scheduledAt += intervalNanos;
+            }
+        }
+    }
+
+    private class Consumer implements Runnable {
+        final QueueService service;
+        final Stats stats;
+        final Receipts receipts;
+        final int visibility = Integer.parseInt(option("visibility", "10"));
+        final double skipDelete = Double.parseDouble(option("skip-delete", "0"));
+        // skipped messages are redelivered after the visibility timeout, so draining waits a bit longer
+        final long drainNanos = TimeUnit.SECONDS.toNanos(visibility + 2);
+        final long[] buckets = new long[LatencyHistogram.BUCKETS];
+        long totalNanos;
+        long maxNanos;
+        long received;
+        long duplicated;
+        long skipRedelivered;
+        long redelivered;
+        long lastReceivedAt;
+        volatile boolean producing = true;
+
+        Consumer(QueueService service, Stats stats, Receipts receipts) {
+            this.service = service;
+            this.stats = stats;
+            this.receipts = receipts;
+        }
+
+        @Override
+        public void run() {
+            lastReceivedAt = System.nanoTime();
+            while (producing || System.nanoTime() - lastReceivedAt < drainNanos) {
+                List<Message> messages = service.pullBatch(QUEUE, visibility, BATCH_SIZE, 1);
+                long now = System.nanoTime();
+                if (!messages.isEmpty()) {
+                    lastReceivedAt = now;
+                }
+                List<Message> deleting = new ArrayList<>();
+                List<Runnable> markers = new ArrayList<>();
+                for (Message message : messages) {
+                    Runnable marker = record(message, now);
+                    if (marker != null) {
+                        deleting.add(message);
+                        markers.add(marker);
+                    }
+                }
+                if (!deleting.isEmpty()) {
+                    BatchResult result = service.deleteBatch(QUEUE,
+                            deleting.stream().map(Message::getReceiptHandle).collect(toList()));
+                    BitSet failed = new BitSet();
+                    result.getFailures().forEach(failure -> failed.set(failure.getIndex()));
+                    for (int i = failed.nextClearBit(0); i < markers.size(); i = failed.nextClearBit(i + 1)) {
+                        markers.get(i).run();
+                    }
+                }
+                stats.received.addAndGet(messages.size());
+            }
+        }
+
+        /**
+         * Message received after it was deleted is a duplicate. It is marked deleted once the delete succeeds,
+         * so a redelivery after the visibility timeout of a message being deleted is not taken for one.
+         *
+         * @return marker of the message as deleted, or null if the message should not be deleted
+         */
+        private Runnable record(Message message, long now) {
+            String body = message.getMessageBody();
+            int producerEnd = body.indexOf(':');
+            int sequenceEnd = body.indexOf(':', producerEnd + 1);
+            int timeEnd = body.indexOf(';', sequenceEnd + 1);
+            String producer = body.substring(0, producerEnd);
+            int sequence = Integer.parseInt(body.substring(producerEnd + 1, sequenceEnd));
+            long latency = Math.max(now - Long.parseLong(body.substring(sequenceEnd + 1, timeEnd)), 0);
+            buckets[LatencyHistogram.index(latency)]++;
+            totalNanos += latency;
+            maxNanos = Math.max(maxNanos, latency);
+            received++;
+            if (message.getReceiveCount() > 1) {
+                redelivered++;
+            }
+            Sequences sequences = receipts.of(producer);
+            synchronized (sequences) {
+                if (sequences.deleted.get(sequence)) {
+                    duplicated++;
+                } else if (sequences.skipped.get(sequence)) {
+                    skipRedelivered++;
+                } else if (!sequences.received.get(sequence) && skipDelete > 0
+                        && ThreadLocalRandom.current().nextDouble() < skipDelete) {
+                    sequences.received.set(sequence);
+                    sequences.skipped.set(sequence);
+                    return null;
+                }
+                sequences.received.set(sequence);
+            }
+            return () -> {
+                synchronized (sequences) {
+                    sequences.deleted.set(sequence);
+                }
+            };
+        }
+    }
+
+    /**
+     * Result of a process, written by child processes for the first one.
+     */
+    private static class Result implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        final Map<String, Long> sent = new HashMap<>();
+        final Map<String, BitSet> received = new HashMap<>();
+        final long[] buckets = new long[LatencyHistogram.BUCKETS];
+        long totalNanos;
+        long maxNanos;
+        long receipts;
+        long duplicated;
+        long skipRedelivered;
+        long redelivered;
+        long receivingNanos;
+        long durationNanos;
+
+        /**
+         * Received sequences of the process are taken from the receipts shared by its consumers.
+         */
+        void merge(Consumer consumer) {
+            merge(consumer.buckets, consumer.totalNanos, consumer.maxNanos, consumer.received, consumer.duplicated,
+                    consumer.skipRedelivered, consumer.redelivered);
+        }
+
+        void merge(Result result) {
+            sent.putAll(result.sent);
+            result.received.forEach((producer, sequences) ->
+                    received.computeIfAbsent(producer, k -> new BitSet()).or(sequences));
+            merge(result.buckets, result.totalNanos, result.maxNanos, result.receipts, result.duplicated,
+                    result.skipRedelivered, result.redelivered);
+            receivingNanos = Math.max(receivingNanos, result.receivingNanos);
+            durationNanos = Math.max(durationNanos, result.durationNanos);
+        }
+
+        private void merge(long[] otherBuckets, long otherTotalNanos, long otherMaxNanos, long otherReceipts,
+                           long otherDuplicated, long otherSkipRedelivered, long otherRedelivered) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += otherBuckets[i];
+            }
+            totalNanos += otherTotalNanos;
+            maxNanos = Math.max(maxNanos, otherMaxNanos);
+            receipts += otherReceipts;
+            duplicated += otherDuplicated;
+            skipRedelivered += otherSkipRedelivered;
+            redelivered += otherRedelivered;
+        }
+    }
+}
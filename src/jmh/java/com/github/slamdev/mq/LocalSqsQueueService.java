@@ -0,0 +1,44 @@
+package com.github.slamdev.mq;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * SQS adapter with the real SDK client talking HTTP to a {@link LocalSqsServer} on the loopback interface,
+ * so benchmarks include connection pooling, signing, marshalling and the HTTP round trip.
+ */
+class LocalSqsQueueService extends SqsQueueService implements AutoCloseable {
+
+    private final LocalSqsServer server;
+
+    private final AmazonSQSClient client;
+
+    LocalSqsQueueService() {
+        this(new LocalSqsServer(new InMemoryQueueService(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+    }
+
+    private LocalSqsQueueService(LocalSqsServer server) {
+        this(server, (AmazonSQSClient) AmazonSQSClientBuilder.standard()
+                .withEndpointConfiguration(new EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+                .build());
+    }
+
+    private LocalSqsQueueService(LocalSqsServer server, AmazonSQSClient client) {
+        super(client);
+        this.server = server;
+        this.client = client;
+    }
+
+    @Override
+    public void close() {
+        client.shutdown();
+        server.close();
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.slamdev.mq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded latency of the basic operations against a queue which already holds backlog messages.
+ * <p>
+ * Pull uses zero visibility timeout, so the pulled message becomes visible again and backlog stays the same.
+ * Push is measured without deletes, so backlog grows during the iteration and the service is recreated
+ * for every iteration. Run with {@code -t} to measure the same operations under contention,
+ * scaling of competing consumers is measured by {@link ContendedConsumersBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueServiceBenchmark {
+
+    private static final String QUEUE = "benchmark";
+
+    @Param({"IN_MEMORY", "BOUNDED_IN_MEMORY", "FILE", "SEGMENTED_FILE", "SQS_STUB"})
+    public Backend backend;
+
+    @Param({"0", "1000", "100000"})
+    public int backlog;
+
+    @Param({"64", "4096"})
+    public int bodySize;
+
+    private Path storage;
+
+    private QueueService service;
+
+    private String body;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        char[] chars = new char[bodySize];
+        Arrays.fill(chars, 'm');
+        body = new String(chars);
+        storage = Backend.createStorage();
+        service = backend.create(storage);
+        for (int i = 0; i < backlog; i++) {
+            service.push(QUEUE, body);
+        }
+        // file based services need the queue directory to exist before the first pull
+        service.push(QUEUE, body);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        Backend.close(service);
+        Backend.deleteStorage(storage);
+    }
+
+    @Benchmark
+    public void push() {
+        service.push(QUEUE, body);
+    }
+
+    @Benchmark
+    public Message pull() {
+        return service.pull(QUEUE, 0);
+    }
+
+    @Benchmark
+    public Message pushPullDelete() {
+        service.push(QUEUE, body);
+        Message message = service.pull(QUEUE, 30);
+        service.delete(QUEUE, message.getReceiptHandle());
+        return message;
+    }
+}
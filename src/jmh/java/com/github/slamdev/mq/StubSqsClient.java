@@ -0,0 +1,80 @@
+package com.github.slamdev.mq;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * SQS client which serves requests from {@link InMemoryQueueService} without any network calls,
+ * so benchmarks measure the overhead of the adapter and the SDK request model only.
+ */
+@SuppressWarnings("deprecation")
+class StubSqsClient extends AmazonSQSClient {
+
+    private final QueueService queues = new InMemoryQueueService();
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        queues.push(request.getQueueUrl(), request.getMessageBody());
+        return new SendMessageResult();
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        queues.pushBatch(request.getQueueUrl(), request.getEntries().stream()
+                .map(SendMessageBatchRequestEntry::getMessageBody)
+                .collect(toList()));
+        return new SendMessageBatchResult().withSuccessful(request.getEntries().stream()
+                .map(entry -> new SendMessageBatchResultEntry().withId(entry.getId()))
+                .collect(toList()));
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        int maxMessages = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        return new ReceiveMessageResult().withMessages(
+                queues.pullBatch(request.getQueueUrl(), request.getVisibilityTimeout(), maxMessages).stream()
+                        .map(message -> new com.amazonaws.services.sqs.model.Message()
+                                .withBody(message.getMessageBody())
+                                .withReceiptHandle(message.getReceiptHandle()))
+                        .collect(toList()));
+    }
+
+    @Override
+    public ChangeMessageVisibilityResult changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+        queues.changeVisibility(request.getQueueUrl(), request.getReceiptHandle(), request.getVisibilityTimeout());
+        return new ChangeMessageVisibilityResult();
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+        queues.delete(request.getQueueUrl(), request.getReceiptHandle());
+        return new DeleteMessageResult();
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        queues.deleteBatch(request.getQueueUrl(), request.getEntries().stream()
+                .map(DeleteMessageBatchRequestEntry::getReceiptHandle)
+                .collect(toList()));
+        return new DeleteMessageBatchResult().withSuccessful(request.getEntries().stream()
+                .map(entry -> new DeleteMessageBatchResultEntry().withId(entry.getId()))
+                .collect(toList()));
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.slamdev.mq;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non blocking counterpart of {@link QueueService}, operations return immediately
+ * and the returned future is completed when the operation is done.
+ */
+public interface AsyncQueueService {
+
+    CompletableFuture<Void> delete(String queueUrl, String receiptHandle);
+
+    /**
+     * Completes with null if there is no visible message.
+     */
+    default CompletableFuture<Message> pull(String queueUrl, int visibilityTimeout) {
+        return pull(queueUrl, visibilityTimeout, 0);
+    }
+
+    /**
+     * Completes with null if there is still no message after waitTimeSeconds.
+     */
+    CompletableFuture<Message> pull(String queueUrl, int visibilityTimeout, int waitTimeSeconds);
+
+    CompletableFuture<Void> push(String queueUrl, String messageBody);
+}
@@ -0,0 +1,13 @@
+package com.github.slamdev.mq;
+
+/**
+ * Defines what push to a full {@link BoundedInMemoryQueueService} queue does:
+ * - {@link #BLOCK} -> waits until a consumer deletes a message, producers are slowed down to the speed of consumers
+ * - {@link #FAIL} -> throws {@link IllegalStateException}, the caller decides whether to retry or drop the message
+ * - {@link #DROP_OLDEST} -> deletes the oldest message of the queue, even if it is in flight, so the push never waits
+ */
+public enum Backpressure {
+    BLOCK,
+    FAIL,
+    DROP_OLDEST
+}
@@ -0,0 +1,104 @@
+package com.github.slamdev.mq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Outcome of a batch operation. Entries which are not listed as failed were processed successfully.
+ */
+public class BatchResult {
+
+    private static final BatchResult SUCCESSFUL = new BatchResult(Collections.emptyList());
+
+    private final List<Failure> failures;
+
+    public BatchResult(List<Failure> failures) {
+        this.failures = Collections.unmodifiableList(new ArrayList<>(failures));
+    }
+
+    public static BatchResult successful() {
+        return SUCCESSFUL;
+    }
+
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BatchResult that = (BatchResult) o;
+        return Objects.equals(failures, that.failures);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(failures);
+    }
+
+    @Override
+    public String toString() {
+        return "{"
+                + "failures=" + failures
+                + '}';
+    }
+
+    public static class Failure {
+
+        private final int index;
+        private final String code;
+        private final String message;
+
+        /**
+         * @param index position of the failed entry in the list passed to the batch operation
+         */
+        public Failure(int index, String code, String message) {
+            this.index = index;
+            this.code = code;
+            this.message = message;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Failure failure = (Failure) o;
+            return index == failure.index &&
+                    Objects.equals(code, failure.code) &&
+                    Objects.equals(message, failure.message);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, code, message);
+        }
+
+        @Override
+        public String toString() {
+            return "{"
+                    + "index=" + index
+                    + ", code='" + code + '\''
+                    + ", message='" + message + '\''
+                    + '}';
+        }
+    }
+}
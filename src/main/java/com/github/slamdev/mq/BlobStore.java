@@ -0,0 +1,25 @@
+package com.github.slamdev.mq;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of message bodies which are too large for the queue, see {@link CodecQueueService}.
+ * Keys are generated by the store and should not contain ':'.
+ */
+public interface BlobStore {
+
+    /**
+     * @return key which the blob is available by once this method returns
+     */
+    String put(ByteBuffer blob);
+
+    /**
+     * @return null if there is no blob with the key
+     */
+    ByteBuffer get(String key);
+
+    /**
+     * Does nothing if there is no blob with the key.
+     */
+    void delete(String key);
+}
@@ -0,0 +1,454 @@
+package com.github.slamdev.mq;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory queue with a fixed number of slots per queue, allocated when the queue is created and reused
+ * by the following messages, so a stalled consumer can't exhaust the heap, see {@link Backpressure} for
+ * what a push to a full queue does.
+ * <p>
+ * Queue is a ring of slots between three positions, which only grow:
+ * - [head, ready) -> messages delivered at least once or delayed ones stepped over by consumers,
+ * in flight or visible, or deleted but not freed yet
+ * - [ready, tail) -> messages never delivered
+ * - [tail, head + capacity) -> free slots
+ * <p>
+ * Producers and consumers take positions with compare-and-set, nothing is locked:
+ * - every slot has a sequence, which tells producers that the slot is free and consumers that it is written
+ * - every slot has a state word with the lap of its position and the visibility deadline, or the new or deleted
+ * marker, so a consumer claims the slot by replacing its deadline and a stale receipt handle of an earlier lap
+ * never matches the word
+ * <p>
+ * Receipt handle is the position of the message. Push and pull allocate nothing but the message returned
+ * to the consumer and the copy of a binary body, since the caller can reuse its buffer after push.
+ */
+public class BoundedInMemoryQueueService implements QueueService {
+
+    private static final int LAP_SHIFT = 40;
+    private static final long VALUE_MASK = (1L << LAP_SHIFT) - 1;
+    private static final long LAP_MASK = (1L << (Long.SIZE - LAP_SHIFT)) - 1;
+
+    private static final long DELETED = 0;
+    private static final long NEW = VALUE_MASK;
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Map<String, Ring> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Visibility deadlines are milliseconds from this moment, so they fit into the state word.
+     */
+    private final long epoch = System.nanoTime();
+
+    private final int capacity;
+
+    private final Backpressure backpressure;
+
+    public BoundedInMemoryQueueService(int capacity) {
+        this(capacity, Backpressure.BLOCK);
+    }
+
+    /**
+     * @param capacity max number of messages in a queue including the ones in flight, rounded up to a power of two,
+     *                 at least 2, since a slot of a single slot ring can't tell a written message from a free slot
+     */
+    public BoundedInMemoryQueueService(int capacity, Backpressure backpressure) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity should be in range (0, 2^30]: " + capacity);
+        }
+        this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Ignores a receipt handle which was not issued by this service, the same way as a handle of a deleted message.
+     */
+    @Override
+    public void delete(String queueUrl, String receiptHandle) {
+        Ring ring = queues.get(queueUrl);
+        if (ring != null) {
+            ring.delete(parseReceiptHandle(receiptHandle));
+        }
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        Ring ring = queues.get(queueUrl);
+        if (ring != null) {
+            ring.changeVisibility(parseReceiptHandle(receiptHandle),
+                    now() + TimeUnit.SECONDS.toMillis(visibilityTimeout));
+        }
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout) {
+        Ring ring = queues.get(queueUrl);
+        return ring == null ? null : ring.claim(now(), TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    /**
+     * All messages of the batch are claimed at the same moment, so a message pulled with zero visibility timeout
+     * is not delivered twice in the same batch.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        List<Message> messages = new ArrayList<>();
+        Ring ring = queues.get(queueUrl);
+        if (ring == null) {
+            return messages;
+        }
+        long now = now();
+        long timeout = TimeUnit.SECONDS.toMillis(visibilityTimeout);
+        Message message;
+        while (messages.size() < maxMessages && (message = ring.claim(now, timeout)) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Body is copied once, since the caller can reuse the buffer after push.
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        push(queueUrl, body, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Text message is stored as is, so it is never encoded if consumers read it as text.
+     */
+    @Override
+    public void push(String queueUrl, String messageBody) {
+        push(queueUrl, messageBody, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delayed message takes its slot right away and keeps its visibility deadline in the state word,
+     * so consumers step over it the same way as over a message in flight.
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+        ((Buffer) copy.put(body.duplicate())).flip();
+        queue(queueUrl).push(copy, visibleAt(delay, unit), backpressure);
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, long delay, TimeUnit unit) {
+        queue(queueUrl).push(messageBody, visibleAt(delay, unit), backpressure);
+    }
+
+    @Override
+    public BatchResult pushBatch(String queueUrl, List<String> messageBodies) {
+        messageBodies.forEach(messageBody -> push(queueUrl, messageBody));
+        return BatchResult.successful();
+    }
+
+    private Ring queue(String queueUrl) {
+        // computeIfAbsent locks the bin even if the queue exists
+        Ring ring = queues.get(queueUrl);
+        return ring != null ? ring : queues.computeIfAbsent(queueUrl, k -> new Ring(k, capacity));
+    }
+
+    private long visibleAt(long delay, TimeUnit unit) {
+        return delay > 0 ? now() + unit.toMillis(delay) : NEW;
+    }
+
+    /**
+     * Starts from 1, so a deadline is never equal to the deleted marker.
+     */
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - epoch) + 1;
+    }
+
+    /**
+     * @return -1 if the handle is not a position, which is never between head and ready
+     */
+    private static long parseReceiptHandle(String receiptHandle) {
+        try {
+            return Math.max(Long.parseLong(receiptHandle), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Ring {
+        final String name;
+        final int capacity;
+        final int mask;
+        final int lapShift;
+        final AtomicLongArray sequences;
+        final AtomicLongArray states;
+        final AtomicReferenceArray<Object> bodies;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong ready = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        // lower bound of deadlines of delivered messages, so pull scans them only when one can be visible again
+        final AtomicLong nextVisibleAt = new AtomicLong(NEW);
+
+        Ring(String name, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+            mask = capacity - 1;
+            lapShift = Integer.numberOfTrailingZeros(capacity);
+            sequences = new AtomicLongArray(capacity);
+            states = new AtomicLongArray(capacity);
+            bodies = new AtomicReferenceArray<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                // slot i is free for position i
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * @param visibleAt deadline of a delayed message, or the new marker
+         */
+        void push(Object body, long visibleAt, Backpressure backpressure) {
+            long backoff = 1;
+            while (true) {
+                long position = tail.get();
+                int slot = slot(position);
+                long sequence = sequences.get(slot);
+                if (sequence == position) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        // state goes first, so a consumer which read the new body sees that the lap has changed
+                        states.set(slot, state(position, visibleAt));
+                        bodies.set(slot, body);
+                        sequences.set(slot, position + 1);
+                        return;
+                    }
+                } else if (sequence < position) {
+                    // slot of the previous lap is not freed yet
+                    if (backpressure == Backpressure.FAIL) {
+                        throw new IllegalStateException("Queue " + name + " is full");
+                    } else if (backpressure == Backpressure.DROP_OLDEST) {
+                        dropOldest();
+                    } else {
+                        backoff = park(backoff);
+                    }
+                }
+            }
+        }
+
+        Message claim(long now, long visibilityTimeout) {
+            while (true) {
+                long position = claimVisible(now, now + visibilityTimeout);
+                if (position < 0) {
+                    position = claimReady(now, now + visibilityTimeout);
+                }
+                if (position < 0) {
+                    return null;
+                }
+                int slot = slot(position);
+                Object body = bodies.get(slot);
+                // the message could be deleted by a stale receipt handle or dropped by a producer after the claim,
+                // its slot is then freed, or even reused, before the body is read
+                long state = states.get(slot);
+                if (stateLap(state) != lap(position) || value(state) == DELETED || body == null) {
+                    continue;
+                }
+                String receiptHandle = Long.toString(position);
+                return body instanceof String
+                        ? new Message((String) body, receiptHandle)
+                        : new Message((ByteBuffer) body, receiptHandle);
+            }
+        }
+
+        void delete(long position) {
+            if (position < head.get() || position >= ready.get()) {
+                return;
+            }
+            int slot = slot(position);
+            long state;
+            do {
+                state = states.get(slot);
+                if (stateLap(state) != lap(position) || value(state) == DELETED) {
+                    return;
+                }
+            } while (!states.compareAndSet(slot, state, state(position, DELETED)));
+            advanceHead();
+        }
+
+        void changeVisibility(long position, long visibleAt) {
+            if (position < head.get() || position >= ready.get()) {
+                return;
+            }
+            int slot = slot(position);
+            long state;
+            do {
+                state = states.get(slot);
+                if (stateLap(state) != lap(position) || value(state) == DELETED || value(state) == NEW) {
+                    return;
+                }
+            } while (!states.compareAndSet(slot, state, state(position, visibleAt)));
+            lowerNextVisibleAt(visibleAt);
+        }
+
+        /**
+         * Claims a delivered message whose deadline has passed. Scan that finds nothing raises the lower bound
+         * of deadlines and scans again: a consumer that set a deadline before the bound was raised is found by
+         * the second scan, the one that set it after lowers the bound itself.
+         */
+        private long claimVisible(long now, long deadline) {
+            long bound = nextVisibleAt.get();
+            if (bound >= now) {
+                return -1;
+            }
+            long nearest = scan(now, deadline);
+            if (nearest < 0) {
+                return -nearest - 1;
+            }
+            if (nextVisibleAt.compareAndSet(bound, nearest)) {
+                long rescanned = scan(now, deadline);
+                if (rescanned < 0) {
+                    return -rescanned - 1;
+                }
+                lowerNextVisibleAt(rescanned);
+            }
+            return -1;
+        }
+
+        /**
+         * Returns -position - 1 of the claimed message or the nearest deadline of the messages in flight.
+         */
+        private long scan(long now, long deadline) {
+            long nearest = NEW;
+            long end = ready.get();
+            for (long position = head.get(); position < end; position++) {
+                int slot = slot(position);
+                long state = states.get(slot);
+                long visibleAt = value(state);
+                if (stateLap(state) != lap(position) || visibleAt == DELETED || visibleAt == NEW) {
+                    continue;
+                }
+                // deadline set at this moment is not passed yet
+                if (visibleAt < now) {
+                    if (states.compareAndSet(slot, state, state(position, deadline))) {
+                        lowerNextVisibleAt(deadline);
+                        return -position - 1;
+                    }
+                } else {
+                    nearest = Math.min(nearest, visibleAt);
+                }
+            }
+            return nearest;
+        }
+
+        private long claimReady(long now, long deadline) {
+            while (true) {
+                long position = ready.get();
+                int slot = slot(position);
+                if (sequences.get(slot) != position + 1) {
+                    // not written yet
+                    return -1;
+                }
+                if (!ready.compareAndSet(position, position + 1)) {
+                    continue;
+                }
+                long state = states.get(slot);
+                long visibleAt = value(state);
+                if (stateLap(state) != lap(position) || visibleAt == DELETED) {
+                    // dropped by a producer before the consumer marked it delivered
+                    continue;
+                }
+                if (visibleAt != NEW && visibleAt >= now) {
+                    // delayed message is left behind the ready position and delivered by the scan when it is due
+                    lowerNextVisibleAt(visibleAt);
+                    continue;
+                }
+                if (states.compareAndSet(slot, state, state(position, deadline))) {
+                    lowerNextVisibleAt(deadline);
+                    return position;
+                }
+            }
+        }
+
+        private void dropOldest() {
+            long position = head.get();
+            if (position == ready.get()) {
+                if (sequences.get(slot(position)) != position + 1
+                        || !ready.compareAndSet(position, position + 1)) {
+                    return;
+                }
+            }
+            int slot = slot(position);
+            long state;
+            do {
+                state = states.get(slot);
+                if (stateLap(state) != lap(position) || value(state) == DELETED) {
+                    break;
+                }
+            } while (!states.compareAndSet(slot, state, state(position, DELETED)));
+            advanceHead();
+        }
+
+        /**
+         * Frees the slots of deleted messages at the head, messages deleted behind a live one stay in their
+         * slots until it is deleted too.
+         */
+        private void advanceHead() {
+            while (true) {
+                long position = head.get();
+                if (position >= ready.get()) {
+                    return;
+                }
+                int slot = slot(position);
+                if (states.get(slot) != state(position, DELETED)) {
+                    return;
+                }
+                if (head.compareAndSet(position, position + 1)) {
+                    bodies.set(slot, null);
+                    sequences.set(slot, position + capacity);
+                }
+            }
+        }
+
+        private void lowerNextVisibleAt(long visibleAt) {
+            long bound;
+            while ((bound = nextVisibleAt.get()) > visibleAt) {
+                if (nextVisibleAt.compareAndSet(bound, visibleAt)) {
+                    return;
+                }
+            }
+        }
+
+        private int slot(long position) {
+            return (int) position & mask;
+        }
+
+        private long lap(long position) {
+            return (position >>> lapShift) & LAP_MASK;
+        }
+
+        private long state(long position, long value) {
+            return lap(position) << LAP_SHIFT | value;
+        }
+
+        private static long stateLap(long state) {
+            return state >>> LAP_SHIFT;
+        }
+
+        private static long value(long state) {
+            return state & VALUE_MASK;
+        }
+
+        private long park(long backoff) {
+            LockSupport.parkNanos(backoff);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Push to queue " + name + " was interrupted");
+            }
+            return Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.github.slamdev.mq;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * SQS adapter which never blocks the caller:
+ * - received messages are prefetched into a bounded buffer per queue and visibility timeout,
+ * buffered messages are handed out only while their visibility timeout is not expired
+ * - pushes and deletes are collected per queue and sent as a batch request when the batch is full
+ * or the first entry waited for the linger time
+ * <p>
+ * SQS calls are performed by {@link SqsQueueService} on a separate thread pool.
+ */
+public class BufferedSqsQueueService implements AsyncQueueService, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BufferedSqsQueueService.class);
+
+    static final int DEFAULT_MAX_BATCH_SIZE = SqsQueueService.MAX_BATCH_SIZE;
+
+    static final long DEFAULT_LINGER_MILLIS = 20;
+
+    static final int DEFAULT_PREFETCH_SIZE = 20;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final long EMPTY_RECEIVE_DELAY_MILLIS = 100;
+
+    private final QueueService sqs;
+
+    private final int maxBatchSize;
+
+    private final long lingerMillis;
+
+    private final int prefetchSize;
+
+    private final ExecutorService sendExecutor = Executors.newCachedThreadPool(daemon("sqs-send"));
+
+    private final ExecutorService receiveExecutor = Executors.newCachedThreadPool(daemon("sqs-receive"));
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemon("sqs-timer"));
+
+    private final Map<String, OutboundBuffer<String>> pushBuffers = new ConcurrentHashMap<>();
+
+    private final Map<String, OutboundBuffer<String>> deleteBuffers = new ConcurrentHashMap<>();
+
+    private final Map<ReceiveKey, ReceiveBuffer> receiveBuffers = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    public BufferedSqsQueueService(AmazonSQSClient sqsClient) {
+        this(sqsClient, DEFAULT_MAX_BATCH_SIZE, DEFAULT_LINGER_MILLIS, DEFAULT_PREFETCH_SIZE);
+    }
+
+    /**
+     * @param maxBatchSize number of pushes or deletes which triggers a batch request, SQS allows up to 10
+     * @param lingerMillis max time a push or a delete waits for other entries of the same batch
+     * @param prefetchSize max number of received messages buffered per queue and visibility timeout
+     */
+    public BufferedSqsQueueService(AmazonSQSClient sqsClient, int maxBatchSize, long lingerMillis, int prefetchSize) {
+        this.sqs = new SqsQueueService(sqsClient);
+        this.maxBatchSize = Math.min(maxBatchSize, SqsQueueService.MAX_BATCH_SIZE);
+        this.lingerMillis = lingerMillis;
+        this.prefetchSize = prefetchSize;
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String queueUrl, String receiptHandle) {
+        return deleteBuffers.computeIfAbsent(queueUrl, k -> new OutboundBuffer<>(k, sqs::deleteBatch))
+                .add(receiptHandle);
+    }
+
+    @Override
+    public CompletableFuture<Message> pull(String queueUrl, int visibilityTimeout, int waitTimeSeconds) {
+        ReceiveKey key = new ReceiveKey(queueUrl, visibilityTimeout);
+        return receiveBuffers.computeIfAbsent(key, ReceiveBuffer::new).pull(waitTimeSeconds);
+    }
+
+    @Override
+    public CompletableFuture<Void> push(String queueUrl, String messageBody) {
+        return pushBuffers.computeIfAbsent(queueUrl, k -> new OutboundBuffer<>(k, sqs::pushBatch))
+                .add(messageBody);
+    }
+
+    /**
+     * Sends collected pushes and deletes and waits for their completion. Prefetching is interrupted,
+     * buffered messages become visible in SQS again when their visibility timeout expires.
+     * Waiting pulls are completed with null, operations after close fail with {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        // buffers check the flag under their locks, so an operation either sees it or is drained below
+        closed = true;
+        receiveBuffers.values().forEach(ReceiveBuffer::close);
+        pushBuffers.values().forEach(OutboundBuffer::flush);
+        deleteBuffers.values().forEach(OutboundBuffer::flush);
+        scheduler.shutdownNow();
+        receiveExecutor.shutdownNow();
+        sendExecutor.shutdown();
+        try {
+            sendExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> CompletableFuture<T> rejected() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("Queue service is closed"));
+        return future;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private class OutboundBuffer<T> {
+        final String queueUrl;
+        final BiFunction<String, List<T>, BatchResult> request;
+        List<T> entries = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        ScheduledFuture<?> lingerTask;
+
+        OutboundBuffer(String queueUrl, BiFunction<String, List<T>, BatchResult> request) {
+            this.queueUrl = queueUrl;
+            this.request = request;
+        }
+
+        synchronized CompletableFuture<Void> add(T entry) {
+            if (closed) {
+                return rejected();
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            entries.add(entry);
+            futures.add(future);
+            if (entries.size() >= maxBatchSize) {
+                flush();
+            } else if (lingerTask == null) {
+                lingerTask = scheduler.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+            return future;
+        }
+
+        synchronized void flush() {
+            if (lingerTask != null) {
+                lingerTask.cancel(false);
+                lingerTask = null;
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            List<T> batch = entries;
+            List<CompletableFuture<Void>> batchFutures = futures;
+            entries = new ArrayList<>();
+            futures = new ArrayList<>();
+            sendExecutor.execute(() -> send(batch, batchFutures));
+        }
+
+        private void send(List<T> batch, List<CompletableFuture<Void>> batchFutures) {
+            try {
+                BatchResult result = request.apply(queueUrl, batch);
+                for (BatchResult.Failure failure : result.getFailures()) {
+                    batchFutures.get(failure.getIndex()).completeExceptionally(
+                            new IllegalStateException(failure.getCode() + ": " + failure.getMessage()));
+                }
+                batchFutures.forEach(future -> future.complete(null));
+            } catch (RuntimeException e) {
+                batchFutures.forEach(future -> future.completeExceptionally(e));
+            }
+        }
+    }
+
+    /**
+     * Only one receive request per buffer is in progress at a time. Received messages complete waiting pulls
+     * first, the rest is buffered. Prefetching continues while the buffer has free space.
+     */
+    private class ReceiveBuffer {
+        final ReceiveKey key;
+        final Deque<BufferedMessage> messages = new ArrayDeque<>();
+        final Deque<CompletableFuture<Message>> waiting = new ArrayDeque<>();
+        boolean receiving;
+
+        ReceiveBuffer(ReceiveKey key) {
+            this.key = key;
+        }
+
+        synchronized CompletableFuture<Message> pull(int waitTimeSeconds) {
+            if (closed) {
+                return rejected();
+            }
+            CompletableFuture<Message> future = new CompletableFuture<>();
+            Message message = pollBuffered();
+            if (message != null) {
+                future.complete(message);
+            } else {
+                waiting.addLast(future);
+                scheduler.schedule(() -> expire(future), waitTimeSeconds, TimeUnit.SECONDS);
+            }
+            receiveIfNeeded();
+            return future;
+        }
+
+        private synchronized void expire(CompletableFuture<Message> future) {
+            if (waiting.remove(future)) {
+                future.complete(null);
+            }
+        }
+
+        /**
+         * Expiry tasks of waiting pulls are discarded with the scheduler, so the pulls are completed here.
+         */
+        synchronized void close() {
+            waiting.forEach(future -> future.complete(null));
+            waiting.clear();
+        }
+
+        private Message pollBuffered() {
+            long now = System.nanoTime();
+            BufferedMessage buffered;
+            while ((buffered = messages.pollFirst()) != null) {
+                if (buffered.visibleUntil - now > 0) {
+                    return buffered.message;
+                }
+            }
+            return null;
+        }
+
+        private void receiveIfNeeded() {
+            if (!receiving && (!waiting.isEmpty() || messages.size() < prefetchSize)) {
+                receiving = true;
+                int maxMessages = Math.max(Math.min(prefetchSize - messages.size(), SqsQueueService.MAX_BATCH_SIZE),
+                        Math.min(waiting.size(), SqsQueueService.MAX_BATCH_SIZE));
+                receiveExecutor.execute(() -> receive(maxMessages));
+            }
+        }
+
+        private void receive(int maxMessages) {
+            // visibility timeout is counted from the moment request was sent, so buffered message is never
+            // handed out after SQS made it visible for other consumers
+            long visibleUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(key.visibilityTimeout);
+            List<Message> received;
+            try {
+                received = sqs.pullBatch(key.queueUrl, key.visibilityTimeout, maxMessages,
+                        SqsQueueService.MAX_WAIT_TIME_SECONDS);
+            } catch (RuntimeException e) {
+                LOGGER.warn("", e);
+                synchronized (this) {
+                    waiting.forEach(future -> future.completeExceptionally(e));
+                    waiting.clear();
+                }
+                scheduleReceiveCompleted(RETRY_DELAY_MILLIS);
+                return;
+            }
+            synchronized (this) {
+                for (Message message : received) {
+                    CompletableFuture<Message> future = waiting.pollFirst();
+                    if (future != null) {
+                        future.complete(message);
+                    } else {
+                        messages.addLast(new BufferedMessage(message, visibleUntil));
+                    }
+                }
+            }
+            if (received.isEmpty()) {
+                // SQS returns empty response only after the long polling wait time,
+                // delay protects from a busy loop against a client which returns immediately
+                scheduleReceiveCompleted(EMPTY_RECEIVE_DELAY_MILLIS);
+            } else {
+                receiveCompleted();
+            }
+        }
+
+        private void scheduleReceiveCompleted(long delayMillis) {
+            if (!closed) {
+                scheduler.schedule(this::receiveCompleted, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void receiveCompleted() {
+            receiving = false;
+            if (!closed) {
+                receiveIfNeeded();
+            }
+        }
+    }
+
+    private static class BufferedMessage {
+        final Message message;
+        final long visibleUntil;
+
+        BufferedMessage(Message message, long visibleUntil) {
+            this.message = message;
+            this.visibleUntil = visibleUntil;
+        }
+    }
+
+    private static class ReceiveKey {
+        final String queueUrl;
+        final int visibilityTimeout;
+
+        ReceiveKey(String queueUrl, int visibilityTimeout) {
+            this.queueUrl = queueUrl;
+            this.visibilityTimeout = visibilityTimeout;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ReceiveKey that = (ReceiveKey) o;
+            return visibilityTimeout == that.visibilityTimeout &&
+                    Objects.equals(queueUrl, that.queueUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queueUrl, visibilityTimeout);
+        }
+    }
+}
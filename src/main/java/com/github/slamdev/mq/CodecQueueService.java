@@ -0,0 +1,441 @@
+package com.github.slamdev.mq;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Decorator which shrinks message bodies of any {@link QueueService}:
+ * - body of at least compressionThreshold bytes -> compressed with deflate, kept as is if it does not shrink
+ * - body, after compression, of more than offloadThreshold bytes -> put to the {@link BlobStore},
+ * the queue gets a pointer to the blob and the blob is deleted together with the message
+ * <p>
+ * Encoded bodies start with a header which is not a valid text, so plain bodies pushed by other producers
+ * are delivered as is. A plain body which starts with the header is escaped.
+ * Pulled bodies are decoded, and blobs are read, only when the consumer requests the body.
+ * <p>
+ * Receipt handle of an offloaded message refers to the blob, so such a message should be deleted
+ * through this decorator. A redelivered copy of a message which was deleted already can not be decoded.
+ */
+public class CodecQueueService implements QueueService {
+
+    /**
+     * Smaller bodies rarely shrink enough to pay for the compression.
+     */
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * SQS limit is 256 KB, binary bodies are base64 encoded which makes them a third larger.
+     */
+    static final int DEFAULT_OFFLOAD_THRESHOLD = 192 * 1024;
+
+    private static final byte[] MAGIC = {0, 'M', 'Q'};
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+
+    private static final byte FORMAT_PLAIN = 'P';
+    private static final byte FORMAT_DEFLATE = 'D';
+    private static final byte FORMAT_BLOB = 'B';
+
+    private static final String BLOB_HANDLE_PREFIX = "blob:";
+
+    /**
+     * Deflate and inflate outputs start at most this large and grow up to the size they need.
+     */
+    private static final int INITIAL_OUTPUT_SIZE = 64 * 1024;
+
+    /**
+     * Deflaters and inflaters hold native memory until they are ended, so the pools keep one per processor
+     * and end the rest instead of keeping one per thread which ever used the codec.
+     */
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final QueueService delegate;
+
+    private final BlobStore blobStore;
+
+    private final int compressionThreshold;
+
+    private final int offloadThreshold;
+
+    public CodecQueueService(QueueService delegate, BlobStore blobStore) {
+        this(delegate, blobStore, DEFAULT_COMPRESSION_THRESHOLD, DEFAULT_OFFLOAD_THRESHOLD);
+    }
+
+    /**
+     * @param compressionThreshold min size of the body in bytes which is compressed
+     * @param offloadThreshold     max size of the encoded body in bytes which is kept in the queue
+     */
+    public CodecQueueService(QueueService delegate, BlobStore blobStore, int compressionThreshold,
+                             int offloadThreshold) {
+        if (offloadThreshold <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Offload threshold should be greater than " + HEADER_SIZE);
+        }
+        this.delegate = delegate;
+        this.blobStore = blobStore;
+        this.compressionThreshold = compressionThreshold;
+        this.offloadThreshold = offloadThreshold;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) {
+        delegate.delete(queueUrl, extractHandle(receiptHandle));
+        String key = extractBlobKey(receiptHandle);
+        if (key != null) {
+            blobStore.delete(key);
+        }
+    }
+
+    @Override
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        BatchResult result = delegate.deleteBatch(queueUrl, receiptHandles.stream()
+                .map(CodecQueueService::extractHandle).collect(toList()));
+        Set<Integer> failed = new HashSet<>();
+        result.getFailures().forEach(failure -> failed.add(failure.getIndex()));
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            String key = extractBlobKey(receiptHandles.get(i));
+            if (key != null && !failed.contains(i)) {
+                blobStore.delete(key);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        delegate.changeVisibility(queueUrl, extractHandle(receiptHandle), visibilityTimeout);
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout) {
+        return decode(delegate.pull(queueUrl, visibilityTimeout));
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout, int waitTimeSeconds) {
+        return decode(delegate.pull(queueUrl, visibilityTimeout, waitTimeSeconds));
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        return delegate.pullBatch(queueUrl, visibilityTimeout, maxMessages).stream()
+                .map(this::decode).collect(toList());
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        return delegate.pullBatch(queueUrl, visibilityTimeout, maxMessages, waitTimeSeconds).stream()
+                .map(this::decode).collect(toList());
+    }
+
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout) {
+        return decodeAny(delegate.pullAny(queueUrls, visibilityTimeout));
+    }
+
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout, int waitTimeSeconds) {
+        return decodeAny(delegate.pullAny(queueUrls, visibilityTimeout, waitTimeSeconds));
+    }
+
+    /**
+     * Plain text body is pushed as text, so the delegate does not have to convert it.
+     */
+    @Override
+    public void push(String queueUrl, String messageBody) {
+        ByteBuffer body = Message.encode(messageBody);
+        if (isPlain(body)) {
+            delegate.push(queueUrl, messageBody);
+        } else {
+            delegate.push(queueUrl, encode(body));
+        }
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        delegate.push(queueUrl, encode(body));
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, long delay, TimeUnit unit) {
+        ByteBuffer body = Message.encode(messageBody);
+        if (isPlain(body)) {
+            delegate.push(queueUrl, messageBody, delay, unit);
+        } else {
+            delegate.push(queueUrl, encode(body), delay, unit);
+        }
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        delegate.push(queueUrl, encode(body), delay, unit);
+    }
+
+    @Override
+    public BatchResult pushBatch(String queueUrl, List<String> messageBodies) {
+        List<ByteBuffer> bodies = messageBodies.stream().map(Message::encode).collect(toList());
+        if (bodies.stream().allMatch(this::isPlain)) {
+            return delegate.pushBatch(queueUrl, messageBodies);
+        }
+        return pushBinaryBatch(queueUrl, bodies);
+    }
+
+    /**
+     * Blobs of the bodies which failed to be pushed are deleted.
+     */
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        List<ByteBuffer> encoded = bodies.stream().map(this::encode).collect(toList());
+        BatchResult result = delegate.pushBinaryBatch(queueUrl, encoded);
+        for (BatchResult.Failure failure : result.getFailures()) {
+            String key = readBlobKey(encoded.get(failure.getIndex()));
+            if (key != null) {
+                blobStore.delete(key);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        delegate.setRedrivePolicy(queueUrl, redrivePolicy);
+    }
+
+    @Override
+    public QueueAttributes getQueueAttributes(String queueUrl) {
+        return delegate.getQueueAttributes(queueUrl);
+    }
+
+    /**
+     * Encoded bodies are moved as is, blobs stay where they are.
+     */
+    @Override
+    public int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+        return delegate.redrive(deadLetterQueueUrl, queueUrl, maxMessages);
+    }
+
+    private boolean isPlain(ByteBuffer body) {
+        int size = body.remaining();
+        return size < compressionThreshold && size <= offloadThreshold && !hasHeader(body);
+    }
+
+    private ByteBuffer encode(ByteBuffer body) {
+        if (isPlain(body)) {
+            return body;
+        }
+        ByteBuffer encoded = null;
+        if (body.remaining() >= compressionThreshold) {
+            encoded = deflate(body);
+        }
+        if (encoded == null && !hasHeader(body)) {
+            encoded = body;
+        } else if (encoded == null) {
+            encoded = header(FORMAT_PLAIN, body.remaining());
+            encoded.put(body.duplicate());
+            ((Buffer) encoded).flip();
+        }
+        if (encoded.remaining() > offloadThreshold) {
+            byte[] key = blobStore.put(encoded).getBytes(US_ASCII);
+            encoded = header(FORMAT_BLOB, key.length);
+            encoded.put(key);
+            ((Buffer) encoded).flip();
+        }
+        return encoded;
+    }
+
+    /**
+     * @return null if the body does not shrink
+     */
+    private static ByteBuffer deflate(ByteBuffer body) {
+        byte[] input = toArray(body);
+        // compressed body is useful only if it is smaller than the original one, so the output never grows
+        byte[] output = new byte[input.length];
+        int offset = HEADER_SIZE + Integer.BYTES;
+        if (offset >= output.length) {
+            return null;
+        }
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished() && offset < output.length) {
+                offset += deflater.deflate(output, offset, output.length - offset);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        ByteBuffer encoded = ByteBuffer.wrap(output, 0, offset);
+        encoded.put(MAGIC).put(FORMAT_DEFLATE).putInt(input.length);
+        ((Buffer) encoded).position(0);
+        return encoded;
+    }
+
+    private Message decode(Message message) {
+        if (message == null || !message.startsWith(MAGIC)) {
+            return message;
+        }
+        ByteBuffer body = message.getBody();
+        if (body.remaining() < HEADER_SIZE) {
+            return message;
+        }
+        String handle = message.getReceiptHandle();
+        String key = readBlobKey(body);
+        if (key != null) {
+            return new Message(() -> decodeBlob(key), BLOB_HANDLE_PREFIX + key + ':' + handle,
+                    message.getReceiveCount());
+        }
+        return new Message(() -> decodeInline(body), handle, message.getReceiveCount());
+    }
+
+    private Message decodeAny(Message message) {
+        Message decoded = decode(message);
+        return decoded == message ? message : decoded.withQueueUrl(message.getQueueUrl());
+    }
+
+    private ByteBuffer decodeBlob(String key) {
+        ByteBuffer blob = blobStore.get(key);
+        if (blob == null) {
+            throw new IllegalStateException("Blob " + key + " is missing, the message was deleted already");
+        }
+        return decodeInline(blob);
+    }
+
+    private static ByteBuffer decodeInline(ByteBuffer encoded) {
+        if (!hasHeader(encoded)) {
+            return encoded;
+        }
+        ByteBuffer body = encoded.duplicate();
+        ((Buffer) body).position(body.position() + HEADER_SIZE);
+        byte format = encoded.get(encoded.position() + MAGIC.length);
+        switch (format) {
+            case FORMAT_PLAIN:
+                return body.slice();
+            case FORMAT_DEFLATE:
+                return inflate(body);
+            default:
+                throw new IllegalStateException("Unknown body format " + format);
+        }
+    }
+
+    /**
+     * Size in the header is not trusted for the allocation, a corrupted or foreign body could declare any size,
+     * so the output grows with the inflated data and the size is only checked against it.
+     */
+    private static ByteBuffer inflate(ByteBuffer body) {
+        int size = body.getInt();
+        if (size < 0) {
+            throw new IllegalStateException("Compressed body has invalid size " + size);
+        }
+        byte[] input = toArray(body);
+        byte[] output = new byte[Math.min(size, Math.max(input.length, INITIAL_OUTPUT_SIZE))];
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        int offset = 0;
+        try {
+            inflater.setInput(input);
+            while (!inflater.finished()) {
+                if (offset == output.length) {
+                    if (output.length == size) {
+                        break;
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min(size, output.length * 2L));
+                }
+                int inflated = inflater.inflate(output, offset, output.length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed body is truncated");
+                }
+                offset += inflated;
+            }
+            if (offset != size || !inflater.finished()) {
+                throw new IllegalStateException("Compressed body does not match its size " + size);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * @return null if the body is not a blob pointer
+     */
+    private static String readBlobKey(ByteBuffer encoded) {
+        if (!hasHeader(encoded) || encoded.get(encoded.position() + MAGIC.length) != FORMAT_BLOB) {
+            return null;
+        }
+        ByteBuffer key = encoded.duplicate();
+        ((Buffer) key).position(key.position() + HEADER_SIZE);
+        return US_ASCII.decode(key).toString();
+    }
+
+    private static String extractHandle(String receiptHandle) {
+        if (!receiptHandle.startsWith(BLOB_HANDLE_PREFIX)) {
+            return receiptHandle;
+        }
+        return receiptHandle.substring(receiptHandle.indexOf(':', BLOB_HANDLE_PREFIX.length()) + 1);
+    }
+
+    private static String extractBlobKey(String receiptHandle) {
+        if (!receiptHandle.startsWith(BLOB_HANDLE_PREFIX)) {
+            return null;
+        }
+        return receiptHandle.substring(BLOB_HANDLE_PREFIX.length(),
+                receiptHandle.indexOf(':', BLOB_HANDLE_PREFIX.length()));
+    }
+
+    private static boolean hasHeader(ByteBuffer body) {
+        if (body.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (body.get(body.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer header(byte format, int payloadSize) {
+        return ByteBuffer.allocate(HEADER_SIZE + payloadSize).put(MAGIC).put(format);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+}
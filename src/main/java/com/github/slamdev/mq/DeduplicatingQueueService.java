@@ -0,0 +1,470 @@
+package com.github.slamdev.mq;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Decorator which drops pushes of messages pushed to the same queue within the deduplication window,
+ * like SQS FIFO queues do:
+ * - push with a deduplication id -> duplicates are messages with the same id
+ * - push without it -> duplicates are messages with the same body, compared by SHA-256 hash
+ * Window starts at the first push and is not extended by duplicates. Dropped push returns normally.
+ * <p>
+ * Window is a fixed size open addressing table of 128 bit key hashes and window deadlines, so its memory
+ * is bounded: an entry is put to an expired slot near its hash, or evicts the entry with the nearest deadline
+ * if there is none. The table lives either on the heap, or in a file which processes of the same host share
+ * the same way they share {@link FileQueueService} storage.
+ * <p>
+ * If the delegate fails to push a message, its entry is removed, so a retry of the producer is not dropped.
+ */
+public class DeduplicatingQueueService implements QueueService, AutoCloseable {
+
+    static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * File locks are held on behalf of the whole JVM, see {@link FileQueueService}.
+     */
+    private static final Map<Path, Lock> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(
+            () -> propagate(() -> MessageDigest.getInstance("SHA-256")));
+
+    private final QueueService delegate;
+
+    private final long windowMillis;
+
+    private final Table table;
+
+    private final DeduplicationMetrics metrics;
+
+    /**
+     * Window of 5 minutes, which is the deduplication interval of SQS FIFO queues, is kept on the heap.
+     */
+    public DeduplicatingQueueService(QueueService delegate, int maxEntries) {
+        this(delegate, DEFAULT_WINDOW_MILLIS, TimeUnit.MILLISECONDS, maxEntries);
+    }
+
+    /**
+     * Window is kept on the heap.
+     *
+     * @param maxEntries number of messages the window holds, rounded up to a power of two, up to 2^26
+     */
+    public DeduplicatingQueueService(QueueService delegate, long window, TimeUnit unit, int maxEntries) {
+        this(delegate, window, unit, Table.allocate(Table.capacity(maxEntries)));
+    }
+
+    /**
+     * Window is kept in the file and shared by all processes which use the same file. Capacity of the window
+     * is defined by the process which creates the file, the window duration is defined per process.
+     *
+     * @param maxEntries number of messages the window holds, rounded up to a power of two, up to 2^26
+     */
+    public DeduplicatingQueueService(QueueService delegate, Path file, long window, TimeUnit unit, int maxEntries) {
+        this(delegate, window, unit, Table.open(file, Table.capacity(maxEntries)));
+    }
+
+    private DeduplicatingQueueService(QueueService delegate, long window, TimeUnit unit, Table table) {
+        this.delegate = delegate;
+        this.windowMillis = unit.toMillis(window);
+        this.table = table;
+        metrics = new DeduplicationMetrics(() -> table.locked(() -> table.count(System.currentTimeMillis())),
+                table.memoryUsage());
+    }
+
+    public DeduplicationMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void push(String queueUrl, String messageBody, String deduplicationId) {
+        pushOnce(idHash(queueUrl, deduplicationId), () -> delegate.push(queueUrl, messageBody));
+    }
+
+    public void push(String queueUrl, ByteBuffer body, String deduplicationId) {
+        pushOnce(idHash(queueUrl, deduplicationId), () -> delegate.push(queueUrl, body));
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody) {
+        pushOnce(contentHash(queueUrl, Message.encode(messageBody)),
+                () -> delegate.push(queueUrl, messageBody));
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        pushOnce(contentHash(queueUrl, body), () -> delegate.push(queueUrl, body));
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, long delay, TimeUnit unit) {
+        pushOnce(contentHash(queueUrl, Message.encode(messageBody)),
+                () -> delegate.push(queueUrl, messageBody, delay, unit));
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        pushOnce(contentHash(queueUrl, body), () -> delegate.push(queueUrl, body, delay, unit));
+    }
+
+    /**
+     * Duplicates are reported as successful, indexes of failures refer to the given list.
+     */
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        List<ByteBuffer> accepted = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        List<long[]> hashes = new ArrayList<>();
+        for (int i = 0; i < bodies.size(); i++) {
+            long[] hash = contentHash(queueUrl, bodies.get(i));
+            if (add(hash)) {
+                accepted.add(bodies.get(i));
+                indexes.add(i);
+                hashes.add(hash);
+            }
+        }
+        if (accepted.isEmpty()) {
+            return BatchResult.successful();
+        }
+        BatchResult result;
+        try {
+            result = delegate.pushBinaryBatch(queueUrl, accepted);
+        } catch (RuntimeException e) {
+            hashes.forEach(this::remove);
+            throw e;
+        }
+        List<BatchResult.Failure> failures = new ArrayList<>();
+        for (BatchResult.Failure failure : result.getFailures()) {
+            remove(hashes.get(failure.getIndex()));
+            failures.add(new BatchResult.Failure(indexes.get(failure.getIndex()), failure.getCode(),
+                    failure.getMessage()));
+        }
+        return new BatchResult(failures);
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) {
+        delegate.delete(queueUrl, receiptHandle);
+    }
+
+    @Override
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        return delegate.deleteBatch(queueUrl, receiptHandles);
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        delegate.changeVisibility(queueUrl, receiptHandle, visibilityTimeout);
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout) {
+        return delegate.pull(queueUrl, visibilityTimeout);
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout, int waitTimeSeconds) {
+        return delegate.pull(queueUrl, visibilityTimeout, waitTimeSeconds);
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        return delegate.pullBatch(queueUrl, visibilityTimeout, maxMessages);
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        return delegate.pullBatch(queueUrl, visibilityTimeout, maxMessages, waitTimeSeconds);
+    }
+
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout) {
+        return delegate.pullAny(queueUrls, visibilityTimeout);
+    }
+
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout, int waitTimeSeconds) {
+        return delegate.pullAny(queueUrls, visibilityTimeout, waitTimeSeconds);
+    }
+
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        delegate.setRedrivePolicy(queueUrl, redrivePolicy);
+    }
+
+    @Override
+    public QueueAttributes getQueueAttributes(String queueUrl) {
+        return delegate.getQueueAttributes(queueUrl);
+    }
+
+    /**
+     * Moved messages bypass the window, they were pushed once already.
+     */
+    @Override
+    public int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+        return delegate.redrive(deadLetterQueueUrl, queueUrl, maxMessages);
+    }
+
+    /**
+     * Closes the window file, the delegate is not closed.
+     */
+    @Override
+    public void close() {
+        table.close();
+    }
+
+    private void pushOnce(long[] hash, Runnable push) {
+        if (!add(hash)) {
+            return;
+        }
+        try {
+            push.run();
+        } catch (RuntimeException e) {
+            remove(hash);
+            throw e;
+        }
+    }
+
+    private boolean add(long[] hash) {
+        long now = System.currentTimeMillis();
+        int result = table.locked(() -> table.add(hash[0], hash[1], now, now + windowMillis));
+        if (result == Table.DUPLICATE) {
+            metrics.recordHit();
+            return false;
+        }
+        metrics.recordMiss();
+        if (result == Table.EVICTED) {
+            metrics.recordEviction();
+        }
+        return true;
+    }
+
+    private void remove(long[] hash) {
+        table.locked(() -> {
+            table.remove(hash[0], hash[1]);
+            return null;
+        });
+    }
+
+    /**
+     * Queue url is a part of the key, so the same message can be pushed to several queues.
+     */
+    private static long[] idHash(String queueUrl, String deduplicationId) {
+        MessageDigest digest = DIGEST.get();
+        digest.update(queueUrl.getBytes(UTF_8));
+        digest.update((byte) 0);
+        digest.update((byte) 'I');
+        digest.update(deduplicationId.getBytes(UTF_8));
+        return toHash(digest.digest());
+    }
+
+    private static long[] contentHash(String queueUrl, ByteBuffer body) {
+        MessageDigest digest = DIGEST.get();
+        digest.update(queueUrl.getBytes(UTF_8));
+        digest.update((byte) 0);
+        digest.update((byte) 'C');
+        digest.update(body.duplicate());
+        return toHash(digest.digest());
+    }
+
+    private static long[] toHash(byte[] digest) {
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    private static <T> T propagate(Callable<T> action) {
+        try {
+            return action.call();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Header holds the capacity, every slot holds two halves of the key hash and the window deadline,
+     * a slot which deadline has passed is free. Entry is looked up in PROBES slots starting at its hash.
+     * <p>
+     * Not thread-safe, callers take the lock by {@link #locked(Supplier)}.
+     */
+    private static class Table {
+        static final int ADDED = 0;
+        static final int EVICTED = 1;
+        static final int DUPLICATE = 2;
+
+        private static final int HEADER_SIZE = 64;
+        private static final int HEADER_CAPACITY = 0;
+
+        private static final int SLOT_SIZE = 24;
+        private static final int SLOT_HIGH = 0;
+        private static final int SLOT_LOW = 8;
+        private static final int SLOT_DEADLINE = 16;
+
+        private static final int PROBES = 16;
+
+        /**
+         * Largest power of two which slots fit into a single buffer, buffers are indexed by int.
+         */
+        static final int MAX_CAPACITY = 1 << 26;
+
+        private final ByteBuffer buffer;
+        private final int capacity;
+        private final Lock lock;
+        private final FileChannel channel;
+
+        private Table(ByteBuffer buffer, int capacity, Lock lock, FileChannel channel) {
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.lock = lock;
+            this.channel = channel;
+        }
+
+        static Table allocate(int capacity) {
+            return new Table(ByteBuffer.allocate((int) size(capacity)), capacity, new ReentrantLock(), null);
+        }
+
+        static Table open(Path file, int defaultCapacity) {
+            Path path = file.toAbsolutePath().normalize();
+            propagate(() -> Files.createDirectories(path.getParent()));
+            Lock lock = JVM_LOCKS.computeIfAbsent(path, k -> new ReentrantLock());
+            FileChannel channel = propagate(() -> FileChannel.open(path, CREATE, READ, WRITE));
+            // capacity is defined by the process which created the file
+            MappedByteBuffer header = propagate(() -> channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE));
+            int capacity = locked(lock, channel, () -> {
+                if (header.getInt(HEADER_CAPACITY) == 0) {
+                    header.putInt(HEADER_CAPACITY, defaultCapacity);
+                }
+                return header.getInt(HEADER_CAPACITY);
+            });
+            // mapping beyond the end of the file extends it with zeros, which is an empty table
+            if (capacity < PROBES || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1) {
+                propagate(() -> {
+                    channel.close();
+                    return null;
+                });
+                throw new IllegalStateException("File " + path + " holds invalid capacity " + capacity);
+            }
+            MappedByteBuffer buffer = propagate(() -> channel.map(FileChannel.MapMode.READ_WRITE, 0, size(capacity)));
+            return new Table(buffer, capacity, lock, channel);
+        }
+
+        static int capacity(int maxEntries) {
+            if (maxEntries > MAX_CAPACITY) {
+                throw new IllegalArgumentException("Max entries should not be greater than " + MAX_CAPACITY);
+            }
+            return Math.max(PROBES, Integer.highestOneBit(Math.max(maxEntries, 1) - 1) << 1);
+        }
+
+        static long size(int capacity) {
+            return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        }
+
+        <T> T locked(Supplier<T> action) {
+            return locked(lock, channel, action);
+        }
+
+        private static <T> T locked(Lock lock, FileChannel channel, Supplier<T> action) {
+            lock.lock();
+            try {
+                if (channel == null) {
+                    return action.get();
+                }
+                FileLock fileLock = propagate(() -> channel.lock(0, HEADER_SIZE, false));
+                try {
+                    return action.get();
+                } finally {
+                    propagate(() -> {
+                        fileLock.release();
+                        return null;
+                    });
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Nearest deadline is evicted when all probed slots are taken, it is the entry which would expire first.
+         */
+        int add(long high, long low, long now, long deadline) {
+            int free = -1;
+            int nearest = -1;
+            long nearestDeadline = Long.MAX_VALUE;
+            for (int i = 0; i < PROBES; i++) {
+                int position = position(low, i);
+                long slotDeadline = buffer.getLong(position + SLOT_DEADLINE);
+                if (slotDeadline <= now) {
+                    if (free < 0) {
+                        free = position;
+                    }
+                    continue;
+                }
+                if (buffer.getLong(position + SLOT_HIGH) == high && buffer.getLong(position + SLOT_LOW) == low) {
+                    return DUPLICATE;
+                }
+                if (slotDeadline < nearestDeadline) {
+                    nearestDeadline = slotDeadline;
+                    nearest = position;
+                }
+            }
+            int position = free >= 0 ? free : nearest;
+            buffer.putLong(position + SLOT_HIGH, high);
+            buffer.putLong(position + SLOT_LOW, low);
+            buffer.putLong(position + SLOT_DEADLINE, deadline);
+            return free >= 0 ? ADDED : EVICTED;
+        }
+
+        void remove(long high, long low) {
+            for (int i = 0; i < PROBES; i++) {
+                int position = position(low, i);
+                if (buffer.getLong(position + SLOT_HIGH) == high && buffer.getLong(position + SLOT_LOW) == low) {
+                    buffer.putLong(position + SLOT_DEADLINE, 0);
+                    return;
+                }
+            }
+        }
+
+        long count(long now) {
+            long count = 0;
+            for (int i = 0; i < capacity; i++) {
+                if (buffer.getLong(HEADER_SIZE + i * SLOT_SIZE + SLOT_DEADLINE) > now) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        long memoryUsage() {
+            return size(capacity);
+        }
+
+        void close() {
+            if (channel != null) {
+                propagate(() -> {
+                    channel.close();
+                    return null;
+                });
+            }
+        }
+
+        private int position(long low, int probe) {
+            return HEADER_SIZE + (int) ((low + probe) & (capacity - 1)) * SLOT_SIZE;
+        }
+    }
+}
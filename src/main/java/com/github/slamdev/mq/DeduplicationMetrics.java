@@ -0,0 +1,82 @@
+package com.github.slamdev.mq;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of a {@link DeduplicatingQueueService}. Hits, misses and evictions are counted per instance,
+ * entries and memory describe the whole window, which can be shared by several processes.
+ */
+public class DeduplicationMetrics {
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final LongSupplier entryCount;
+
+    private final long memoryUsage;
+
+    DeduplicationMetrics(LongSupplier entryCount, long memoryUsage) {
+        this.entryCount = entryCount;
+        this.memoryUsage = memoryUsage;
+    }
+
+    /**
+     * @return number of dropped duplicates
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return number of pushed messages
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return number of entries removed before their window ended because the table was full,
+     * duplicates of such messages are not detected
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * Scans the whole table, so it should not be called on a hot path.
+     *
+     * @return number of entries which window has not ended yet
+     */
+    public long getEntryCount() {
+        return entryCount.getAsLong();
+    }
+
+    /**
+     * @return bytes taken by the table, it is allocated upfront and never grows
+     */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    void recordHit() {
+        hitCount.increment();
+    }
+
+    void recordMiss() {
+        missCount.increment();
+    }
+
+    void recordEviction() {
+        evictionCount.increment();
+    }
+}
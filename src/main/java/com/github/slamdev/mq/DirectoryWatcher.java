@@ -0,0 +1,151 @@
+package com.github.slamdev.mq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Parks threads until a watched directory is changed by any process.
+ * <p>
+ * Every directory has a version which is incremented when the file system reports a change in it.
+ * Callers should read the version before checking the directory content and wait only while the version
+ * is unchanged, so changes made between the check and the wait are not lost.
+ * <p>
+ * Watching thread is started on the first registration, so instances which never wait cost nothing.
+ */
+class DirectoryWatcher implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    private final Map<Path, DirectoryState> directories = new ConcurrentHashMap<>();
+
+    private final Map<WatchKey, DirectoryState> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Changed together with any watched directory.
+     */
+    private final DirectoryState any = new DirectoryState();
+
+    private WatchService watchService;
+
+    long version(Path dir) {
+        return directories.computeIfAbsent(dir, this::register).version;
+    }
+
+    /**
+     * Version which is changed when any watched directory is changed, the given directories are watched
+     * from now on.
+     */
+    long version(Collection<Path> dirs) {
+        dirs.forEach(dir -> directories.computeIfAbsent(dir, this::register));
+        return any.version;
+    }
+
+    /**
+     * @return false if the timeout elapsed before the directory was changed
+     */
+    boolean await(Path dir, long version, long timeout, TimeUnit unit) throws InterruptedException {
+        return directories.computeIfAbsent(dir, this::register).await(version, unit.toNanos(timeout));
+    }
+
+    /**
+     * Waits for a change of any watched directory.
+     *
+     * @param version the one returned by {@link #version(Collection)}
+     * @return false if the timeout elapsed before a directory was changed
+     */
+    boolean await(long version, long timeout, TimeUnit unit) throws InterruptedException {
+        return any.await(version, unit.toNanos(timeout));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOGGER.warn("", e);
+            }
+        }
+    }
+
+    private synchronized DirectoryState register(Path dir) {
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this::watch, "directory-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            DirectoryState state = new DirectoryState();
+            keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), state);
+            return state;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                key.reset();
+                DirectoryState state = keys.get(key);
+                if (state != null) {
+                    state.signal();
+                    any.signal();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Directory watcher is stopped");
+        }
+    }
+
+    private static class DirectoryState {
+        final Lock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        volatile long version;
+
+        boolean await(long version, long nanos) throws InterruptedException {
+            lock.lock();
+            try {
+                while (this.version == version) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = changed.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void signal() {
+            lock.lock();
+            try {
+                version++;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.slamdev.mq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines when a push to {@link FileQueueService} returns relative to the moment the message is on disk:
+ * - {@link #NONE} -> push returns once the message is in the page cache, a crash of the OS or a power loss
+ * can lose acknowledged messages, a crash of the JVM can't
+ * - {@link #SYNC} -> every push forces the body, the directory entry and the index to disk before returning
+ * - {@link #groupCommit(long, TimeUnit)} -> the directory and the index are forced once per window for all pushes
+ * completed during the window, so concurrent producers share that cost. Every body is still a file of its own,
+ * which its producer forces before publishing it, so a push costs at least one force of its body even within
+ * a window: the window saves the two other forces of {@link #SYNC}, and it is up to the file system whether
+ * concurrent forces of different files share a journal commit
+ * <p>
+ * Deletes and visibility changes are never forced: losing them redelivers a message, which is allowed anyway.
+ */
+public final class Durability {
+
+    public static final Durability NONE = new Durability(false, -1);
+
+    public static final Durability SYNC = new Durability(true, 0);
+
+    private final boolean force;
+
+    private final long groupCommitNanos;
+
+    private Durability(boolean force, long groupCommitNanos) {
+        this.force = force;
+        this.groupCommitNanos = groupCommitNanos;
+    }
+
+    /**
+     * @param window max time a push waits for other pushes to be forced together,
+     *               so it bounds the added latency of a single push
+     */
+    public static Durability groupCommit(long window, TimeUnit unit) {
+        return new Durability(true, unit.toNanos(window));
+    }
+
+    boolean isForced() {
+        return force;
+    }
+
+    boolean isGroupCommit() {
+        return groupCommitNanos > 0;
+    }
+
+    long getGroupCommitNanos() {
+        return groupCommitNanos;
+    }
+
+    @Override
+    public String toString() {
+        if (!force) {
+            return "NONE";
+        }
+        return isGroupCommit() ? "GROUP_COMMIT(" + groupCommitNanos + "ns)" : "SYNC";
+    }
+}
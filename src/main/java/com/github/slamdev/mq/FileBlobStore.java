@@ -0,0 +1,82 @@
+package com.github.slamdev.mq;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps every blob in a separate file of the directory, so it can be shared by processes of the same host
+ * the same way {@link FileQueueService} storage is.
+ * <p>
+ * Blob is written to a temporary file which is renamed when it is complete and synced,
+ * so a reader never sees a partially written blob, even after a crash.
+ */
+public class FileBlobStore implements BlobStore {
+
+    private final Path dir;
+
+    public FileBlobStore(Path dir) {
+        this.dir = dir;
+        propagate(() -> Files.createDirectories(dir));
+    }
+
+    @Override
+    public String put(ByteBuffer blob) {
+        String key = UUID.randomUUID().toString();
+        Path tmp = dir.resolve(key + ".tmp");
+        propagate(() -> {
+            try (FileChannel channel = FileChannel.open(tmp, CREATE_NEW, WRITE)) {
+                ByteBuffer buffer = blob.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            return Files.move(tmp, file(key), ATOMIC_MOVE);
+        });
+        return key;
+    }
+
+    @Override
+    public ByteBuffer get(String key) {
+        return propagate(() -> {
+            try (FileChannel channel = FileChannel.open(file(key), READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // reading until the buffer is full
+                }
+                ((Buffer) buffer).flip();
+                return buffer;
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void delete(String key) {
+        propagate(() -> Files.deleteIfExists(file(key)));
+    }
+
+    private Path file(String key) {
+        return dir.resolve(key + ".blob");
+    }
+
+    private static <T> T propagate(Callable<T> action) {
+        try {
+            return action.call();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -4,167 +4,672 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
-public class FileQueueService implements QueueService {
+/**
+ * File based queue which keeps every message body in a separate file and coordinates consumers
+ * of all processes through a memory mapped index.
+ * <p>
+ * Every queue directory contains:
+ * - queue.idx -> header (head, ready and tail sequences, nearest visibility deadline, numbers of live, in-flight
+ * and delayed messages) and a ring of slots
+ * (sequence, visibility deadline, state, receive count), one slot per message which is not deleted yet
+ * - N.msg -> body of the message with sequence N, N is also the receipt handle
+ * <p>
+ * For locking there are two options:
+ * - lock per message file -> every pull lists the directory and tries the files one by one,
+ * so the cost grows with the backlog and with the number of competing processes
+ * - lock of the index header region -> all operations are serialized, but an operation is a few reads
+ * and writes of the mapped index and never touches the directory
+ * <p>
+ * Current implementation uses the header region lock together with a thread lock shared by the JVM.
+ * Messages are delivered in FIFO order: sequences below the ready one were delivered at least once,
+ * so a pull takes the ready slot in O(1) and scans delivered slots only when the nearest visibility deadline
+ * has passed. Ring capacity limits the number of not deleted messages of a queue.
+ * <p>
+ * Push durability is defined by {@link Durability} of the queue, default one is given to the constructor.
+ * <p>
+ * The index is the checkpoint of the queue, so opening an existing storage directory never reads message files:
+ * - every queue directory is opened and its index is validated, which costs a sequential scan of the slots
+ * of not deleted messages
+ * - incoming files left by crashed producers are removed
+ * - message which index entry survived a crash but body did not is deleted when it is pulled
+ */
+public class FileQueueService implements QueueService, AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileQueueService.class);
 
-    private static final String FILE_NAME = "%d.%s.txt";
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
 
-    private final Map<String, Lock> messageLocks = new ConcurrentHashMap<>();
+    private static final String MESSAGE_FILE = "%d.msg";
+
+    private static final String INDEX_FILE = "queue.idx";
+
+    /**
+     * Error code of SQS for the same failure.
+     */
+    static final String INVALID_RECEIPT_HANDLE = "ReceiptHandleIsInvalid";
+
+    /**
+     * Error code of SQS for an exceeded limit, reported for entries pushed to a full queue.
+     */
+    static final String QUEUE_FULL = "OverLimit";
+
+    /**
+     * Error code of SQS for a failure of the service itself, reported for entries which failed to be published.
+     */
+    static final String INTERNAL_FAILURE = "InternalFailure";
+
+    private static final String INCOMING_DIR = ".incoming";
+
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * Incoming file is moved to the queue a few milliseconds after it is created,
+     * so older files were left by crashed producers, and not by the live ones.
+     */
+    private static final long ORPHAN_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Message being moved to the dead-letter queue is hidden for this time.
+     */
+    private static final long DEAD_LETTER_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_HEAD = 0;
+    private static final int HEADER_READY = 8;
+    private static final int HEADER_TAIL = 16;
+    private static final int HEADER_NEXT_VISIBLE_AT = 24;
+    private static final int HEADER_CAPACITY = 32;
+    private static final int HEADER_LIVE = 40;
+    private static final int HEADER_IN_FLIGHT = 48;
+    private static final int HEADER_DELAYED = 56;
+
+    private static final int SLOT_SIZE = 24;
+    private static final int SLOT_SEQUENCE = 0;
+    private static final int SLOT_VISIBLE_AT = 8;
+    private static final int SLOT_STATE = 16;
+    private static final int SLOT_RECEIVE_COUNT = 20;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_LIVE = 1;
+    private static final int STATE_DELETED = 2;
+
+    /**
+     * File locks are held on behalf of the whole JVM, and taking an overlapping lock from the same JVM fails,
+     * so several service instances sharing a storage directory should be serialized by the same thread lock.
+     */
+    private static final Map<Path, Lock> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private final Map<String, QueueIndex> queues = new ConcurrentHashMap<>();
+
+    private final DirectoryWatcher watcher = new DirectoryWatcher();
+
+    /**
+     * Position in the list of the queue which the next multi-queue pull tries first, the one after the queue
+     * served by the previous pull, so non-empty queues are served in turns however many empty ones are between.
+     */
+    private final AtomicInteger nextQueue = new AtomicInteger();
 
     private final Path storage;
 
+    private final Path incoming;
+
+    private final int capacity;
+
+    private final Durability durability;
+
     public FileQueueService() {
-        storage = propagate(() -> Files.createTempDirectory("queues"));
+        this(propagate(() -> Files.createTempDirectory("queues")));
+    }
+
+    /**
+     * Processes which use the same storage directory share the queues.
+     */
+    public FileQueueService(Path storage) {
+        this(storage, Durability.NONE);
+    }
+
+    /**
+     * @param durability default durability of queues, can be changed per queue by
+     *                   {@link #setDurability(String, Durability)}
+     */
+    public FileQueueService(Path storage, Durability durability) {
+        this(storage, DEFAULT_CAPACITY, durability);
+    }
+
+    FileQueueService(Path storage, int capacity) {
+        this(storage, capacity, Durability.NONE);
     }
 
+    /**
+     * @param capacity max number of not deleted messages per queue, used only when the queue is created
+     */
+    FileQueueService(Path storage, int capacity, Durability durability) {
+        this.storage = storage;
+        this.capacity = capacity;
+        this.durability = durability;
+        incoming = propagate(() -> Files.createDirectories(storage.resolve(INCOMING_DIR)));
+        recover();
+    }
+
+    /**
+     * Applies to pushes of this instance only, other processes use their own setting.
+     */
+    public void setDurability(String queueUrl, Durability durability) {
+        queue(queueUrl).setDurability(durability);
+    }
+
+    /**
+     * Ignores a receipt handle which was not issued by this service, the same way as a handle of a deleted message.
+     */
     @Override
     public void delete(String queueUrl, String receiptHandle) {
-        propagate(() -> Files.deleteIfExists(storage.resolve(queueUrl).resolve(receiptHandle)));
-        messageLocks.remove(receiptHandle);
+        QueueEvents.Delete event = new QueueEvents.Delete();
+        event.begin();
+        QueueIndex queue = existingQueue(queueUrl);
+        long sequence = parseReceiptHandle(receiptHandle);
+        if (queue != null && sequence >= 0 && queue.locked(() -> queue.delete(sequence))) {
+            deleteMessageFile(queue.dir, sequence);
+        }
+        commit(event, queueUrl, 1);
     }
 
+    /**
+     * Receipt handles which were not issued by this service are reported as failures, the others are deleted.
+     */
     @Override
-    public void push(String queueUrl, String messageBody) {
-        Path queueDir = storage.resolve(queueUrl);
-        propagate(() -> Files.createDirectories(queueDir));
-        Message message = new Message(messageBody, UUID.randomUUID().toString());
-        String fileName = String.format(FILE_NAME, 0, message.getReceiptHandle());
-        Path messageFile = propagate(() -> Files.createFile(queueDir.resolve(fileName)));
-        messageLocks.put(message.getReceiptHandle(), new ReentrantLock());
-        propagate(() -> Files.write(messageFile, message.getMessageBody().getBytes(UTF_8)));
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        QueueEvents.Delete event = new QueueEvents.Delete();
+        event.begin();
+        QueueIndex queue = existingQueue(queueUrl);
+        List<BatchResult.Failure> failures = new ArrayList<>();
+        List<Long> sequences = new ArrayList<>(receiptHandles.size());
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            long sequence = parseReceiptHandle(receiptHandles.get(i));
+            if (sequence < 0) {
+                failures.add(new BatchResult.Failure(i, INVALID_RECEIPT_HANDLE,
+                        "Receipt handle " + receiptHandles.get(i) + " is invalid"));
+            } else {
+                sequences.add(sequence);
+            }
+        }
+        List<Long> deleted = queue == null ? Collections.emptyList() : queue.locked(() -> {
+            List<Long> live = new ArrayList<>();
+            for (long sequence : sequences) {
+                if (queue.delete(sequence)) {
+                    live.add(sequence);
+                }
+            }
+            return live;
+        });
+        deleted.forEach(sequence -> deleteMessageFile(queue.dir, sequence));
+        commit(event, queueUrl, sequences.size());
+        return failures.isEmpty() ? BatchResult.successful() : new BatchResult(failures);
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        QueueIndex queue = existingQueue(queueUrl);
+        long sequence = parseReceiptHandle(receiptHandle);
+        if (queue == null || sequence < 0) {
+            return;
+        }
+        queue.locked(() -> {
+            queue.changeVisibility(sequence, visibilityTimeout);
+            return null;
+        });
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        push(queueUrl, body, 0, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Lock should be performed on both file system and thread levels,
-     * since Java doesn't guarantee that file system lock will be taken into account in multi-thread processing
-     * <p>
-     * For file system lock there are two options:
-     * - shared file lock -> low throughput since all processes will wait until one will finish it's job
-     * - lock per file -> other processes will skip locked file and process other files
-     * <p>
-     * For thread level lock there are two options:
-     * - synchronization on method level -> low throughput since all threads will wait until one will finish it's job
-     * - lock per object -> other threads will skip locked object and process other objects
-     * <p>
-     * Current implementation uses lock per file and lock per object options.
+     * Delayed message is appended with its visibility deadline, so consumers step over it
+     * the same way as over a message in flight.
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        QueueEvents.Push event = new QueueEvents.Push();
+        event.begin();
+        QueueIndex queue = queue(queueUrl);
+        Path file = writeIncoming(body, queue.durability.isForced());
+        long visibleAt = delay > 0 ? System.currentTimeMillis() + unit.toMillis(delay) : 0;
+        boolean appended;
+        try {
+            appended = queue.locked(() -> queue.append(file, visibleAt, this::publish));
+        } catch (RuntimeException e) {
+            deleteIncoming(file);
+            throw e;
+        }
+        if (!appended) {
+            deleteIncoming(file);
+            throw new IllegalStateException("Queue " + queueUrl + " is full");
+        }
+        queue.commit();
+        if (event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.messages = 1;
+            event.size = body.remaining();
+            event.commit();
+        }
+    }
+
+    /**
+     * Bodies which do not fit into the queue or fail to be published are reported as failures, the others
+     * are pushed. A failure to write the bodies fails the whole batch before any of them is published.
      */
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        QueueEvents.Push event = new QueueEvents.Push();
+        event.begin();
+        QueueIndex queue = queue(queueUrl);
+        boolean force = queue.durability.isForced();
+        List<Path> files = new ArrayList<>(bodies.size());
+        try {
+            bodies.forEach(body -> files.add(writeIncoming(body, force)));
+        } catch (RuntimeException e) {
+            files.forEach(FileQueueService::deleteIncoming);
+            throw e;
+        }
+        List<BatchResult.Failure> failures = queue.locked(() -> {
+            List<BatchResult.Failure> failed = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    if (!queue.append(files.get(i), 0, this::publish)) {
+                        failed.add(new BatchResult.Failure(i, QUEUE_FULL, "Queue " + queueUrl + " is full"));
+                    }
+                } catch (RuntimeException e) {
+                    failed.add(new BatchResult.Failure(i, INTERNAL_FAILURE, String.valueOf(e.getMessage())));
+                }
+            }
+            return failed;
+        });
+        failures.forEach(failure -> deleteIncoming(files.get(failure.getIndex())));
+        if (failures.size() < files.size()) {
+            queue.commit();
+        }
+        if (event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.messages = bodies.size() - failures.size();
+            event.size = bodies.stream().mapToLong(ByteBuffer::remaining).sum();
+            event.commit();
+        }
+        return failures.isEmpty() ? BatchResult.successful() : new BatchResult(failures);
+    }
+
     @Override
     public Message pull(String queueUrl, int visibilityTimeout) {
-        Path queueDir = storage.resolve(queueUrl);
-        Stream<Path> stream = propagate(() -> Files.list(queueDir));
-        List<Path> files = stream.collect(Collectors.toList());
-        // Stream from Files.list should be closed explicitly,
-        // see https://stackoverflow.com/questions/26334421/java-nio-file-filesystemexception-proc-too-many-open-files
-        stream.close();
-        for (Path file : files) {
-            if (extractExpireTime(file).isAfter(Instant.now())) {
+        List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Slots are claimed under the lock, bodies are read after the lock is released.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        QueueEvents.Pull event = new QueueEvents.Pull();
+        event.begin();
+        QueueIndex queue = existingQueue(queueUrl);
+        List<Message> messages = queue == null
+                ? new ArrayList<>() : claimMessages(queue, visibilityTimeout, maxMessages).messages;
+        commit(event, queueUrl, messages);
+        return messages;
+    }
+
+    /**
+     * Queue directory is watched for created files, so pushes from any process wake up the consumer.
+     * Wait is limited by the nearest visibility deadline of the queue, so the consumer wakes up when
+     * in-flight message becomes visible again. Queue which does not exist yet is waited for, not created.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        QueueEvents.Pull event = new QueueEvents.Pull();
+        event.begin();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+        while (true) {
+            Path dir = watchedDir(queueUrl);
+            long version = watcher.version(dir);
+            QueueIndex queue = existingQueue(queueUrl);
+            if (queue != null && !queue.dir.equals(dir)) {
+                // created in between, its own directory is watched from now on
                 continue;
             }
-            Lock lock = messageLocks.get(extractReceiptHandle(file));
-            Message message = withThreadLock(lock, () -> withFileLock(file, () -> {
-                Path newFile = assignExpireTime(file, visibilityTimeout);
-                return convertToMessage(newFile);
-            }));
-            if (message != null) {
-                LOGGER.info("Message found: {}", message.getMessageBody());
-                return message;
+            Claim claim = queue == null ? new Claim() : claimMessages(queue, visibilityTimeout, maxMessages);
+            long remaining = deadline - System.nanoTime();
+            if (!claim.messages.isEmpty() || remaining <= 0) {
+                commit(event, queueUrl, claim.messages);
+                return claim.messages;
+            }
+            if (claim.nextVisibleAt != Long.MAX_VALUE) {
+                long untilVisible = claim.nextVisibleAt - System.currentTimeMillis();
+                remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(Math.max(untilVisible, 0)));
+            }
+            try {
+                watcher.await(dir, version, remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                commit(event, queueUrl, claim.messages);
+                return claim.messages;
+            }
+        }
+    }
+
+    /**
+     * Queues are checked by the ready and tail sequences and the nearest visibility deadline in the index header,
+     * read without the lock, so a queue which has nothing to deliver is skipped without locking the index.
+     */
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout) {
+        int start = queueUrls.isEmpty() ? 0 : Math.floorMod(nextQueue.get(), queueUrls.size());
+        for (int i = 0; i < queueUrls.size(); i++) {
+            int position = (start + i) % queueUrls.size();
+            String queueUrl = queueUrls.get(position);
+            QueueIndex queue = existingQueue(queueUrl);
+            if (queue == null || !queue.mayHaveVisible()) {
+                continue;
+            }
+            List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1);
+            if (!messages.isEmpty()) {
+                nextQueue.set(position + 1);
+                return messages.get(0).withQueueUrl(queueUrl);
             }
         }
         return null;
     }
 
-    private <T> T withThreadLock(Lock lock, Supplier<T> action) {
-        if (lock != null && lock.tryLock()) {
+    /**
+     * All queue directories are watched, so a push to any of them wakes up the consumer.
+     */
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout, int waitTimeSeconds) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+        while (true) {
+            List<Path> dirs = new ArrayList<>(queueUrls.size());
+            queueUrls.forEach(queueUrl -> dirs.add(watchedDir(queueUrl)));
+            long version = watcher.version(dirs);
+            Message message = pullAny(queueUrls, visibilityTimeout);
+            long remaining = deadline - System.nanoTime();
+            if (message != null || remaining <= 0) {
+                return message;
+            }
+            long now = System.currentTimeMillis();
+            for (String queueUrl : queueUrls) {
+                QueueIndex queue = existingQueue(queueUrl);
+                long nextVisibleAt = queue == null ? Long.MAX_VALUE : queue.nextVisibleAt();
+                if (nextVisibleAt != Long.MAX_VALUE) {
+                    remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(Math.max(nextVisibleAt - now, 0)));
+                }
+            }
             try {
-                return action.get();
-            } finally {
-                lock.unlock();
+                watcher.await(version, remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             }
         }
-        return null;
     }
 
-    private <T> T withFileLock(Path file, Supplier<T> action) {
-        if (!Files.exists(file)) {
-            // file can not exists if other thread\process renamed it before the lock
-            return null;
+    /**
+     * Applies to pulls of this instance only, other processes use their own setting.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        queue(queueUrl).redrivePolicy = redrivePolicy;
+    }
+
+    /**
+     * Counters are kept in the index header by every operation of any process and read without the lock.
+     * Age of the oldest message is the age of the body file of the head sequence.
+     */
+    @Override
+    public QueueAttributes getQueueAttributes(String queueUrl) {
+        QueueIndex queue = existingQueue(queueUrl);
+        return queue == null ? QueueAttributes.empty() : queue.attributes();
+    }
+
+    @Override
+    public void close() {
+        watcher.close();
+        queues.values().forEach(QueueIndex::close);
+        queues.clear();
+    }
+
+    private static void commit(QueueEvents.Delete event, String queueUrl, int messages) {
+        if (event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.messages = messages;
+            event.commit();
         }
-        FileChannel channel = null;
-        FileLock fileLock = null;
-        try {
-            // try-with-resources should not be used
-            // since file lock should be released before closing channel
-            channel = FileChannel.open(file, WRITE);
-            fileLock = channel.tryLock();
-            if (fileLock == null) {
-                // skipping if other process hold the file lock already
+    }
+
+    private static void commit(QueueEvents.Pull event, String queueUrl, List<Message> messages) {
+        if (event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.hit = !messages.isEmpty();
+            event.messages = messages.size();
+            event.size = messages.stream().mapToLong(Message::size).sum();
+            event.commit();
+        }
+    }
+
+    /**
+     * Body can be missing only if the message was deleted after the claim or the body was lost in a crash,
+     * deleting it again does nothing in the first case and drops the lost message in the second one.
+     * Slots of missing bodies are replaced by the next claim, so lost messages never cause an empty pull.
+     * Dead letters are pushed to the dead-letter queue and deleted after the lock is released.
+     */
+    private Claim claimMessages(QueueIndex queue, int visibilityTimeout, int maxMessages) {
+        Claim result = new Claim();
+        RedrivePolicy redrivePolicy = queue.redrivePolicy;
+        while (true) {
+            int requested = maxMessages - result.messages.size();
+            Claim claim = queue.locked(() -> queue.claim(visibilityTimeout, requested, redrivePolicy));
+            if (claim.expired > 0) {
+                QueueEvents.VisibilityExpired event = new QueueEvents.VisibilityExpired();
+                if (event.shouldCommit()) {
+                    event.queue = queue.dir.getFileName().toString();
+                    event.messages = claim.expired;
+                    event.commit();
+                }
+            }
+            result.nextVisibleAt = claim.nextVisibleAt;
+            List<Long> lost = new ArrayList<>();
+            for (int i = 0; i < claim.sequences.size(); i++) {
+                long sequence = claim.sequences.get(i);
+                Message message = readMessage(queue.dir, sequence, claim.receiveCounts.get(i));
+                if (message != null) {
+                    result.messages.add(message);
+                } else {
+                    lost.add(sequence);
+                }
+            }
+            for (long sequence : claim.deadLetters) {
+                Message message = readMessage(queue.dir, sequence, 0);
+                if (message != null) {
+                    push(redrivePolicy.getDeadLetterQueueUrl(), message.getBody());
+                }
+                lost.add(sequence);
+            }
+            if (lost.isEmpty()) {
+                return result;
+            }
+            queue.locked(() -> {
+                lost.forEach(queue::delete);
                 return null;
+            });
+            lost.forEach(sequence -> deleteMessageFile(queue.dir, sequence));
+            if (result.messages.size() == maxMessages) {
+                return result;
             }
-            return action.get();
-        } catch (IOException e) {
-            LOGGER.warn("", e);
-        } finally {
-            if (fileLock != null) {
-                try {
-                    fileLock.release();
-                } catch (IOException e) {
-                    LOGGER.warn("", e);
+        }
+    }
+
+    private void recover() {
+        long start = System.nanoTime();
+        long threshold = System.currentTimeMillis() - ORPHAN_AGE_MILLIS;
+        try (Stream<Path> files = propagate(() -> Files.list(incoming))) {
+            files.filter(file -> propagate(() -> Files.getLastModifiedTime(file)).toMillis() < threshold)
+                    .forEach(file -> propagate(() -> Files.deleteIfExists(file)));
+        }
+        long pending = 0;
+        try (Stream<Path> dirs = propagate(() -> Files.list(storage))) {
+            for (Path dir : (Iterable<Path>) dirs::iterator) {
+                if (Files.exists(dir.resolve(INDEX_FILE))) {
+                    pending += queue(dir.getFileName().toString()).pending;
                 }
             }
-            if (channel != null) {
-                try {
-                    channel.close();
-                } catch (IOException e) {
-                    LOGGER.warn("", e);
+        }
+        LOGGER.info("Opened {} queues with {} pending messages in {} ms", queues.size(), pending,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private QueueIndex queue(String queueUrl) {
+        return queues.computeIfAbsent(queueUrl, k -> new QueueIndex(storage.resolve(k), capacity, durability));
+    }
+
+    /**
+     * Read paths open only the queues which some process created, so they never create a directory and an index.
+     *
+     * @return null if the queue does not exist yet
+     */
+    private QueueIndex existingQueue(String queueUrl) {
+        QueueIndex queue = queues.get(queueUrl);
+        if (queue != null || !Files.exists(storage.resolve(queueUrl).resolve(INDEX_FILE))) {
+            return queue;
+        }
+        return queue(queueUrl);
+    }
+
+    /**
+     * Directory which changes when a message is pushed to the queue, or when the queue is created:
+     * the queue directory is created before its index, so the storage directory is watched until it exists.
+     */
+    private Path watchedDir(String queueUrl) {
+        QueueIndex queue = queues.get(queueUrl);
+        if (queue != null) {
+            return queue.dir;
+        }
+        Path dir = storage.resolve(queueUrl);
+        return Files.isDirectory(dir) ? dir : storage;
+    }
+
+    /**
+     * Message is written to a separate directory and atomically moved to the queue directory,
+     * so consumers never observe a file which is not completely written.
+     * Forced body is on disk before it is moved, so the directory entry never points to a lost body.
+     */
+    private Path writeIncoming(ByteBuffer body, boolean force) {
+        Path file = incoming.resolve(UUID.randomUUID().toString());
+        propagate(() -> {
+            try (FileChannel channel = FileChannel.open(file, CREATE_NEW, WRITE)) {
+                ByteBuffer buffer = body.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (force) {
+                    channel.force(true);
+                }
+            }
+            return null;
+        });
+        return file;
+    }
+
+    /**
+     * Moves the written body to the queue directory, which wakes up the consumers watching the directory.
+     * <p>
+     * Package-private, so tests can override it to observe the index at the moment the body appears
+     * or to fail the move. Called with the queue lock held.
+     */
+    void publish(Path incomingFile, Path messageFile) {
+        propagate(() -> Files.move(incomingFile, messageFile, ATOMIC_MOVE));
+    }
+
+    /**
+     * Large bodies are mapped to memory instead of being copied to the heap, the mapping stays valid
+     * even after the file is deleted.
+     *
+     * @return null if the message was deleted by a consumer which received it before
+     */
+    private static Message readMessage(Path queueDir, long sequence, int receiveCount) {
+        Path file = messageFile(queueDir, sequence);
+        ByteBuffer body;
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                body = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                body = ByteBuffer.allocate((int) size);
+                while (body.hasRemaining() && channel.read(body) >= 0) {
+                    // reading until the buffer is full
                 }
+                ((Buffer) body).flip();
             }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
         }
-        return null;
+        return new Message(body, String.valueOf(sequence), receiveCount);
     }
 
-    private Message convertToMessage(Path file) {
-        byte[] messageBody = propagate(() -> Files.readAllBytes(file));
-        String fileName = file.getFileName().toString();
-        return new Message(new String(messageBody, UTF_8), fileName.split("\\.")[1]);
+    /**
+     * @return -1 if the handle is not a sequence of a message
+     */
+    private static long parseReceiptHandle(String receiptHandle) {
+        try {
+            return Math.max(Long.parseLong(receiptHandle), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    private Instant extractExpireTime(Path file) {
-        String fileName = file.getFileName().toString();
-        long milli = Long.parseLong(fileName.split("\\.")[0]);
-        return Instant.ofEpochMilli(milli);
+    private static void deleteIncoming(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // left to the cleanup of orphans on the next start
+            LOGGER.warn("", e);
+        }
     }
 
-    private String extractReceiptHandle(Path file) {
-        String fileName = file.getFileName().toString();
-        return fileName.split("\\.")[1];
+    private static void deleteMessageFile(Path queueDir, long sequence) {
+        propagate(() -> Files.deleteIfExists(messageFile(queueDir, sequence)));
     }
 
-    private Path assignExpireTime(Path file, int visibilityTimeout) {
-        String oldFileName = file.getFileName().toString();
-        long milli = Instant.now().plus(Duration.ofSeconds(visibilityTimeout)).toEpochMilli();
-        String newFileName = String.format(FILE_NAME, milli, oldFileName.split("\\.")[1]);
-        return propagate(() -> Files.move(file, file.getParent().resolve(newFileName)));
+    private static Path messageFile(Path queueDir, long sequence) {
+        return queueDir.resolve(String.format(MESSAGE_FILE, sequence));
     }
 
     private static <T> T propagate(Callable<T> action) {
@@ -174,4 +679,412 @@ public class FileQueueService implements QueueService {
             throw new IllegalStateException(e);
         }
     }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            LOGGER.warn("", e);
+        }
+    }
+
+    /**
+     * Sequences are never reused, slot of a sequence is its remainder of the ring capacity:
+     * - [head, ready) -> delivered at least once, live or deleted
+     * - [ready, tail) -> never delivered
+     * Head is moved over deleted slots, so a slot is reused only after its message is deleted.
+     * Nearest visibility deadline is a lower bound of deadlines of the live delivered messages.
+     */
+    private static class QueueIndex {
+        final Path dir;
+        final Lock lock;
+        final FileChannel channel;
+        final MappedByteBuffer index;
+        final int capacity;
+        volatile GroupCommit groupCommit;
+        volatile Durability durability;
+        volatile RedrivePolicy redrivePolicy;
+        FileChannel dirChannel;
+        final long pending;
+
+        QueueIndex(Path dir, int defaultCapacity, Durability durability) {
+            this.dir = dir;
+            setDurability(durability);
+            propagate(() -> Files.createDirectories(dir));
+            Path indexFile = dir.resolve(INDEX_FILE).toAbsolutePath().normalize();
+            lock = JVM_LOCKS.computeIfAbsent(indexFile, k -> new ReentrantLock());
+            channel = propagate(() -> FileChannel.open(indexFile, CREATE, READ, WRITE));
+            // capacity is defined by the process which created the queue
+            capacity = locked(() -> {
+                MappedByteBuffer header = propagate(() -> channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE));
+                if (header.getInt(HEADER_CAPACITY) == 0) {
+                    header.putInt(HEADER_CAPACITY, defaultCapacity);
+                }
+                return header.getInt(HEADER_CAPACITY);
+            });
+            // mapping beyond the end of the file extends it with zeros, which is a valid empty queue
+            long size = HEADER_SIZE + (long) SLOT_SIZE * capacity;
+            index = propagate(() -> channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            pending = locked(this::validate);
+        }
+
+        /**
+         * Wait for the lock held by another thread or process is recorded as a contention.
+         */
+        <T> T locked(Supplier<T> action) {
+            QueueEvents.LockContention event = new QueueEvents.LockContention();
+            event.begin();
+            boolean contended = !lock.tryLock();
+            if (contended) {
+                lock.lock();
+            }
+            try {
+                FileLock acquired = propagate(() -> channel.tryLock(0, HEADER_SIZE, false));
+                if (acquired == null) {
+                    contended = true;
+                    acquired = propagate(() -> channel.lock(0, HEADER_SIZE, false));
+                }
+                FileLock fileLock = acquired;
+                if (contended && event.shouldCommit()) {
+                    event.queue = dir.getFileName().toString();
+                    event.shard = -1;
+                    event.commit();
+                }
+                try {
+                    return action.get();
+                } finally {
+                    propagate(() -> {
+                        fileLock.release();
+                        return null;
+                    });
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Repairs the index after a crash of the OS, which could persist only a part of the index pages:
+         * - ready sequence is moved within [head, tail]
+         * - slot which does not belong to its sequence is marked deleted, its message is lost anyway
+         * - nearest visibility deadline is reset, so the next pull recalculates it
+         * Index of a queue used by a live process is valid, so the validation changes nothing in it.
+         *
+         * @return number of not deleted messages
+         */
+        long validate() {
+            long head = head();
+            long tail = index.getLong(HEADER_TAIL);
+            if (head < 0 || tail < head || tail - head > capacity) {
+                throw new IllegalStateException("Index of queue " + dir.getFileName() + " is corrupted, head: "
+                        + head + ", tail: " + tail);
+            }
+            long ready = index.getLong(HEADER_READY);
+            index.putLong(HEADER_READY, Math.min(Math.max(ready, head), tail));
+            index.putLong(HEADER_NEXT_VISIBLE_AT, 0);
+            long pending = 0;
+            long inFlight = 0;
+            long delayed = 0;
+            for (long sequence = head; sequence < tail; sequence++) {
+                int position = position(sequence);
+                int state = index.getInt(position + SLOT_STATE);
+                if (index.getLong(position + SLOT_SEQUENCE) != sequence || state == STATE_FREE) {
+                    index.putLong(position + SLOT_SEQUENCE, sequence);
+                    index.putInt(position + SLOT_STATE, STATE_DELETED);
+                } else if (state == STATE_LIVE) {
+                    pending++;
+                    if (index.getInt(position + SLOT_RECEIVE_COUNT) > 0) {
+                        inFlight++;
+                    } else if (index.getLong(position + SLOT_VISIBLE_AT) != 0) {
+                        delayed++;
+                    }
+                }
+            }
+            // counters are rebuilt, since indexes written before they existed have zeros there
+            index.putLong(HEADER_LIVE, pending);
+            index.putLong(HEADER_IN_FLIGHT, inFlight);
+            index.putLong(HEADER_DELAYED, delayed);
+            advanceHead();
+            return pending;
+        }
+
+        /**
+         * Expired messages are redelivered before the new ones. Delivered slots are scanned only when
+         * the nearest visibility deadline has passed, the deadline is recalculated by a complete scan.
+         */
+        Claim claim(int visibilityTimeout, int maxMessages, RedrivePolicy redrivePolicy) {
+            Claim claim = new Claim();
+            long now = System.currentTimeMillis();
+            long visibleAt = now + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+            long ready = index.getLong(HEADER_READY);
+            long nextVisibleAt = index.getLong(HEADER_NEXT_VISIBLE_AT);
+            if (nextVisibleAt <= now) {
+                nextVisibleAt = Long.MAX_VALUE;
+                for (long sequence = head(); sequence < ready; sequence++) {
+                    int position = position(sequence);
+                    if (index.getInt(position + SLOT_STATE) != STATE_LIVE) {
+                        continue;
+                    }
+                    if (claim.sequences.size() == maxMessages) {
+                        // not scanned slots can contain expired messages
+                        nextVisibleAt = now;
+                        break;
+                    }
+                    long slotVisibleAt = index.getLong(position + SLOT_VISIBLE_AT);
+                    if (slotVisibleAt <= now) {
+                        slotVisibleAt = deliver(claim, sequence, now, visibleAt, redrivePolicy);
+                    }
+                    nextVisibleAt = Math.min(nextVisibleAt, slotVisibleAt);
+                }
+            }
+            long tail = index.getLong(HEADER_TAIL);
+            for (; claim.sequences.size() < maxMessages && ready < tail; ready++) {
+                int position = position(ready);
+                if (index.getInt(position + SLOT_STATE) != STATE_LIVE) {
+                    continue;
+                }
+                long slotVisibleAt = index.getLong(position + SLOT_VISIBLE_AT);
+                if (slotVisibleAt > now) {
+                    // delayed message is left behind the ready sequence and delivered by the scan when it is due
+                    nextVisibleAt = Math.min(nextVisibleAt, slotVisibleAt);
+                    continue;
+                }
+                nextVisibleAt = Math.min(nextVisibleAt, deliver(claim, ready, now, visibleAt, redrivePolicy));
+            }
+            index.putLong(HEADER_READY, ready);
+            index.putLong(HEADER_NEXT_VISIBLE_AT, nextVisibleAt);
+            claim.nextVisibleAt = nextVisibleAt;
+            return claim;
+        }
+
+        /**
+         * Message which exceeded the max receive count is added to the dead letters instead of the claimed
+         * messages and hidden for the time it takes to move it, so a crash in between only redelivers it
+         * to the dead-letter queue.
+         *
+         * @return new visibility deadline of the slot
+         */
+        private long deliver(Claim claim, long sequence, long now, long visibleAt, RedrivePolicy redrivePolicy) {
+            int position = position(sequence);
+            int receiveCount = index.getInt(position + SLOT_RECEIVE_COUNT) + 1;
+            index.putInt(position + SLOT_RECEIVE_COUNT, receiveCount);
+            if (receiveCount > 1) {
+                claim.expired++;
+            } else {
+                if (index.getLong(position + SLOT_VISIBLE_AT) != 0) {
+                    add(HEADER_DELAYED, -1);
+                }
+                add(HEADER_IN_FLIGHT, 1);
+            }
+            if (redrivePolicy != null && redrivePolicy.isExceeded(receiveCount)) {
+                long movedAt = now + DEAD_LETTER_TIMEOUT_MILLIS;
+                index.putLong(position + SLOT_VISIBLE_AT, movedAt);
+                claim.deadLetters.add(sequence);
+                return movedAt;
+            }
+            index.putLong(position + SLOT_VISIBLE_AT, visibleAt);
+            claim.sequences.add(sequence);
+            claim.receiveCounts.add(receiveCount);
+            return visibleAt;
+        }
+
+        /**
+         * Slot, tail and counters are written before the body is published, since publishing the body wakes up
+         * consumers which check the header without the lock. Consumers which take the lock wait for the append,
+         * so they never see the slot without its body. Failed publish takes the slot back.
+         * Incoming file which is not published is left to the caller.
+         *
+         * @param visibleAt deadline of a delayed message, or 0
+         * @return false if the queue is full
+         */
+        boolean append(Path incomingFile, long visibleAt, BiConsumer<Path, Path> publisher) {
+            long head = head();
+            long tail = index.getLong(HEADER_TAIL);
+            if (tail - head >= capacity) {
+                return false;
+            }
+            int position = position(tail);
+            index.putLong(position + SLOT_SEQUENCE, tail);
+            index.putLong(position + SLOT_VISIBLE_AT, visibleAt);
+            index.putInt(position + SLOT_RECEIVE_COUNT, 0);
+            index.putInt(position + SLOT_STATE, STATE_LIVE);
+            index.putLong(HEADER_TAIL, tail + 1);
+            add(HEADER_LIVE, 1);
+            if (visibleAt != 0) {
+                add(HEADER_DELAYED, 1);
+            }
+            try {
+                publisher.accept(incomingFile, messageFile(dir, tail));
+            } catch (RuntimeException e) {
+                index.putInt(position + SLOT_STATE, STATE_FREE);
+                index.putLong(HEADER_TAIL, tail);
+                add(HEADER_LIVE, -1);
+                if (visibleAt != 0) {
+                    add(HEADER_DELAYED, -1);
+                }
+                throw e;
+            }
+            return true;
+        }
+
+        /**
+         * @return false if the message is deleted already or the receipt handle is unknown
+         */
+        boolean delete(long sequence) {
+            if (!isLive(sequence)) {
+                return false;
+            }
+            int position = position(sequence);
+            index.putInt(position + SLOT_STATE, STATE_DELETED);
+            add(HEADER_LIVE, -1);
+            if (index.getInt(position + SLOT_RECEIVE_COUNT) > 0) {
+                add(HEADER_IN_FLIGHT, -1);
+            } else if (index.getLong(position + SLOT_VISIBLE_AT) != 0) {
+                add(HEADER_DELAYED, -1);
+            }
+            advanceHead();
+            return true;
+        }
+
+        /**
+         * Delayed messages are the ones pushed with a deadline and never delivered,
+         * in-flight messages are the delivered ones, the rest of live messages are visible.
+         * Header is read without the lock, so the numbers can come from different moments.
+         */
+        QueueAttributes attributes() {
+            long live = index.getLong(HEADER_LIVE);
+            long inFlight = index.getLong(HEADER_IN_FLIGHT);
+            long delayed = index.getLong(HEADER_DELAYED);
+            if (live <= 0) {
+                return QueueAttributes.empty();
+            }
+            long age;
+            try {
+                long pushedAt = Files.getLastModifiedTime(messageFile(dir, head())).toMillis();
+                age = Math.max(System.currentTimeMillis() - pushedAt, 0);
+            } catch (IOException e) {
+                // head message was deleted in between
+                age = -1;
+            }
+            return new QueueAttributes(Math.max(live - inFlight - delayed, 0), inFlight, delayed, age);
+        }
+
+        /**
+         * Read without the lock, so the answer can be stale: false negative is corrected by the next check.
+         */
+        boolean mayHaveVisible() {
+            return index.getLong(HEADER_READY) < index.getLong(HEADER_TAIL)
+                    || nextVisibleAt() <= System.currentTimeMillis();
+        }
+
+        long nextVisibleAt() {
+            return index.getLong(HEADER_NEXT_VISIBLE_AT);
+        }
+
+        private void add(int field, long delta) {
+            index.putLong(field, index.getLong(field) + delta);
+        }
+
+        private void advanceHead() {
+            long head = head();
+            long ready = index.getLong(HEADER_READY);
+            while (head < ready && index.getInt(position(head) + SLOT_STATE) == STATE_DELETED) {
+                index.putInt(position(head) + SLOT_STATE, STATE_FREE);
+                head++;
+            }
+            index.putLong(HEADER_HEAD, head);
+        }
+
+        /**
+         * Only in-flight messages are changed, which are delivered and not visible yet.
+         */
+        void changeVisibility(long sequence, int visibilityTimeout) {
+            long now = System.currentTimeMillis();
+            int position = position(sequence);
+            if (sequence >= index.getLong(HEADER_READY) || !isLive(sequence)
+                    || index.getLong(position + SLOT_VISIBLE_AT) <= now) {
+                return;
+            }
+            long visibleAt = now + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+            index.putLong(position + SLOT_VISIBLE_AT, visibleAt);
+            index.putLong(HEADER_NEXT_VISIBLE_AT, Math.min(index.getLong(HEADER_NEXT_VISIBLE_AT), visibleAt));
+        }
+
+        void setDurability(Durability durability) {
+            groupCommit = durability.isGroupCommit() ? new GroupCommit(durability.getGroupCommitNanos()) : null;
+            this.durability = durability;
+        }
+
+        /**
+         * Makes appended messages durable according to the durability of the queue, should be called after
+         * the append is completed and the lock is released.
+         */
+        void commit() {
+            GroupCommit current = groupCommit;
+            if (current != null) {
+                current.await(this::force);
+            } else if (durability.isForced()) {
+                force();
+            }
+        }
+
+        /**
+         * Forces the directory entries of the moved bodies and the index to disk.
+         */
+        private void force() {
+            propagate(() -> {
+                synchronized (this) {
+                    if (dirChannel == null) {
+                        dirChannel = FileChannel.open(dir, READ);
+                    }
+                }
+                dirChannel.force(true);
+                return null;
+            });
+            index.force();
+        }
+
+        /**
+         * Only the thread lock is taken, since closing the channel releases the file lock anyway.
+         */
+        void close() {
+            lock.lock();
+            try {
+                closeQuietly(channel);
+                synchronized (this) {
+                    if (dirChannel != null) {
+                        closeQuietly(dirChannel);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isLive(long sequence) {
+            if (sequence < head() || sequence >= index.getLong(HEADER_TAIL)) {
+                return false;
+            }
+            int position = position(sequence);
+            return index.getLong(position + SLOT_SEQUENCE) == sequence
+                    && index.getInt(position + SLOT_STATE) == STATE_LIVE;
+        }
+
+        private long head() {
+            return index.getLong(HEADER_HEAD);
+        }
+
+        private int position(long sequence) {
+            return HEADER_SIZE + (int) (sequence % capacity) * SLOT_SIZE;
+        }
+    }
+
+    private static class Claim {
+        final List<Long> sequences = new ArrayList<>();
+        final List<Integer> receiveCounts = new ArrayList<>();
+        final List<Long> deadLetters = new ArrayList<>();
+        final List<Message> messages = new ArrayList<>();
+        int expired;
+        long nextVisibleAt = Long.MAX_VALUE;
+    }
 }
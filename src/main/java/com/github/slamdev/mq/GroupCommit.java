@@ -0,0 +1,109 @@
+package com.github.slamdev.mq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Batches concurrent requests to force the same files into a single force.
+ * <p>
+ * The first caller which finds no force in progress becomes the leader: it waits for the window, so other
+ * callers can join, then performs the force for every request registered before the force started and
+ * releases them together. Requests registered while the force is running are served by the next leader.
+ * Every force has its own batch, so callers of a failed force get the failure even if a later force
+ * completes before they wake up.
+ */
+class GroupCommit {
+
+    private final long windowNanos;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition committed = lock.newCondition();
+
+    /**
+     * Batch which new requests join, it is replaced when the force of it starts.
+     */
+    private Batch pending = new Batch();
+
+    private boolean committing;
+
+    GroupCommit(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Returns when the force covering this request is completed. Caller should complete its writes before the call.
+     */
+    void await(Runnable force) {
+        lock.lock();
+        try {
+            Batch batch = pending;
+            while (!batch.completed) {
+                if (committing) {
+                    committed.awaitUninterruptibly();
+                } else {
+                    commit(force);
+                }
+            }
+            if (batch.failure != null) {
+                throw new IllegalStateException(batch.failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called with the lock held, the lock is released for the window and the force.
+     */
+    private void commit(Runnable force) {
+        committing = true;
+        lock.unlock();
+        try {
+            sleepWindow();
+        } finally {
+            lock.lock();
+        }
+        Batch batch = pending;
+        pending = new Batch();
+        RuntimeException error = null;
+        lock.unlock();
+        try {
+            force.run();
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            lock.lock();
+            batch.failure = error;
+            batch.completed = true;
+            committing = false;
+            committed.signalAll();
+        }
+    }
+
+    private void sleepWindow() {
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                // window is short, the interrupt is restored for the caller
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Requests covered by a single force, guarded by the lock.
+     */
+    private static class Batch {
+
+        boolean completed;
+
+        RuntimeException failure;
+    }
+}
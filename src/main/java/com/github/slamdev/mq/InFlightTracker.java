@@ -0,0 +1,139 @@
+package com.github.slamdev.mq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size open addressing table of received messages and their visibility deadlines:
+ * - slot -> hash of the receipt handle in the high half and the deadline in seconds in the low half,
+ * so a slot is updated by a single compare-and-set and recording allocates nothing
+ * - expired entries are kept as long as there is room, so a redelivery is detected after the deadline
+ * - table is full -> the entry with the earliest deadline is evicted, so the in-flight count is an underestimate
+ * when more messages are in flight than the table holds
+ * <p>
+ * Handles are compared by hash only, two handles with the same hash are taken for one message.
+ */
+class InFlightTracker {
+
+    static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private static final int PROBES = 8;
+
+    private static final long EMPTY = 0;
+
+    private final long origin = System.nanoTime();
+
+    private final int mask;
+
+    private final AtomicLongArray slots;
+
+    InFlightTracker() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity max number of tracked messages, rounded up to a power of two
+     */
+    InFlightTracker(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, PROBES) * 2 - 1);
+        mask = size - 1;
+        slots = new AtomicLongArray(size);
+    }
+
+    /**
+     * @return true if the message is tracked already, which means it is redelivered
+     */
+    boolean received(String receiptHandle, int visibilityTimeout) {
+        int hash = hash(receiptHandle);
+        long entry = entry(hash, now() + visibilityTimeout);
+        while (true) {
+            int start = hash & mask;
+            int victim = -1;
+            long victimEntry = EMPTY;
+            for (int i = 0; i < PROBES; i++) {
+                int index = (start + i) & mask;
+                long current = slots.get(index);
+                if (current != EMPTY && hash(current) == hash) {
+                    if (slots.compareAndSet(index, current, entry)) {
+                        return true;
+                    }
+                    victim = -2;
+                    break;
+                }
+                if (victim == -1 || victimEntry != EMPTY
+                        && (current == EMPTY || deadline(current) < deadline(victimEntry))) {
+                    victim = index;
+                    victimEntry = current;
+                }
+            }
+            if (victim >= 0 && slots.compareAndSet(victim, victimEntry, entry)) {
+                return false;
+            }
+        }
+    }
+
+    void visibilityChanged(String receiptHandle, int visibilityTimeout) {
+        int hash = hash(receiptHandle);
+        update(hash, entry(hash, now() + visibilityTimeout));
+    }
+
+    void deleted(String receiptHandle) {
+        update(hash(receiptHandle), EMPTY);
+    }
+
+    /**
+     * Scans the whole table, so it is meant to be called by a metrics reader rather than on every operation.
+     */
+    long count() {
+        long now = now();
+        long count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            long current = slots.get(i);
+            if (current != EMPTY && deadline(current) > now) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void update(int hash, long entry) {
+        int start = hash & mask;
+        for (int i = 0; i < PROBES; i++) {
+            int index = (start + i) & mask;
+            long current = slots.get(index);
+            while (current != EMPTY && hash(current) == hash) {
+                if (slots.compareAndSet(index, current, entry)) {
+                    return;
+                }
+                current = slots.get(index);
+            }
+        }
+    }
+
+    /**
+     * @return seconds since the tracker was created
+     */
+    private long now() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - origin);
+    }
+
+    /**
+     * Zero hash is replaced, so an entry is never {@link #EMPTY}.
+     */
+    private static int hash(String receiptHandle) {
+        int hash = receiptHandle.hashCode();
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int hash(long entry) {
+        return (int) (entry >>> Integer.SIZE);
+    }
+
+    private static long deadline(long entry) {
+        return entry & 0xFFFFFFFFL;
+    }
+
+    private static long entry(int hash, long deadline) {
+        return (long) hash << Integer.SIZE | Math.min(deadline, 0xFFFFFFFFL);
+    }
+}
@@ -1,69 +1,898 @@
 package com.github.slamdev.mq;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.time.Duration;
-import java.time.Instant;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.util.Collections.singletonList;
 
+/**
+ * Every queue is split into shards, each shard is an independent queue guarded by its own lock:
+ * - single shard -> strict FIFO, all producers and consumers of the queue contend on one lock
+ * - shard per core -> best-effort FIFO, every thread has a home shard, so threads mostly take different locks
+ * <p>
+ * Producer pushes to the first shard which lock is free, starting from its home shard.
+ * Consumer drains its home shard first and steals from other shards when it is empty. Shards which have nothing
+ * to deliver are skipped without taking their lock, using the counters each shard publishes after every change.
+ * <p>
+ * Receipt handle is the number of the shard and the sequence of the message in the shard.
+ */
 public class InMemoryQueueService implements QueueService {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(FileQueueService.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private static final ThreadLocal<Integer> HOME_SHARD = ThreadLocal.withInitial(THREAD_COUNTER::getAndIncrement);
+
+    private final Map<String, ShardedQueue> queues = new ConcurrentHashMap<>();
+
+    private final int shards;
+
+    /**
+     * Position in the list of the queue which the next multi-queue pull tries first, the one after the queue
+     * served by the previous pull, so non-empty queues are served in turns however many empty ones are between.
+     */
+    private final AtomicInteger nextQueue = new AtomicInteger();
 
-    private final Map<String, List<MessageDescriptor>> queueMessages = new ConcurrentHashMap<>();
+    /**
+     * Consumers waiting for any of several queues, signalled by pushes to any queue while there are such waiters.
+     */
+    private final AtomicInteger anyWaiters = new AtomicInteger();
+    private final Lock anyWaitLock = new ReentrantLock();
+    private final Condition anyPushed = anyWaitLock.newCondition();
+
+    public InMemoryQueueService() {
+        this(1);
+    }
+
+    /**
+     * @param shards number of shards per queue, number of cores gives the best throughput
+     *               when many threads use the same queue
+     */
+    public InMemoryQueueService(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Number of shards should be positive: " + shards);
+        }
+        this.shards = shards;
+    }
 
     @Override
     public void delete(String queueUrl, String receiptHandle) {
-        queueMessages.get(queueUrl).removeIf(m -> m.message.getReceiptHandle().equals(receiptHandle));
+        ShardedQueue queue = queues.get(queueUrl);
+        QueueState shard = queue == null ? null : queue.shardOf(receiptHandle);
+        if (shard == null) {
+            return;
+        }
+        QueueEvents.Delete event = new QueueEvents.Delete();
+        event.begin();
+        shard.lock();
+        try {
+            shard.delete(receiptHandle);
+        } finally {
+            shard.unlock();
+        }
+        if (event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.messages = 1;
+            event.commit();
+        }
     }
 
+    /**
+     * Receipt handles which were not issued by this service are reported as failures, the others are grouped
+     * by shard, so the lock of every shard is taken once.
+     */
+    @Override
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        QueueEvents.Delete event = new QueueEvents.Delete();
+        event.begin();
+        ShardedQueue queue = queues.get(queueUrl);
+        List<BatchResult.Failure> failures = new ArrayList<>();
+        Map<QueueState, List<String>> handlesByShard = new LinkedHashMap<>();
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            String receiptHandle = receiptHandles.get(i);
+            int number = shardNumber(receiptHandle);
+            if (number < 0 || queue != null && number >= queue.shards.length) {
+                failures.add(new BatchResult.Failure(i, FileQueueService.INVALID_RECEIPT_HANDLE,
+                        "Receipt handle " + receiptHandle + " is invalid"));
+            } else if (queue != null) {
+                handlesByShard.computeIfAbsent(queue.shards[number], k -> new ArrayList<>()).add(receiptHandle);
+            }
+        }
+        handlesByShard.forEach((shard, handles) -> {
+            shard.lock();
+            try {
+                handles.forEach(shard::delete);
+            } finally {
+                shard.unlock();
+            }
+        });
+        if (!handlesByShard.isEmpty() && event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.messages = receiptHandles.size() - failures.size();
+            event.commit();
+        }
+        return failures.isEmpty() ? BatchResult.successful() : new BatchResult(failures);
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        ShardedQueue queue = queues.get(queueUrl);
+        QueueState shard = queue == null ? null : queue.shardOf(receiptHandle);
+        if (shard == null) {
+            return;
+        }
+        boolean released;
+        shard.lock();
+        try {
+            released = shard.changeVisibility(receiptHandle, System.nanoTime(), visibilityTimeout);
+        } finally {
+            shard.unlock();
+        }
+        if (released) {
+            signalWaiters(queue);
+        }
+    }
+
+    /**
+     * Body is copied once, since the caller can reuse the buffer after push.
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        pushAll(queueUrl, singletonList(createFactory(body)), 0);
+    }
+
+    /**
+     * Text message is stored as is, so it is never encoded if consumers read it as text.
+     */
     @Override
     public void push(String queueUrl, String messageBody) {
-        Message message = new Message(messageBody, UUID.randomUUID().toString());
-        MessageDescriptor descriptor = new MessageDescriptor(message);
-        queueMessages.computeIfAbsent(queueUrl, k -> new CopyOnWriteArrayList<>()).add(descriptor);
+        pushAll(queueUrl, singletonList(createFactory(messageBody)), 0);
     }
 
     /**
-     * For thread level lock there are two options:
-     * - synchronization on method level -> low throughput since all threads will wait until one will finish it's job
-     * - lock per object -> other threads will skip locked object and process other objects
+     * Delayed message is kept in the timing wheel of the shard until it is due, with millisecond precision.
+     *
+     * @throws IllegalArgumentException if the delay exceeds the range of the timing wheel, about two years
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        pushAll(queueUrl, singletonList(createFactory(body)), unit.toNanos(delay));
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, long delay, TimeUnit unit) {
+        pushAll(queueUrl, singletonList(createFactory(messageBody)), unit.toNanos(delay));
+    }
+
+    @Override
+    public BatchResult pushBatch(String queueUrl, List<String> messageBodies) {
+        return pushAll(queueUrl, messageBodies.stream()
+                .map(this::createFactory)
+                .collect(Collectors.toList()), 0);
+    }
+
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        return pushAll(queueUrl, bodies.stream()
+                .map(this::createFactory)
+                .collect(Collectors.toList()), 0);
+    }
+
+    /**
+     * Each shard keeps four structures guarded by the shard lock:
+     * - ready FIFO -> messages that can be delivered right now
+     * - in-flight heap ordered by visibility deadline -> messages delivered to a consumer and not deleted yet
+     * - timing wheel -> delayed messages which are not due yet, appended to the ready FIFO when they are due
+     * - receipt handle map -> lookup for delete
      * <p>
-     * Current implementation uses lock per file and lock per object options.
+     * Pull moves expired in-flight messages back to the head of the ready FIFO and takes the first ready message,
+     * so every operation is O(1) or O(log n) and the lock is held only for a few pointer updates.
+     * Deleted messages are marked and dropped when they reach the head of the ready FIFO or the in-flight heap.
+     * Extended visibility is applied the same way: message is put back to the heap when it reaches the head
+     * before its new deadline.
      */
     @Override
     public Message pull(String queueUrl, int visibilityTimeout) {
-        List<MessageDescriptor> messages = queueMessages.get(queueUrl);
-        for (MessageDescriptor descriptor : messages) {
-            if (descriptor.expireTime.isBefore(Instant.now()) && descriptor.lock.tryLock()) {
+        List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        QueueEvents.Pull event = new QueueEvents.Pull();
+        event.begin();
+        List<Message> messages = new ArrayList<>();
+        ShardedQueue queue = queues.get(queueUrl);
+        if (queue != null) {
+            RedrivePolicy redrivePolicy = queue.redrivePolicy;
+            List<Message> deadLetters = new ArrayList<>();
+            queue.claim(System.nanoTime(), visibilityTimeout, maxMessages, messages, redrivePolicy, deadLetters);
+            moveToDeadLetterQueue(redrivePolicy, deadLetters);
+        }
+        commit(event, queueUrl, messages);
+        return messages;
+    }
+
+    /**
+     * Consumers wait on the queue condition, which is signalled by producers only while there are waiting
+     * consumers, so pushes to a queue without waiters never take the queue-wide lock.
+     * Wait is limited by the nearest visibility deadline, so the consumer wakes up when in-flight message expires
+     * or delayed message is due.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        QueueEvents.Pull event = new QueueEvents.Pull();
+        event.begin();
+        List<Message> messages = new ArrayList<>();
+        ShardedQueue queue = queue(queueUrl);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+        RedrivePolicy redrivePolicy = queue.redrivePolicy;
+        List<Message> deadLetters = new ArrayList<>();
+        queue.claim(System.nanoTime(), visibilityTimeout, maxMessages, messages, redrivePolicy, deadLetters);
+        if (!messages.isEmpty()) {
+            moveToDeadLetterQueue(redrivePolicy, deadLetters);
+            commit(event, queueUrl, messages);
+            return messages;
+        }
+        queue.waiters.incrementAndGet();
+        queue.waitLock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                // checked under the wait lock, so a push after this check signals the condition
+                queue.claim(now, visibilityTimeout, maxMessages, messages, redrivePolicy, deadLetters);
+                if (!messages.isEmpty() || deadline - now <= 0) {
+                    return messages;
+                }
+                long timeout = deadline - now;
+                Long nearest = queue.nearestDeadline();
+                if (nearest != null) {
+                    timeout = Math.min(timeout, Math.max(nearest - now, 0));
+                }
+                queue.pushed.awaitNanos(timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return messages;
+        } finally {
+            queue.waitLock.unlock();
+            queue.waiters.decrementAndGet();
+            // pushed after the wait lock is released, since the dead-letter queue can have its own waiters
+            moveToDeadLetterQueue(redrivePolicy, deadLetters);
+            commit(event, queueUrl, messages);
+        }
+    }
+
+    /**
+     * Queues which were never pushed to, and queues which shards have nothing to deliver according to
+     * the counters they publish, are skipped without taking any lock, so idle queues cost a map lookup.
+     */
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout) {
+        int start = queueUrls.isEmpty() ? 0 : Math.floorMod(nextQueue.get(), queueUrls.size());
+        for (int i = 0; i < queueUrls.size(); i++) {
+            int position = (start + i) % queueUrls.size();
+            String queueUrl = queueUrls.get(position);
+            ShardedQueue queue = queues.get(queueUrl);
+            if (queue == null || !queue.mayHaveVisible(System.nanoTime())) {
+                continue;
+            }
+            List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1);
+            if (!messages.isEmpty()) {
+                nextQueue.set(position + 1);
+                return messages.get(0).withQueueUrl(queueUrl);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Consumers wait on the condition shared by all queues, so a push to any queue wakes them up to check
+     * their queues again. Wait is limited by the nearest visibility deadline of the queues.
+     */
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout, int waitTimeSeconds) {
+        Message message = pullAny(queueUrls, visibilityTimeout);
+        if (message != null || waitTimeSeconds <= 0) {
+            return message;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+        anyWaiters.incrementAndGet();
+        anyWaitLock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                // checked under the wait lock, so a push after this check signals the condition
+                message = pullAny(queueUrls, visibilityTimeout);
+                if (message != null || deadline - now <= 0) {
+                    return message;
+                }
+                long timeout = deadline - now;
+                for (String queueUrl : queueUrls) {
+                    ShardedQueue queue = queues.get(queueUrl);
+                    Long nearest = queue == null ? null : queue.nearestDeadline();
+                    if (nearest != null) {
+                        timeout = Math.min(timeout, Math.max(nearest - now, 0));
+                    }
+                }
+                anyPushed.awaitNanos(timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            anyWaitLock.unlock();
+            anyWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Every shard counts its messages by state on every change and publishes the counters together with
+     * the push time of its oldest message, so the attributes are summed from the shards without locking them.
+     * In-flight messages become visible again when the next pull of the shard releases them.
+     */
+    @Override
+    public QueueAttributes getQueueAttributes(String queueUrl) {
+        ShardedQueue queue = queues.get(queueUrl);
+        return queue == null ? QueueAttributes.empty() : queue.attributes(System.nanoTime());
+    }
+
+    /**
+     * Applies to the queues of this instance, the dead-letter queue is created on the first moved message.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        queue(queueUrl).redrivePolicy = redrivePolicy;
+    }
+
+    /**
+     * Visible messages are taken from the dead-letter queue shard by shard and pushed to the queue in one batch
+     * per shard, without being delivered, so their receive count starts from zero.
+     */
+    @Override
+    public int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+        ShardedQueue deadLetterQueue = queues.get(deadLetterQueueUrl);
+        if (deadLetterQueue == null) {
+            return 0;
+        }
+        int moved = 0;
+        for (QueueState shard : deadLetterQueue.shards) {
+            if (moved >= maxMessages) {
+                break;
+            }
+            List<Message> messages = new ArrayList<>();
+            shard.lock();
+            try {
+                shard.drain(System.nanoTime(), maxMessages - moved, messages);
+            } finally {
+                shard.unlock();
+            }
+            if (!messages.isEmpty()) {
+                pushAll(queueUrl, copyFactories(messages), 0);
+                moved += messages.size();
+            }
+        }
+        return moved;
+    }
+
+    private void moveToDeadLetterQueue(RedrivePolicy redrivePolicy, List<Message> deadLetters) {
+        if (!deadLetters.isEmpty()) {
+            pushAll(redrivePolicy.getDeadLetterQueueUrl(), copyFactories(deadLetters), 0);
+        }
+    }
+
+    private BatchResult pushAll(String queueUrl, List<Function<String, Message>> factories, long delayNanos) {
+        // checked before the queue is touched, the due tick is rounded up by one tick at most
+        if (delayNanos > TimeUnit.MILLISECONDS.toNanos(TimingWheel.MAX_DELAY - 1)) {
+            throw new IllegalArgumentException("Delay should not exceed " + (TimingWheel.MAX_DELAY - 1)
+                    + " ms: " + TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        }
+        QueueEvents.Push event = new QueueEvents.Push();
+        event.begin();
+        boolean traced = event.isEnabled();
+        long size = 0;
+        ShardedQueue queue = queue(queueUrl);
+        QueueState shard = queue.lockShardForPush();
+        try {
+            long now = System.nanoTime();
+            long visibleAt = now + delayNanos;
+            for (Function<String, Message> factory : factories) {
+                Message message = shard.push(factory, now, delayNanos > 0 ? visibleAt : 0);
+                if (traced) {
+                    size += message.size();
+                }
+            }
+        } finally {
+            shard.unlock();
+        }
+        signalWaiters(queue);
+        if (event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.messages = factories.size();
+            event.size = size;
+            event.commit();
+        }
+        return BatchResult.successful();
+    }
+
+    private void signalWaiters(ShardedQueue queue) {
+        queue.signalWaiters();
+        if (anyWaiters.get() > 0) {
+            anyWaitLock.lock();
+            try {
+                anyPushed.signalAll();
+            } finally {
+                anyWaitLock.unlock();
+            }
+        }
+    }
+
+    private static void commit(QueueEvents.Pull event, String queueUrl, List<Message> messages) {
+        if (event.shouldCommit()) {
+            event.queue = queueUrl;
+            event.hit = !messages.isEmpty();
+            event.messages = messages.size();
+            event.size = messages.stream().mapToLong(Message::size).sum();
+            event.commit();
+        }
+    }
+
+    private ShardedQueue queue(String queueUrl) {
+        return queues.computeIfAbsent(queueUrl, k -> new ShardedQueue(queueUrl, shards));
+    }
+
+    private List<Function<String, Message>> copyFactories(List<Message> messages) {
+        return messages.stream()
+                .map(message -> (Function<String, Message>) receiptHandle -> new Message(message, receiptHandle, 0))
+                .collect(Collectors.toList());
+    }
+
+    private Function<String, Message> createFactory(String messageBody) {
+        return receiptHandle -> new Message(messageBody, receiptHandle);
+    }
+
+    private Function<String, Message> createFactory(ByteBuffer body) {
+        ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+        ((Buffer) copy.put(body.duplicate())).flip();
+        return receiptHandle -> new Message(copy, receiptHandle);
+    }
+
+    private static int homeShard(int shards) {
+        // thread counter wraps around to negative values
+        return Math.floorMod(HOME_SHARD.get(), shards);
+    }
+
+    /**
+     * @return -1 if the receipt handle was not issued by this service
+     */
+    private static int shardNumber(String receiptHandle) {
+        int separator = receiptHandle.indexOf('-');
+        if (separator <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(receiptHandle.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class ShardedQueue {
+        final QueueState[] shards;
+        final AtomicInteger waiters = new AtomicInteger();
+        final Lock waitLock = new ReentrantLock();
+        final Condition pushed = waitLock.newCondition();
+        volatile RedrivePolicy redrivePolicy;
+
+        ShardedQueue(String queueUrl, int count) {
+            shards = new QueueState[count];
+            for (int i = 0; i < count; i++) {
+                shards[i] = new QueueState(queueUrl, i);
+            }
+        }
+
+        /**
+         * Returns locked shard, the first one which lock is free or the home shard if all of them are locked.
+         */
+        QueueState lockShardForPush() {
+            int home = homeShard(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                QueueState shard = shards[(home + i) % shards.length];
+                if (shard.lock.tryLock()) {
+                    return shard;
+                }
+                if (shards.length > 1) {
+                    QueueEvents.LockContention event = new QueueEvents.LockContention();
+                    if (event.shouldCommit()) {
+                        event.queue = shard.queueUrl;
+                        event.shard = shard.number;
+                        event.skipped = true;
+                        event.commit();
+                    }
+                }
+            }
+            QueueState shard = shards[home];
+            shard.lock();
+            return shard;
+        }
+
+        /**
+         * Messages which exceeded the max receive count of the policy are removed from the queue
+         * and added to the dead letters instead of the messages.
+         */
+        void claim(long now, int visibilityTimeout, int maxMessages, List<Message> messages,
+                   RedrivePolicy redrivePolicy, List<Message> deadLetters) {
+            int home = homeShard(shards.length);
+            for (int i = 0; i < shards.length && messages.size() < maxMessages; i++) {
+                QueueState shard = shards[(home + i) % shards.length];
+                if (!shard.mayHaveVisible(now)) {
+                    continue;
+                }
+                shard.lock();
                 try {
-                    descriptor.expireTime = Instant.now().plus(Duration.ofSeconds(visibilityTimeout));
-                    LOGGER.info("Message found: {}", descriptor.message);
-                    return descriptor.message;
+                    shard.releaseExpired(now);
+                    Message message;
+                    while (messages.size() < maxMessages
+                            && (message = shard.claim(now, visibilityTimeout, redrivePolicy, deadLetters)) != null) {
+                        messages.add(message);
+                    }
                 } finally {
-                    descriptor.lock.unlock();
+                    shard.unlock();
                 }
             }
         }
-        return null;
+
+        boolean mayHaveVisible(long now) {
+            for (QueueState shard : shards) {
+                if (shard.mayHaveVisible(now)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        QueueAttributes attributes(long now) {
+            long visible = 0;
+            long inFlight = 0;
+            long delayed = 0;
+            Long oldest = null;
+            for (QueueState shard : shards) {
+                int shardVisible = shard.visibleMessages;
+                int shardInFlight = shard.inFlightMessages;
+                int shardDelayed = shard.delayedMessages;
+                visible += shardVisible;
+                inFlight += shardInFlight;
+                delayed += shardDelayed;
+                if (shardVisible + shardInFlight + shardDelayed > 0
+                        && (oldest == null || shard.oldestPushedAt - oldest < 0)) {
+                    oldest = shard.oldestPushedAt;
+                }
+            }
+            long age = oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(Math.max(now - oldest, 0));
+            return new QueueAttributes(visible, inFlight, delayed, age);
+        }
+
+        /**
+         * Returns null if no message is in flight or delayed.
+         */
+        Long nearestDeadline() {
+            Long nearest = null;
+            for (QueueState shard : shards) {
+                if (shard.inFlightCount > 0 && (nearest == null || shard.nearestDeadline - nearest < 0)) {
+                    nearest = shard.nearestDeadline;
+                }
+                if (shard.delayedCount > 0 && (nearest == null || shard.nextDelayedAt - nearest < 0)) {
+                    nearest = shard.nextDelayedAt;
+                }
+            }
+            return nearest;
+        }
+
+        void signalWaiters() {
+            if (waiters.get() > 0) {
+                waitLock.lock();
+                try {
+                    pushed.signalAll();
+                } finally {
+                    waitLock.unlock();
+                }
+            }
+        }
+
+        QueueState shardOf(String receiptHandle) {
+            int shard = shardNumber(receiptHandle);
+            return shard >= 0 && shard < shards.length ? shards[shard] : null;
+        }
+    }
+
+    private static class QueueState {
+        final String queueUrl;
+        final int number;
+        final Lock lock = new ReentrantLock();
+        final Deque<MessageDescriptor> ready = new ArrayDeque<>();
+        // entry is stale if it is not the current entry of its message, stale entries are skipped at the head
+        final Queue<InFlightEntry> inFlight = new PriorityQueue<>(
+                Comparator.comparingLong((InFlightEntry e) -> e.deadline).thenComparingLong(e -> e.sequence));
+        // in push order, so the first one is the oldest message which is not deleted
+        final Map<String, MessageDescriptor> descriptors = new LinkedHashMap<>();
+        // ticks of the wheel are milliseconds from this moment
+        final long epoch = System.nanoTime();
+        final TimingWheel<MessageDescriptor> delayed = new TimingWheel<>(0);
+        long sequence;
+        long handleSequence;
+        // published after every change for lock-free checks of other threads
+        volatile int readyCount;
+        volatile int inFlightCount;
+        volatile long nearestDeadline;
+        volatile int delayedCount;
+        volatile long nextDelayedAt;
+        // messages which are not deleted by their state, the ready and in-flight counts above include deleted ones
+        int liveVisible;
+        int liveInFlight;
+        int liveDelayed;
+        volatile int visibleMessages;
+        volatile int inFlightMessages;
+        volatile int delayedMessages;
+        volatile long oldestPushedAt;
+
+        QueueState(String queueUrl, int number) {
+            this.queueUrl = queueUrl;
+            this.number = number;
+        }
+
+        /**
+         * Counts deleted messages which are not dropped yet, so the shard can be locked for nothing,
+         * but never skipped while it has a message to deliver.
+         */
+        boolean mayHaveVisible(long now) {
+            return readyCount > 0 || inFlightCount > 0 && nearestDeadline - now <= 0
+                    || delayedCount > 0 && nextDelayedAt - now <= 0;
+        }
+
+        /**
+         * Wait for a lock held by another thread is recorded as a contention.
+         */
+        void lock() {
+            if (lock.tryLock()) {
+                return;
+            }
+            QueueEvents.LockContention event = new QueueEvents.LockContention();
+            event.begin();
+            lock.lock();
+            if (event.shouldCommit()) {
+                event.queue = queueUrl;
+                event.shard = number;
+                event.commit();
+            }
+        }
+
+        void unlock() {
+            readyCount = ready.size();
+            inFlightCount = inFlight.size();
+            InFlightEntry head = inFlight.peek();
+            if (head != null) {
+                nearestDeadline = head.deadline;
+            }
+            delayedCount = delayed.size();
+            if (delayedCount > 0) {
+                nextDelayedAt = epoch + TimeUnit.MILLISECONDS.toNanos(delayed.nextTick());
+            }
+            visibleMessages = liveVisible;
+            inFlightMessages = liveInFlight;
+            delayedMessages = liveDelayed;
+            if (!descriptors.isEmpty()) {
+                oldestPushedAt = descriptors.values().iterator().next().pushedAt;
+            }
+            lock.unlock();
+        }
+
+        /**
+         * @param visibleAt nanoTime when the delayed message is due, or 0
+         */
+        Message push(Function<String, Message> factory, long now, long visibleAt) {
+            MessageDescriptor descriptor = new MessageDescriptor(factory.apply(number + "-" + handleSequence++), now);
+            descriptors.put(descriptor.message.getReceiptHandle(), descriptor);
+            if (visibleAt != 0) {
+                // wheel is advanced on pulls only, a lagging wheel would not reach the due tick of the max delay
+                delayed.advance(TimeUnit.NANOSECONDS.toMillis(now - epoch), this::release);
+            }
+            // due tick is rounded up, so the message is never delivered before its delay
+            long tick = TimeUnit.NANOSECONDS.toMillis(visibleAt - epoch + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+            if (visibleAt != 0 && delayed.add(tick, descriptor)) {
+                descriptor.delayed = true;
+                liveDelayed++;
+            } else {
+                ready.addLast(descriptor);
+                liveVisible++;
+            }
+            return descriptor.message;
+        }
+
+        void delete(String receiptHandle) {
+            MessageDescriptor descriptor = descriptors.remove(receiptHandle);
+            if (descriptor != null) {
+                // descriptor is removed from ready or in-flight structures lazily, when it reaches their head
+                descriptor.deleted = true;
+                if (descriptor.delayed) {
+                    liveDelayed--;
+                } else if (descriptor.inFlight) {
+                    liveInFlight--;
+                } else {
+                    liveVisible--;
+                }
+            }
+        }
+
+        /**
+         * Extension only updates the deadline of the message, shortening adds an entry with the earlier deadline
+         * to the heap, since it should be released before the messages which are already in the heap.
+         * The previous entry is not removed, which would scan the heap, it is skipped when it reaches the head.
+         *
+         * @return true if the message can become visible earlier than it was expected by waiting consumers
+         */
+        boolean changeVisibility(String receiptHandle, long now, int visibilityTimeout) {
+            MessageDescriptor descriptor = descriptors.get(receiptHandle);
+            if (descriptor == null || !descriptor.inFlight) {
+                return false;
+            }
+            long visibleAt = now + TimeUnit.SECONDS.toNanos(visibilityTimeout);
+            descriptor.visibleAt = visibleAt;
+            if (visibleAt - descriptor.inFlightEntry.deadline < 0) {
+                putInFlight(descriptor, visibleAt);
+                return true;
+            }
+            return false;
+        }
+
+        Message claim(long now, int visibilityTimeout, RedrivePolicy redrivePolicy, List<Message> deadLetters) {
+            MessageDescriptor descriptor;
+            while ((descriptor = pollReady()) != null) {
+                int receiveCount = ++descriptor.receiveCount;
+                if (redrivePolicy == null || !redrivePolicy.isExceeded(receiveCount)) {
+                    break;
+                }
+                remove(descriptor);
+                deadLetters.add(descriptor.message);
+            }
+            if (descriptor == null) {
+                return null;
+            }
+            descriptor.visibleAt = now + TimeUnit.SECONDS.toNanos(visibilityTimeout);
+            descriptor.inFlight = true;
+            liveInFlight++;
+            putInFlight(descriptor, descriptor.visibleAt);
+            return new Message(descriptor.message, descriptor.message.getReceiptHandle(), descriptor.receiveCount);
+        }
+
+        private void putInFlight(MessageDescriptor descriptor, long deadline) {
+            descriptor.inFlightEntry = new InFlightEntry(descriptor, deadline);
+            inFlight.add(descriptor.inFlightEntry);
+        }
+
+        /**
+         * Removes up to maxMessages visible messages from the shard without delivering them.
+         */
+        void drain(long now, int maxMessages, List<Message> messages) {
+            releaseExpired(now);
+            MessageDescriptor descriptor;
+            while (messages.size() < maxMessages && (descriptor = pollReady()) != null) {
+                remove(descriptor);
+                messages.add(descriptor.message);
+            }
+        }
+
+        private void remove(MessageDescriptor descriptor) {
+            descriptors.remove(descriptor.message.getReceiptHandle());
+            descriptor.deleted = true;
+        }
+
+        /**
+         * Due delayed messages are appended to the ready FIFO.
+         * Expired messages are returned to the head of the ready FIFO, so redelivery goes before new messages.
+         * They are collected in deadline order and prepended in reverse to keep the oldest deadline first.
+         */
+        void releaseExpired(long now) {
+            delayed.advance(TimeUnit.NANOSECONDS.toMillis(now - epoch), this::release);
+            Deque<MessageDescriptor> expired = null;
+            InFlightEntry head;
+            // nanoTime values should be compared by difference, since they can overflow
+            while ((head = inFlight.peek()) != null && head.deadline - now <= 0) {
+                inFlight.poll();
+                MessageDescriptor descriptor = head.descriptor;
+                if (descriptor.deleted || descriptor.inFlightEntry != head) {
+                    continue;
+                }
+                if (descriptor.visibleAt - now > 0) {
+                    // visibility was extended after the message was put to the heap
+                    putInFlight(descriptor, descriptor.visibleAt);
+                    continue;
+                }
+                descriptor.inFlight = false;
+                descriptor.inFlightEntry = null;
+                liveInFlight--;
+                liveVisible++;
+                if (expired == null) {
+                    expired = new ArrayDeque<>();
+                }
+                expired.addLast(descriptor);
+            }
+            if (expired != null) {
+                QueueEvents.VisibilityExpired event = new QueueEvents.VisibilityExpired();
+                if (event.shouldCommit()) {
+                    event.queue = queueUrl;
+                    event.messages = expired.size();
+                    event.commit();
+                }
+                while (!expired.isEmpty()) {
+                    ready.addFirst(expired.pollLast());
+                }
+            }
+        }
+
+        private void release(MessageDescriptor descriptor) {
+            descriptor.delayed = false;
+            if (!descriptor.deleted) {
+                liveDelayed--;
+                liveVisible++;
+            }
+            ready.addLast(descriptor);
+        }
+
+        MessageDescriptor pollReady() {
+            MessageDescriptor descriptor;
+            while ((descriptor = ready.pollFirst()) != null) {
+                if (!descriptor.deleted) {
+                    liveVisible--;
+                    descriptor.sequence = sequence++;
+                    return descriptor;
+                }
+            }
+            return null;
+        }
     }
 
     private static class MessageDescriptor {
         final Message message;
-        final Lock lock;
-        Instant expireTime;
+        final long pushedAt;
+        InFlightEntry inFlightEntry;
+        long visibleAt;
+        long sequence;
+        int receiveCount;
+        boolean deleted;
+        boolean inFlight;
+        boolean delayed;
 
-        private MessageDescriptor(Message message) {
+        private MessageDescriptor(Message message, long pushedAt) {
             this.message = message;
-            this.lock = new ReentrantLock();
-            this.expireTime = Instant.MIN;
+            this.pushedAt = pushedAt;
+        }
+    }
+
+    private static class InFlightEntry {
+        final MessageDescriptor descriptor;
+        final long deadline;
+        final long sequence;
+
+        private InFlightEntry(MessageDescriptor descriptor, long deadline) {
+            this.descriptor = descriptor;
+            this.deadline = deadline;
+            this.sequence = descriptor.sequence;
         }
     }
 }
@@ -0,0 +1,108 @@
+package com.github.slamdev.mq;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of nanosecond latencies in the spirit of HdrHistogram:
+ * every power of two range is split into 8 linear sub-buckets, so a recorded value is off by at most 12.5%.
+ * <p>
+ * Buckets are preallocated and striped by thread id, so recording is a few arithmetic operations
+ * and an uncontended atomic increment without any allocation.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private static final int MAX_STRIPES = 8;
+
+    private final int stripeMask;
+
+    private final AtomicLongArray counts;
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        int stripes = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1),
+                MAX_STRIPES);
+        stripeMask = stripes - 1;
+        counts = new AtomicLongArray(stripes * BUCKETS);
+    }
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        counts.incrementAndGet(stripe * BUCKETS + index(value));
+        totalNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    LatencySnapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < counts.length(); i++) {
+            buckets[i % BUCKETS] += counts.get(i);
+        }
+        return snapshot(buckets, totalNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * Summarizes buckets indexed by {@link #index(long)}, so histograms recorded elsewhere can be merged
+     * by adding their buckets.
+     */
+    static LatencySnapshot snapshot(long[] buckets, long totalNanos, long maxNanos) {
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        double mean = count == 0 ? 0 : (double) totalNanos / count;
+        return new LatencySnapshot(count, mean,
+                percentile(buckets, count, 0.5),
+                percentile(buckets, count, 0.9),
+                percentile(buckets, count, 0.99),
+                percentile(buckets, count, 0.999),
+                maxNanos);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return middle of the value range covered by the bucket
+     */
+    static long value(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+
+    private static long percentile(long[] buckets, long count, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return value(i);
+            }
+        }
+        return value(buckets.length - 1);
+    }
+}
@@ -0,0 +1,616 @@
+package com.github.slamdev.mq;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Embeddable HTTP server which implements the part of the SQS query API used by {@link SqsQueueService}
+ * on top of a {@link QueueService} engine, so the real {@code AmazonSQSClient} with its connection pool,
+ * signing, retries and XML parsing can be measured and tested without AWS:
+ * - SendMessage, SendMessageBatch -> message attributes of the String and Number types are kept with the body
+ * - ReceiveMessage -> ApproximateReceiveCount attribute is filled if the engine tracks receive counts
+ * - DeleteMessage, DeleteMessageBatch, ChangeMessageVisibility
+ * - GetQueueAttributes -> QueueArn and approximate numbers of messages, if the engine supports them
+ * - SetQueueAttributes -> RedrivePolicy attribute only
+ * <p>
+ * Queues are created on the first use, queue name is the last segment of the request path,
+ * so the client can use either {@link #getQueueUrl(String)} or plain queue names with
+ * {@link #getEndpoint()} as the client endpoint. Signatures are not verified.
+ * <p>
+ * Injected faults:
+ * - latency -> every request is delayed before it is executed, like a round trip to a remote region
+ * - request rate limit -> requests above the rate fail with the Throttling error which the SDK retries
+ * with a backoff, like SQS does under a burst
+ */
+public class LocalSqsServer implements AutoCloseable {
+
+    private static final String NAMESPACE = "http://queue.amazonaws.com/doc/2012-11-05/";
+
+    private static final String ACCOUNT = "000000000000";
+
+    private static final String ARN_PREFIX = "arn:aws:sqs:local:" + ACCOUNT + ":";
+
+    private static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+
+    private static final Pattern DEAD_LETTER_TARGET = Pattern.compile("\"deadLetterTargetArn\"\\s*:\\s*\"([^\"]+)\"");
+
+    private static final Pattern MAX_RECEIVE_COUNT = Pattern.compile("\"maxReceiveCount\"\\s*:\\s*\"?(\\d+)");
+
+    static {
+        // the server writes headers and body of a response separately, which without TCP_NODELAY meets
+        // the delayed acknowledgement of the client and adds 40 ms to every request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final QueueService engine;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "local-sqs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long latencyNanos;
+
+    private final RateLimiter rateLimiter = new RateLimiter();
+
+    /**
+     * Serves new in-memory queues on the loopback interface.
+     */
+    public LocalSqsServer(int port) {
+        this(new InMemoryQueueService(), new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * @param address port 0 picks a free port, see {@link #getEndpoint()}
+     */
+    public LocalSqsServer(QueueService engine, InetSocketAddress address) {
+        this.engine = engine;
+        try {
+            server = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return endpoint for {@code AwsClientBuilder.EndpointConfiguration}
+     */
+    public String getEndpoint() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort();
+    }
+
+    public String getQueueUrl(String queueName) {
+        return getEndpoint() + "/" + ACCOUNT + "/" + queueName;
+    }
+
+    /**
+     * Delays every request, 0 disables the delay.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Throttles requests above the rate with bursts up to the rate, 0 disables throttling.
+     */
+    public void setRequestRateLimit(int requestsPerSecond) {
+        rateLimiter.setRate(requestsPerSecond);
+    }
+
+    /**
+     * Stops accepting requests, the engine is not closed.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String response;
+        try {
+            if (latencyNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(latencyNanos);
+            }
+            Map<String, String> params = parseForm(exchange.getRequestURI().getRawQuery());
+            params.putAll(parseForm(new String(readAll(exchange.getRequestBody()), UTF_8)));
+            String action = params.getOrDefault("Action", "");
+            if (!rateLimiter.tryAcquire()) {
+                status = 400;
+                response = error("Throttling", "Rate exceeded");
+            } else {
+                response = execute(action, queueName(exchange.getRequestURI().getPath(), params), params);
+            }
+        } catch (UnsupportedOperationException e) {
+            status = 400;
+            response = error("InvalidAction", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            response = error("InvalidParameterValue", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = 503;
+            response = error("ServiceUnavailable", "Server is stopped");
+        } catch (RuntimeException e) {
+            status = 500;
+            response = error("InternalError", String.valueOf(e.getMessage()));
+        }
+        byte[] bytes = response.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private String execute(String action, String queueName, Map<String, String> params) {
+        switch (action) {
+            case "SendMessage":
+                return sendMessage(queueName, params);
+            case "SendMessageBatch":
+                return sendMessageBatch(queueName, params);
+            case "ReceiveMessage":
+                return receiveMessage(queueName, params);
+            case "DeleteMessage":
+                engine.delete(queueName, required(params, "ReceiptHandle"));
+                return response(action, "");
+            case "DeleteMessageBatch":
+                return deleteMessageBatch(queueName, params);
+            case "ChangeMessageVisibility":
+                engine.changeVisibility(queueName, required(params, "ReceiptHandle"),
+                        Integer.parseInt(required(params, "VisibilityTimeout")));
+                return response(action, "");
+            case "GetQueueAttributes":
+                return getQueueAttributes(queueName, params);
+            case "SetQueueAttributes":
+                return setQueueAttributes(queueName, params);
+            default:
+                throw new UnsupportedOperationException("Action is not supported: " + action);
+        }
+    }
+
+    private String sendMessage(String queueName, Map<String, String> params) {
+        String body = required(params, "MessageBody");
+        Map<String, String[]> attributes = messageAttributes(params, "");
+        engine.push(queueName, wrap(body, attributes), intParam(params, "DelaySeconds", 0), TimeUnit.SECONDS);
+        return response("SendMessage", sendResult(body, attributes).toString());
+    }
+
+    /**
+     * Entries without delay are pushed with a single batch of the engine.
+     */
+    private String sendMessageBatch(String queueName, Map<String, String> params) {
+        List<String> entries = new ArrayList<>();
+        List<String> undelayedIds = new ArrayList<>();
+        List<Integer> undelayedEntries = new ArrayList<>();
+        List<ByteBuffer> undelayedBodies = new ArrayList<>();
+        for (int i = 1; params.containsKey(entry("SendMessageBatchRequestEntry", i, "Id")); i++) {
+            String id = params.get(entry("SendMessageBatchRequestEntry", i, "Id"));
+            String body = params.get(entry("SendMessageBatchRequestEntry", i, "MessageBody"));
+            if (body == null) {
+                entries.add(batchError(id, "MissingParameter", "MessageBody is required"));
+                continue;
+            }
+            Map<String, String[]> attributes = messageAttributes(params,
+                    entry("SendMessageBatchRequestEntry", i, ""));
+            int delay = intParam(params, entry("SendMessageBatchRequestEntry", i, "DelaySeconds"), 0);
+            if (delay > 0) {
+                try {
+                    engine.push(queueName, wrap(body, attributes), delay, TimeUnit.SECONDS);
+                } catch (RuntimeException e) {
+                    entries.add(batchError(id, "InternalError", e.getMessage()));
+                    continue;
+                }
+            } else {
+                undelayedIds.add(id);
+                undelayedEntries.add(entries.size());
+                undelayedBodies.add(wrap(body, attributes));
+            }
+            entries.add("<SendMessageBatchResultEntry><Id>" + escape(id) + "</Id>" + sendResult(body, attributes)
+                    + "</SendMessageBatchResultEntry>");
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("Batch request contains no entries");
+        }
+        if (!undelayedBodies.isEmpty()) {
+            for (BatchResult.Failure failure : engine.pushBinaryBatch(queueName, undelayedBodies).getFailures()) {
+                entries.set(undelayedEntries.get(failure.getIndex()),
+                        batchError(undelayedIds.get(failure.getIndex()), failure.getCode(), failure.getMessage()));
+            }
+        }
+        return response("SendMessageBatch", String.join("", entries));
+    }
+
+    private String receiveMessage(String queueName, Map<String, String> params) {
+        int maxMessages = intParam(params, "MaxNumberOfMessages", 1);
+        if (maxMessages < 1 || maxMessages > SqsQueueService.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("MaxNumberOfMessages should be between 1 and 10: " + maxMessages);
+        }
+        int visibilityTimeout = intParam(params, "VisibilityTimeout", 30);
+        int waitTimeSeconds = intParam(params, "WaitTimeSeconds", 0);
+        List<String> attributeNames = listParam(params, "AttributeName");
+        List<String> messageAttributeNames = listParam(params, "MessageAttributeName");
+        boolean receiveCount = attributeNames.contains("All") || attributeNames.contains(RECEIVE_COUNT);
+        List<Message> messages = waitTimeSeconds > 0
+                ? engine.pullBatch(queueName, visibilityTimeout, maxMessages, waitTimeSeconds)
+                : engine.pullBatch(queueName, visibilityTimeout, maxMessages);
+        StringBuilder result = new StringBuilder();
+        for (Message message : messages) {
+            Map<String, String[]> attributes = new TreeMap<>();
+            ByteBuffer stored = message.getBody();
+            String body = unwrap(stored, attributes);
+            attributes.keySet().removeIf(name -> !isRequested(name, messageAttributeNames));
+            result.append("<Message><MessageId>").append(UUID.randomUUID())
+                    .append("</MessageId><ReceiptHandle>").append(escape(message.getReceiptHandle()))
+                    .append("</ReceiptHandle><MD5OfBody>").append(md5(body.getBytes(UTF_8)))
+                    .append("</MD5OfBody><Body>").append(escape(body)).append("</Body>");
+            if (receiveCount && message.getReceiveCount() > 0) {
+                result.append(attribute(RECEIVE_COUNT, String.valueOf(message.getReceiveCount())));
+            }
+            if (!attributes.isEmpty()) {
+                result.append("<MD5OfMessageAttributes>").append(md5(attributes))
+                        .append("</MD5OfMessageAttributes>");
+                attributes.forEach((name, value) -> result.append("<MessageAttribute><Name>").append(escape(name))
+                        .append("</Name><Value><DataType>").append(escape(value[0]))
+                        .append("</DataType><StringValue>").append(escape(value[1]))
+                        .append("</StringValue></Value></MessageAttribute>"));
+            }
+            result.append("</Message>");
+        }
+        return response("ReceiveMessage", result.toString());
+    }
+
+    private String deleteMessageBatch(String queueName, Map<String, String> params) {
+        List<String> ids = new ArrayList<>();
+        List<String> receiptHandles = new ArrayList<>();
+        for (int i = 1; params.containsKey(entry("DeleteMessageBatchRequestEntry", i, "Id")); i++) {
+            ids.add(params.get(entry("DeleteMessageBatchRequestEntry", i, "Id")));
+            receiptHandles.add(params.get(entry("DeleteMessageBatchRequestEntry", i, "ReceiptHandle")));
+        }
+        if (ids.isEmpty()) {
+            throw new IllegalArgumentException("Batch request contains no entries");
+        }
+        Map<Integer, BatchResult.Failure> failures = new HashMap<>();
+        engine.deleteBatch(queueName, receiptHandles).getFailures()
+                .forEach(failure -> failures.put(failure.getIndex(), failure));
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            BatchResult.Failure failure = failures.get(i);
+            if (failure == null) {
+                result.append("<DeleteMessageBatchResultEntry><Id>").append(escape(ids.get(i)))
+                        .append("</Id></DeleteMessageBatchResultEntry>");
+            } else {
+                result.append(batchError(ids.get(i), failure.getCode(), failure.getMessage()));
+            }
+        }
+        return response("DeleteMessageBatch", result.toString());
+    }
+
+    private String getQueueAttributes(String queueName, Map<String, String> params) {
+        List<String> names = listParam(params, "AttributeName");
+        boolean all = names.contains("All");
+        StringBuilder result = new StringBuilder();
+        if (all || names.contains("QueueArn")) {
+            result.append(attribute("QueueArn", ARN_PREFIX + queueName));
+        }
+        if (all || names.stream().anyMatch(name -> name.startsWith("ApproximateNumberOfMessages"))) {
+            QueueAttributes attributes = engine.getQueueAttributes(queueName);
+            result.append(attribute("ApproximateNumberOfMessages", String.valueOf(attributes.getVisibleMessages())))
+                    .append(attribute("ApproximateNumberOfMessagesNotVisible",
+                            String.valueOf(attributes.getInFlightMessages())))
+                    .append(attribute("ApproximateNumberOfMessagesDelayed",
+                            String.valueOf(attributes.getDelayedMessages())));
+        }
+        return response("GetQueueAttributes", result.toString());
+    }
+
+    private String setQueueAttributes(String queueName, Map<String, String> params) {
+        for (int i = 1; params.containsKey("Attribute." + i + ".Name"); i++) {
+            String name = params.get("Attribute." + i + ".Name");
+            String value = params.getOrDefault("Attribute." + i + ".Value", "");
+            if (!"RedrivePolicy".equals(name)) {
+                throw new UnsupportedOperationException("Queue attribute is not supported: " + name);
+            }
+            if (value.isEmpty()) {
+                engine.setRedrivePolicy(queueName, null);
+                continue;
+            }
+            Matcher target = DEAD_LETTER_TARGET.matcher(value);
+            Matcher maxReceiveCount = MAX_RECEIVE_COUNT.matcher(value);
+            if (!target.find() || !maxReceiveCount.find()) {
+                throw new IllegalArgumentException("Invalid RedrivePolicy: " + value);
+            }
+            String arn = target.group(1);
+            engine.setRedrivePolicy(queueName, new RedrivePolicy(arn.substring(arn.lastIndexOf(':') + 1),
+                    Integer.parseInt(maxReceiveCount.group(1))));
+        }
+        return response("SetQueueAttributes", "");
+    }
+
+    private static StringBuilder sendResult(String body, Map<String, String[]> attributes) {
+        StringBuilder result = new StringBuilder("<MessageId>").append(UUID.randomUUID())
+                .append("</MessageId><MD5OfMessageBody>").append(md5(body.getBytes(UTF_8)))
+                .append("</MD5OfMessageBody>");
+        if (!attributes.isEmpty()) {
+            result.append("<MD5OfMessageAttributes>").append(md5(attributes)).append("</MD5OfMessageAttributes>");
+        }
+        return result;
+    }
+
+    /**
+     * Stored message -> attribute count (int), then name, data type and value of every attribute, then body,
+     * all strings are length prefixed UTF-8.
+     */
+    private static ByteBuffer wrap(String body, Map<String, String[]> attributes) {
+        List<byte[]> strings = new ArrayList<>();
+        attributes.forEach((name, value) -> {
+            strings.add(name.getBytes(UTF_8));
+            strings.add(value[0].getBytes(UTF_8));
+            strings.add(value[1].getBytes(UTF_8));
+        });
+        strings.add(body.getBytes(UTF_8));
+        int size = Integer.BYTES;
+        for (byte[] string : strings) {
+            size += Integer.BYTES + string.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).putInt(attributes.size());
+        strings.forEach(string -> buffer.putInt(string.length).put(string));
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private static String unwrap(ByteBuffer buffer, Map<String, String[]> attributes) {
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            attributes.put(getString(buffer), new String[]{getString(buffer), getString(buffer)});
+        }
+        return getString(buffer);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static Map<String, String[]> messageAttributes(Map<String, String> params, String prefix) {
+        Map<String, String[]> attributes = new TreeMap<>();
+        for (int i = 1; params.containsKey(prefix + "MessageAttribute." + i + ".Name"); i++) {
+            String attribute = prefix + "MessageAttribute." + i + ".";
+            String type = required(params, attribute + "Value.DataType");
+            String value = params.get(attribute + "Value.StringValue");
+            if (value == null) {
+                throw new UnsupportedOperationException("Binary message attributes are not supported");
+            }
+            attributes.put(params.get(attribute + "Name"), new String[]{type, value});
+        }
+        return attributes;
+    }
+
+    /**
+     * Digest of attributes sorted by name, every one as name, data type and value prefixed by their lengths,
+     * with 1 between the type and the value marking a string value, the SDK compares it with its own.
+     */
+    private static String md5(Map<String, String[]> attributes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        attributes.forEach((name, value) -> {
+            writeWithLength(bytes, name.getBytes(UTF_8));
+            writeWithLength(bytes, value[0].getBytes(UTF_8));
+            bytes.write(1);
+            writeWithLength(bytes, value[1].getBytes(UTF_8));
+        });
+        return md5(bytes.toByteArray());
+    }
+
+    private static void writeWithLength(ByteArrayOutputStream bytes, byte[] value) {
+        bytes.write(ByteBuffer.allocate(Integer.BYTES).putInt(value.length).array(), 0, Integer.BYTES);
+        bytes.write(value, 0, value.length);
+    }
+
+    private static String md5(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isRequested(String name, List<String> requested) {
+        for (String pattern : requested) {
+            if (pattern.equals("All") || pattern.equals(".*") || pattern.equals(name)
+                    || pattern.endsWith(".*") && name.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String queueName(String path, Map<String, String> params) {
+        String queueUrl = params.getOrDefault("QueueUrl", path);
+        String name = queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Queue is not specified");
+        }
+        return name;
+    }
+
+    private static String entry(String name, int index, String field) {
+        return name + "." + index + "." + field;
+    }
+
+    private static List<String> listParam(Map<String, String> params, String name) {
+        List<String> values = new ArrayList<>();
+        for (int i = 1; params.containsKey(name + "." + i); i++) {
+            values.add(params.get(name + "." + i));
+        }
+        return values;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException(name + " is required");
+        }
+        return value;
+    }
+
+    private static String attribute(String name, String value) {
+        return "<Attribute><Name>" + name + "</Name><Value>" + escape(value) + "</Value></Attribute>";
+    }
+
+    private static String batchError(String id, String code, String message) {
+        return "<BatchResultErrorEntry><Id>" + escape(id) + "</Id><SenderFault>false</SenderFault><Code>"
+                + escape(String.valueOf(code)) + "</Code><Message>" + escape(String.valueOf(message))
+                + "</Message></BatchResultErrorEntry>";
+    }
+
+    private static String response(String action, String result) {
+        return "<" + action + "Response xmlns=\"" + NAMESPACE + "\"><" + action + "Result>" + result
+                + "</" + action + "Result><ResponseMetadata><RequestId>" + UUID.randomUUID()
+                + "</RequestId></ResponseMetadata></" + action + "Response>";
+    }
+
+    private static String error(String code, String message) {
+        return "<ErrorResponse xmlns=\"" + NAMESPACE + "\"><Error><Type>Sender</Type><Code>" + code
+                + "</Code><Message>" + escape(message) + "</Message><Detail/></Error><RequestId>"
+                + UUID.randomUUID() + "</RequestId></ErrorResponse>";
+    }
+
+    /**
+     * Carriage returns are escaped as well, otherwise the XML parser of the client normalizes them.
+     */
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                case '\r':
+                    escaped.append("&#13;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> params = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return params;
+        }
+        try {
+            for (String pair : form.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator < 0) {
+                    params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                } else {
+                    params.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                            URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = input.read(chunk)) > 0) {
+            bytes.write(chunk, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Token bucket which holds up to one second of requests.
+     */
+    private static class RateLimiter {
+
+        private int rate;
+
+        private double tokens;
+
+        private long refilledAt;
+
+        synchronized void setRate(int requestsPerSecond) {
+            rate = requestsPerSecond;
+            tokens = requestsPerSecond;
+            refilledAt = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            if (rate <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -1,43 +1,225 @@
 package com.github.slamdev.mq;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.function.Supplier;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Message body is a sequence of bytes, text body is its UTF-8 representation.
+ * <p>
+ * Message keeps the body in the form it was created with and converts it to the other form
+ * only when it is requested, so text producers and consumers never pay for encoding
+ * and binary ones never pay for decoding. Body of a message created with a decoder is produced
+ * by the decoder on the first request of the body in any form.
+ */
 public class Message {
 
-    private final String messageBody;
+    private volatile ByteBuffer body;
+    private volatile String messageBody;
+    private volatile Supplier<ByteBuffer> decoder;
     private final String receiptHandle;
+    private final int receiveCount;
+    private final String queueUrl;
 
     public Message(String messageBody, String receiptHandle) {
+        this(messageBody, receiptHandle, 0);
+    }
+
+    public Message(String messageBody, String receiptHandle, int receiveCount) {
         this.messageBody = messageBody;
         this.receiptHandle = receiptHandle;
+        this.receiveCount = receiveCount;
+        this.queueUrl = null;
+    }
+
+    /**
+     * Body buffer is not copied, so it should not be modified after the message is created.
+     */
+    public Message(ByteBuffer body, String receiptHandle) {
+        this(body, receiptHandle, 0);
+    }
+
+    public Message(ByteBuffer body, String receiptHandle, int receiveCount) {
+        this.body = body.asReadOnlyBuffer();
+        this.receiptHandle = receiptHandle;
+        this.receiveCount = receiveCount;
+        this.queueUrl = null;
+    }
+
+    /**
+     * Shares the body of the source message in both forms it has already.
+     */
+    Message(Message source, String receiptHandle, int receiveCount) {
+        this(source, receiptHandle, receiveCount, null);
+    }
+
+    private Message(Message source, String receiptHandle, int receiveCount, String queueUrl) {
+        // decoder is read first, it is cleared only after the decoded body is set
+        Supplier<ByteBuffer> sourceDecoder = source.decoder;
+        this.body = source.body;
+        this.messageBody = source.messageBody;
+        this.decoder = body == null && messageBody == null ? sourceDecoder : null;
+        this.receiptHandle = receiptHandle;
+        this.receiveCount = receiveCount;
+        this.queueUrl = queueUrl;
+    }
+
+    /**
+     * Decoder is called at most once, by the first thread which requests the body.
+     */
+    Message(Supplier<ByteBuffer> decoder, String receiptHandle, int receiveCount) {
+        this.decoder = decoder;
+        this.receiptHandle = receiptHandle;
+        this.receiveCount = receiveCount;
+        this.queueUrl = null;
+    }
+
+    /**
+     * @return read-only view of the body, positioned at the first byte of the body
+     */
+    public ByteBuffer getBody() {
+        ByteBuffer buffer = decoded();
+        if (buffer == null) {
+            buffer = encode(messageBody).asReadOnlyBuffer();
+            body = buffer;
+        }
+        return buffer.duplicate();
     }
 
     public String getMessageBody() {
-        return messageBody;
+        String text = messageBody;
+        if (text == null) {
+            text = UTF_8.decode(decoded().duplicate()).toString();
+            messageBody = text;
+        }
+        return text;
     }
 
     public String getReceiptHandle() {
         return receiptHandle;
     }
 
+    /**
+     * @return number of times the message was received including this one, 0 if the queue does not track it
+     */
+    public int getReceiveCount() {
+        return receiveCount;
+    }
+
+    /**
+     * @return queue the message was received from by {@link QueueService#pullAny}, null for other pulls
+     */
+    public String getQueueUrl() {
+        return queueUrl;
+    }
+
+    /**
+     * Copy which shares the body and knows the queue it was received from.
+     */
+    Message withQueueUrl(String queueUrl) {
+        return new Message(this, receiptHandle, receiveCount, queueUrl);
+    }
+
+    /**
+     * Checks the body in the form the message has already, so a text body is not encoded for the check.
+     *
+     * @param prefix ASCII characters only
+     */
+    boolean startsWith(byte[] prefix) {
+        String text = messageBody;
+        if (text != null) {
+            if (text.length() < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (text.charAt(i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        ByteBuffer buffer = decoded();
+        if (buffer.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(buffer.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return size of the body in bytes, a text body is measured without being encoded
+     */
+    int size() {
+        String text = messageBody;
+        if (text == null) {
+            return decoded().remaining();
+        }
+        int size = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // surrogate pairs take 4 bytes, 2 for each of them
+                size += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return body buffer, null if the message was created with the text body
+     */
+    private ByteBuffer decoded() {
+        if (decoder != null) {
+            synchronized (this) {
+                Supplier<ByteBuffer> pending = decoder;
+                if (pending != null) {
+                    body = pending.get().asReadOnlyBuffer();
+                    decoder = null;
+                }
+            }
+        }
+        return body;
+    }
+
+    static ByteBuffer encode(String messageBody) {
+        return ByteBuffer.wrap(messageBody.getBytes(UTF_8));
+    }
+
+    /**
+     * Received messages are compared by receipt handles, so the check never decodes a body or reads a blob,
+     * bodies are compared only for messages without a receipt handle.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Message message = (Message) o;
-        return Objects.equals(messageBody, message.messageBody) &&
-                Objects.equals(receiptHandle, message.receiptHandle);
+        if (receiptHandle != null || message.receiptHandle != null) {
+            return Objects.equals(receiptHandle, message.receiptHandle);
+        }
+        return Objects.equals(getBody(), message.getBody());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(messageBody, receiptHandle);
+        return receiptHandle != null ? receiptHandle.hashCode() : getBody().hashCode();
     }
 
     @Override
     public String toString() {
+        String text = messageBody;
+        ByteBuffer buffer = body;
         return "{"
-                + "messageBody='" + messageBody + '\''
+                + (text != null ? "messageBody='" + text + '\''
+                : buffer != null ? "body=" + buffer.remaining() + " bytes" : "body=not decoded")
                 + ", receiptHandle='" + receiptHandle + '\''
                 + '}';
     }
@@ -0,0 +1,14 @@
+package com.github.slamdev.mq;
+
+/**
+ * Processes messages dispatched by {@link MessageListenerContainer}.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    /**
+     * Message is deleted when the method returns normally, thrown exception leaves the message in the queue
+     * and it is redelivered after the visibility timeout.
+     */
+    void handle(Message message) throws Exception;
+}
@@ -0,0 +1,211 @@
+package com.github.slamdev.mq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pulls messages of a single queue and dispatches them to a pool of concurrent handlers:
+ * - handler completed normally -> message is deleted
+ * - handler failed -> message is left in the queue and redelivered after the visibility timeout
+ * - handler is still running -> visibility of the message is extended on every heartbeat,
+ * so slow handlers never cause a redelivery
+ * <p>
+ * A single poller thread pulls as many messages as there are idle handlers, so there is no prefetch
+ * and received messages never wait in a local buffer while their visibility timeout runs.
+ * Heartbeat runs every half of the visibility timeout.
+ */
+public class MessageListenerContainer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageListenerContainer.class);
+
+    static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+
+    static final int DEFAULT_WAIT_TIME_SECONDS = 20;
+
+    static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final long FAILURE_DELAY_MILLIS = 1000;
+
+    private final QueueService service;
+
+    private final String queueUrl;
+
+    private final MessageHandler handler;
+
+    private final int visibilityTimeout;
+
+    private final int waitTimeSeconds;
+
+    private final Semaphore idleHandlers;
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService heartbeat;
+
+    private final Thread poller;
+
+    private final Map<String, Boolean> inProgress = new ConcurrentHashMap<>();
+
+    private volatile boolean running;
+
+    private boolean stopped;
+
+    public MessageListenerContainer(QueueService service, String queueUrl, MessageHandler handler,
+                                    int concurrency) {
+        this(service, queueUrl, handler, concurrency, DEFAULT_VISIBILITY_TIMEOUT, DEFAULT_WAIT_TIME_SECONDS);
+    }
+
+    /**
+     * @param concurrency       number of messages handled at the same time
+     * @param visibilityTimeout visibility timeout of received messages and of every extension, in seconds
+     * @param waitTimeSeconds   wait time of a single pull, shorter wait makes shutdown faster for services
+     *                          which can't interrupt a pull
+     */
+    public MessageListenerContainer(QueueService service, String queueUrl, MessageHandler handler,
+                                    int concurrency, int visibilityTimeout, int waitTimeSeconds) {
+        this.service = service;
+        this.queueUrl = queueUrl;
+        this.handler = handler;
+        this.visibilityTimeout = visibilityTimeout;
+        this.waitTimeSeconds = waitTimeSeconds;
+        this.idleHandlers = new Semaphore(concurrency);
+        this.workers = Executors.newFixedThreadPool(concurrency, threads("message-listener-" + queueUrl));
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(threads("message-heartbeat-" + queueUrl));
+        this.poller = threads("message-poller-" + queueUrl).newThread(this::poll);
+    }
+
+    /**
+     * @throws IllegalStateException if the container was stopped, a stopped container can't be started again
+     */
+    public synchronized void start() {
+        if (stopped) {
+            throw new IllegalStateException("Listener container of queue " + queueUrl
+                    + " is stopped, a new container should be created");
+        }
+        if (running) {
+            return;
+        }
+        running = true;
+        long period = Math.max(TimeUnit.SECONDS.toMillis(visibilityTimeout) / 2, 1);
+        heartbeat.scheduleAtFixedRate(this::extendVisibility, period, period, TimeUnit.MILLISECONDS);
+        poller.start();
+    }
+
+    /**
+     * Stops pulling and waits for {@link #DEFAULT_SHUTDOWN_TIMEOUT_MILLIS} for running handlers.
+     */
+    @Override
+    public void close() {
+        stop(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops pulling new messages and waits until already received messages are handled. Visibility of
+     * the messages is extended until their handlers complete, handlers which are still running after the timeout
+     * are interrupted. The timeout covers both the pull in progress and the handlers.
+     *
+     * @return false if the timeout elapsed before all handlers completed
+     */
+    public synchronized boolean stop(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        running = false;
+        stopped = true;
+        poller.interrupt();
+        try {
+            TimeUnit.NANOSECONDS.timedJoin(poller, deadline - System.nanoTime());
+            workers.shutdown();
+            return workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            workers.shutdownNow();
+            heartbeat.shutdownNow();
+        }
+    }
+
+    private void poll() {
+        while (running) {
+            try {
+                idleHandlers.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            int requested = 1 + idleHandlers.drainPermits();
+            List<Message> messages;
+            try {
+                messages = service.pullBatch(queueUrl, visibilityTimeout, requested, waitTimeSeconds);
+            } catch (RuntimeException e) {
+                idleHandlers.release(requested);
+                if (!running) {
+                    return;
+                }
+                LOGGER.warn("", e);
+                sleep(FAILURE_DELAY_MILLIS);
+                continue;
+            }
+            // messages received during shutdown are handled as well, they are already invisible for others
+            idleHandlers.release(requested - messages.size());
+            for (Message message : messages) {
+                inProgress.put(message.getReceiptHandle(), Boolean.TRUE);
+                try {
+                    workers.execute(() -> handle(message));
+                } catch (RejectedExecutionException e) {
+                    // pull outlived the shutdown timeout, message is redelivered after the visibility timeout
+                    inProgress.remove(message.getReceiptHandle());
+                }
+            }
+        }
+    }
+
+    private void handle(Message message) {
+        try {
+            handler.handle(message);
+            service.delete(queueUrl, message.getReceiptHandle());
+        } catch (Exception e) {
+            LOGGER.warn("Failed to handle message {}", message.getReceiptHandle(), e);
+        } finally {
+            inProgress.remove(message.getReceiptHandle());
+            idleHandlers.release();
+        }
+    }
+
+    private void extendVisibility() {
+        for (String receiptHandle : inProgress.keySet()) {
+            try {
+                service.changeVisibility(queueUrl, receiptHandle, visibilityTimeout);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to extend visibility of message {}", receiptHandle, e);
+            }
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory threads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
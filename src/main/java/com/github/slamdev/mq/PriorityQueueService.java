@@ -0,0 +1,318 @@
+package com.github.slamdev.mq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Decorator which splits a queue of any {@link QueueService} into priority lanes, so interactive messages
+ * are not queued behind a bulk backlog:
+ * - priority 0 -> the highest one, each lane is a queue of the delegate named queue-priority-N
+ * - the lowest priority -> the queue itself, so producers which are not aware of priorities push to it
+ * - pull -> lanes are served by smooth weighted round-robin, so under load each lane gets the share of pulls
+ * proportional to its weight and even the lowest priority is never starved
+ * <p>
+ * A lane which turns out to be empty is skipped until the next pull and loses the credit it has collected,
+ * so an idle lane does not get a burst of pulls when it becomes busy again.
+ * <p>
+ * Receipt handles of the higher priority lanes refer to the lane, so such messages should be deleted
+ * through this decorator. Lanes of an SQS queue are separate SQS queues which should be created upfront.
+ */
+public class PriorityQueueService implements QueueService {
+
+    private static final String LANE_HANDLE_PREFIX = "lane:";
+
+    private final QueueService delegate;
+
+    private final int[] weights;
+
+    private final Map<String, Scheduler> schedulers = new ConcurrentHashMap<>();
+
+    /**
+     * @param weights share of pulls of each priority, starting with the highest one
+     */
+    public PriorityQueueService(QueueService delegate, int... weights) {
+        if (weights.length == 0 || Arrays.stream(weights).anyMatch(weight -> weight <= 0)) {
+            throw new IllegalArgumentException("At least one positive weight is required: "
+                    + Arrays.toString(weights));
+        }
+        this.delegate = delegate;
+        this.weights = weights.clone();
+    }
+
+    /**
+     * Priority of the messages pushed without one.
+     */
+    public int getDefaultPriority() {
+        return weights.length - 1;
+    }
+
+    public void push(String queueUrl, String messageBody, int priority) {
+        delegate.push(laneUrl(queueUrl, checkPriority(priority)), messageBody);
+    }
+
+    public void push(String queueUrl, ByteBuffer body, int priority) {
+        delegate.push(laneUrl(queueUrl, checkPriority(priority)), body);
+    }
+
+    public BatchResult pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        return delegate.pushBatch(laneUrl(queueUrl, checkPriority(priority)), messageBodies);
+    }
+
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies, int priority) {
+        return delegate.pushBinaryBatch(laneUrl(queueUrl, checkPriority(priority)), bodies);
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody) {
+        delegate.push(queueUrl, messageBody);
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        delegate.push(queueUrl, body);
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, long delay, TimeUnit unit) {
+        delegate.push(queueUrl, messageBody, delay, unit);
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        delegate.push(queueUrl, body, delay, unit);
+    }
+
+    @Override
+    public BatchResult pushBatch(String queueUrl, List<String> messageBodies) {
+        return delegate.pushBatch(queueUrl, messageBodies);
+    }
+
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        return delegate.pushBinaryBatch(queueUrl, bodies);
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout) {
+        List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Messages are split between the lanes by their weights, the share of an empty lane goes to the others.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        Scheduler scheduler = schedulers.computeIfAbsent(queueUrl, url -> new Scheduler(weights));
+        List<Message> messages = new ArrayList<>(maxMessages);
+        boolean[] empty = new boolean[weights.length];
+        int[] shares;
+        while (messages.size() < maxMessages && (shares = scheduler.share(maxMessages - messages.size(), empty)) != null) {
+            for (int lane = 0; lane < shares.length; lane++) {
+                if (shares[lane] == 0) {
+                    continue;
+                }
+                List<Message> pulled = delegate.pullBatch(laneUrl(queueUrl, lane), visibilityTimeout, shares[lane]);
+                for (Message message : pulled) {
+                    messages.add(new Message(message, laneHandle(lane, message.getReceiptHandle()),
+                            message.getReceiveCount()));
+                }
+                if (pulled.size() < shares[lane]) {
+                    empty[lane] = true;
+                    scheduler.idle(lane);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * When all lanes are empty, waits for a message in any of them with a multi-queue pull of the delegate.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        List<Message> messages = pullBatch(queueUrl, visibilityTimeout, maxMessages);
+        if (!messages.isEmpty() || waitTimeSeconds <= 0) {
+            return messages;
+        }
+        List<String> laneUrls = new ArrayList<>(weights.length);
+        for (int lane = 0; lane < weights.length; lane++) {
+            laneUrls.add(laneUrl(queueUrl, lane));
+        }
+        Message message = delegate.pullAny(laneUrls, visibilityTimeout, waitTimeSeconds);
+        if (message == null) {
+            return messages;
+        }
+        int lane = laneUrls.indexOf(message.getQueueUrl());
+        return singletonList(new Message(message, laneHandle(lane, message.getReceiptHandle()),
+                message.getReceiveCount()));
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) {
+        delegate.delete(laneUrl(queueUrl, extractLane(receiptHandle)), extractHandle(receiptHandle));
+    }
+
+    /**
+     * Handles are deleted by a batch per lane, indexes of failures refer to the given list.
+     */
+    @Override
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        List<List<Integer>> indexes = new ArrayList<>();
+        for (int lane = 0; lane < weights.length; lane++) {
+            indexes.add(new ArrayList<>());
+        }
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            indexes.get(extractLane(receiptHandles.get(i))).add(i);
+        }
+        List<BatchResult.Failure> failures = new ArrayList<>();
+        for (int lane = 0; lane < weights.length; lane++) {
+            List<Integer> laneIndexes = indexes.get(lane);
+            if (laneIndexes.isEmpty()) {
+                continue;
+            }
+            BatchResult result = delegate.deleteBatch(laneUrl(queueUrl, lane), laneIndexes.stream()
+                    .map(index -> extractHandle(receiptHandles.get(index))).collect(toList()));
+            for (BatchResult.Failure failure : result.getFailures()) {
+                failures.add(new BatchResult.Failure(laneIndexes.get(failure.getIndex()), failure.getCode(),
+                        failure.getMessage()));
+            }
+        }
+        return failures.isEmpty() ? BatchResult.successful() : new BatchResult(failures);
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        delegate.changeVisibility(laneUrl(queueUrl, extractLane(receiptHandle)), extractHandle(receiptHandle),
+                visibilityTimeout);
+    }
+
+    /**
+     * The policy is set for every lane, so messages of all priorities end up in the same dead-letter queue.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        for (int lane = 0; lane < weights.length; lane++) {
+            delegate.setRedrivePolicy(laneUrl(queueUrl, lane), redrivePolicy);
+        }
+    }
+
+    /**
+     * Messages are moved to the lane of the default priority.
+     */
+    @Override
+    public int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+        return delegate.redrive(deadLetterQueueUrl, queueUrl, maxMessages);
+    }
+
+    /**
+     * Sum of the attributes of all lanes, the oldest message age is the one of the oldest lane.
+     */
+    @Override
+    public QueueAttributes getQueueAttributes(String queueUrl) {
+        long visible = 0;
+        long inFlight = 0;
+        long delayed = 0;
+        long oldestAge = 0;
+        for (int lane = 0; lane < weights.length; lane++) {
+            QueueAttributes attributes = delegate.getQueueAttributes(laneUrl(queueUrl, lane));
+            visible += attributes.getVisibleMessages();
+            inFlight += attributes.getInFlightMessages();
+            delayed += attributes.getDelayedMessages();
+            long age = attributes.getOldestMessageAgeMillis();
+            oldestAge = oldestAge < 0 || age < 0 ? -1 : Math.max(oldestAge, age);
+        }
+        return new QueueAttributes(visible, inFlight, delayed, oldestAge);
+    }
+
+    private int checkPriority(int priority) {
+        if (priority < 0 || priority >= weights.length) {
+            throw new IllegalArgumentException("Priority should be from 0 to " + (weights.length - 1)
+                    + ", got " + priority);
+        }
+        return priority;
+    }
+
+    private String laneUrl(String queueUrl, int lane) {
+        return lane == getDefaultPriority() ? queueUrl : queueUrl + "-priority-" + lane;
+    }
+
+    private String laneHandle(int lane, String receiptHandle) {
+        return lane == getDefaultPriority() ? receiptHandle : LANE_HANDLE_PREFIX + lane + ':' + receiptHandle;
+    }
+
+    private int extractLane(String receiptHandle) {
+        if (!receiptHandle.startsWith(LANE_HANDLE_PREFIX)) {
+            return getDefaultPriority();
+        }
+        return checkPriority(Integer.parseInt(receiptHandle.substring(LANE_HANDLE_PREFIX.length(),
+                receiptHandle.indexOf(':', LANE_HANDLE_PREFIX.length()))));
+    }
+
+    private static String extractHandle(String receiptHandle) {
+        if (!receiptHandle.startsWith(LANE_HANDLE_PREFIX)) {
+            return receiptHandle;
+        }
+        return receiptHandle.substring(receiptHandle.indexOf(':', LANE_HANDLE_PREFIX.length()) + 1);
+    }
+
+    /**
+     * Smooth weighted round-robin of nginx: every round each lane gets its weight as a credit, the lane
+     * with the most credit is served and pays the sum of the weights, so the served lanes interleave
+     * instead of going in bursts.
+     */
+    private static class Scheduler {
+
+        final int[] weights;
+
+        final long[] credits;
+
+        Scheduler(int[] weights) {
+            this.weights = weights;
+            credits = new long[weights.length];
+        }
+
+        /**
+         * @return number of messages to pull from each lane, null if all lanes are empty
+         */
+        synchronized int[] share(int messages, boolean[] empty) {
+            int total = 0;
+            for (int lane = 0; lane < weights.length; lane++) {
+                if (!empty[lane]) {
+                    total += weights[lane];
+                }
+            }
+            if (total == 0) {
+                return null;
+            }
+            int[] shares = new int[weights.length];
+            for (int i = 0; i < messages; i++) {
+                int served = -1;
+                for (int lane = 0; lane < weights.length; lane++) {
+                    if (empty[lane]) {
+                        continue;
+                    }
+                    credits[lane] += weights[lane];
+                    if (served < 0 || credits[lane] > credits[served]) {
+                        served = lane;
+                    }
+                }
+                credits[served] -= total;
+                shares[served]++;
+            }
+            return shares;
+        }
+
+        synchronized void idle(int lane) {
+            credits[lane] = 0;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.slamdev.mq;
+
+import java.util.Objects;
+
+/**
+ * Approximate state of a queue, as it was at some moment shortly before the call:
+ * - visible -> messages which can be received right now
+ * - in flight -> messages received and not deleted yet, including the ones which visibility timeout has expired
+ * but which were not received again yet
+ * - delayed -> messages pushed with a delay which were not received yet
+ * - oldest message age -> time since the oldest message which is not deleted was pushed,
+ * 0 if the queue is empty and -1 if the backend does not know it
+ */
+public final class QueueAttributes {
+
+    private static final QueueAttributes EMPTY = new QueueAttributes(0, 0, 0, 0);
+
+    private final long visibleMessages;
+
+    private final long inFlightMessages;
+
+    private final long delayedMessages;
+
+    private final long oldestMessageAgeMillis;
+
+    public QueueAttributes(long visibleMessages, long inFlightMessages, long delayedMessages,
+                           long oldestMessageAgeMillis) {
+        this.visibleMessages = visibleMessages;
+        this.inFlightMessages = inFlightMessages;
+        this.delayedMessages = delayedMessages;
+        this.oldestMessageAgeMillis = oldestMessageAgeMillis;
+    }
+
+    public static QueueAttributes empty() {
+        return EMPTY;
+    }
+
+    public long getVisibleMessages() {
+        return visibleMessages;
+    }
+
+    public long getInFlightMessages() {
+        return inFlightMessages;
+    }
+
+    public long getDelayedMessages() {
+        return delayedMessages;
+    }
+
+    public long getOldestMessageAgeMillis() {
+        return oldestMessageAgeMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        QueueAttributes that = (QueueAttributes) o;
+        return visibleMessages == that.visibleMessages && inFlightMessages == that.inFlightMessages
+                && delayedMessages == that.delayedMessages && oldestMessageAgeMillis == that.oldestMessageAgeMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(visibleMessages, inFlightMessages, delayedMessages, oldestMessageAgeMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "{"
+                + "visibleMessages=" + visibleMessages
+                + ", inFlightMessages=" + inFlightMessages
+                + ", delayedMessages=" + delayedMessages
+                + ", oldestMessageAgeMillis=" + oldestMessageAgeMillis
+                + '}';
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.slamdev.mq;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the in-memory and file queues, enabled by a recording with
+ * {@code -XX:StartFlightRecording} or {@code jcmd <pid> JFR.start}.
+ * <p>
+ * Operation creates the event, calls {@link Event#begin()} and fills the fields only if
+ * {@link Event#shouldCommit()} is true, so with recording off the cost is a few checks
+ * of a constant flag and the allocation is removed by escape analysis.
+ * Stack traces are off by default, they cost more than the operation itself.
+ */
+final class QueueEvents {
+
+    private static final String CATEGORY = "Message Queue";
+
+    private QueueEvents() {
+    }
+
+    @Name("com.github.slamdev.mq.Push")
+    @Label("Push")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Push extends Event {
+        @Label("Queue")
+        String queue;
+
+        @Label("Messages")
+        int messages;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("com.github.slamdev.mq.Pull")
+    @Label("Pull")
+    @Category(CATEGORY)
+    @Description("Pull which received no message is a miss, duration includes the wait of a long poll")
+    @StackTrace(false)
+    static class Pull extends Event {
+        @Label("Queue")
+        String queue;
+
+        @Label("Hit")
+        boolean hit;
+
+        @Label("Messages")
+        int messages;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("com.github.slamdev.mq.Delete")
+    @Label("Delete")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Delete extends Event {
+        @Label("Queue")
+        String queue;
+
+        @Label("Messages")
+        int messages;
+    }
+
+    @Name("com.github.slamdev.mq.LockContention")
+    @Label("Lock Contention")
+    @Category(CATEGORY)
+    @Description("Lock of a queue or of a shard was taken by another thread or process, duration is the wait, "
+            + "a push which moved to another shard does not wait")
+    @StackTrace(false)
+    static class LockContention extends Event {
+        @Label("Queue")
+        String queue;
+
+        @Label("Shard")
+        @Description("-1 if the queue is not sharded")
+        int shard;
+
+        @Label("Skipped")
+        @Description("Whether the operation moved to another shard instead of waiting")
+        boolean skipped;
+    }
+
+    @Name("com.github.slamdev.mq.VisibilityExpired")
+    @Label("Visibility Expired")
+    @Category(CATEGORY)
+    @Description("Messages which were not deleted within their visibility timeout and became visible again")
+    @StackTrace(false)
+    static class VisibilityExpired extends Event {
+        @Label("Queue")
+        String queue;
+
+        @Label("Messages")
+        int messages;
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.slamdev.mq;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a single queue recorded by {@link MetricsQueueService}.
+ * <p>
+ * Counters are {@link LongAdder}s, so concurrent recording does not contend on a single cache line.
+ * In-flight messages are tracked by receipt handle with their visibility deadline in a fixed-size
+ * {@link InFlightTracker}: a pull of a tracked handle is a redelivery. Expired handles are kept until their
+ * slot is needed for another message, so redelivery is detected after the visibility timeout too.
+ * Redelivery can't be detected for services which issue a new receipt handle on every receive, such as SQS.
+ */
+public class QueueMetrics implements QueueMetricsMXBean {
+
+    private final LongAdder pushCount = new LongAdder();
+    private final LongAdder pullHitCount = new LongAdder();
+    private final LongAdder pullMissCount = new LongAdder();
+    private final LongAdder deleteCount = new LongAdder();
+    private final LongAdder redeliveryCount = new LongAdder();
+    private final LatencyHistogram pushLatency = new LatencyHistogram();
+    private final LatencyHistogram pullLatency = new LatencyHistogram();
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+    private final InFlightTracker inFlight = new InFlightTracker();
+
+    void recordPush(int messages, long nanos) {
+        pushCount.add(messages);
+        pushLatency.record(nanos);
+    }
+
+    void recordPull(long nanos) {
+        pullLatency.record(nanos);
+    }
+
+    void recordMiss() {
+        pullMissCount.increment();
+    }
+
+    void recordReceived(Message message, int visibilityTimeout) {
+        pullHitCount.increment();
+        if (inFlight.received(message.getReceiptHandle(), visibilityTimeout)) {
+            redeliveryCount.increment();
+        }
+    }
+
+    void recordVisibilityChanged(String receiptHandle, int visibilityTimeout) {
+        inFlight.visibilityChanged(receiptHandle, visibilityTimeout);
+    }
+
+    void recordDelete(long nanos) {
+        deleteLatency.record(nanos);
+    }
+
+    void recordDeleted(String receiptHandle) {
+        deleteCount.increment();
+        inFlight.deleted(receiptHandle);
+    }
+
+    @Override
+    public long getPushCount() {
+        return pushCount.sum();
+    }
+
+    @Override
+    public long getPullHitCount() {
+        return pullHitCount.sum();
+    }
+
+    @Override
+    public long getPullMissCount() {
+        return pullMissCount.sum();
+    }
+
+    @Override
+    public double getPullHitRatio() {
+        long hits = getPullHitCount();
+        long total = hits + getPullMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return deleteCount.sum();
+    }
+
+    @Override
+    public long getRedeliveryCount() {
+        return redeliveryCount.sum();
+    }
+
+    @Override
+    public long getInFlightCount() {
+        return inFlight.count();
+    }
+
+    /**
+     * Number of pushed and not deleted messages seen by this instance, so it is exact only when all producers
+     * and consumers of the queue use the same instance.
+     */
+    @Override
+    public long getApproximateDepth() {
+        return Math.max(getPushCount() - getDeleteCount(), 0);
+    }
+
+    @Override
+    public LatencySnapshot getPushLatency() {
+        return pushLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getPullLatency() {
+        return pullLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getDeleteLatency() {
+        return deleteLatency.snapshot();
+    }
+}
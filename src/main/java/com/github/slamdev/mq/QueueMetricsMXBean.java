@@ -0,0 +1,26 @@
+package com.github.slamdev.mq;
+
+public interface QueueMetricsMXBean {
+
+    long getPushCount();
+
+    long getPullHitCount();
+
+    long getPullMissCount();
+
+    double getPullHitRatio();
+
+    long getDeleteCount();
+
+    long getRedeliveryCount();
+
+    long getInFlightCount();
+
+    long getApproximateDepth();
+
+    LatencySnapshot getPushLatency();
+
+    LatencySnapshot getPullLatency();
+
+    LatencySnapshot getDeleteLatency();
+}
@@ -0,0 +1,162 @@
+package com.github.slamdev.mq;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Binary protocol of {@link QueueServer} and {@link TcpQueueService}, all numbers are big endian:
+ * - request -> frame length (int, not included), request id (int), operation (byte), operation fields
+ * - response -> frame length (int, not included), request id (int), status (byte), result fields
+ * - string -> length (int, -1 for null), UTF-8 bytes
+ * - body -> length (int), bytes
+ * - failures -> count (int), then index (int), code (string) and message (string) of every failure
+ * <p>
+ * Requests of a connection are pipelined: the client sends a request without waiting for the responses
+ * of the previous ones, and responses can come in any order, they are matched by the request id.
+ * <p>
+ * Operations and their fields:
+ * - PUSH -> queue, delay in milliseconds (long), body; no result
+ * - PUSH_BATCH -> queue, count (int), bodies; failures
+ * - PULL -> queue, visibility timeout (int), max messages (int), wait time in seconds (int);
+ * count (int), then receipt handle (string), receive count (int) and body of every message
+ * - DELETE -> queue, receipt handle; no result
+ * - DELETE_BATCH -> queue, count (int), receipt handles; failures
+ * - CHANGE_VISIBILITY -> queue, receipt handle, visibility timeout (int); no result
+ * - SET_REDRIVE_POLICY -> queue, dead-letter queue (empty string removes the policy), max receive count (int);
+ * no result
+ * - REDRIVE -> dead-letter queue, queue, max messages (int); number of moved messages (int)
+ * - GET_ATTRIBUTES -> queue; visible, in-flight and delayed messages and age of the oldest message in
+ * milliseconds (longs)
+ * - PULL_ANY -> empty queue, visibility timeout (int), wait time in seconds (int), count (int), queues;
+ * count (int, 0 or 1), then queue, receipt handle (string), receive count (int) and body of the message
+ * <p>
+ * Response of a failed request has an error status and the error message (string) as its only field.
+ */
+final class QueueProtocol {
+
+    static final byte PUSH = 1;
+    static final byte PUSH_BATCH = 2;
+    static final byte PULL = 3;
+    static final byte DELETE = 4;
+    static final byte DELETE_BATCH = 5;
+    static final byte CHANGE_VISIBILITY = 6;
+    static final byte SET_REDRIVE_POLICY = 7;
+    static final byte REDRIVE = 8;
+    static final byte GET_ATTRIBUTES = 9;
+    static final byte PULL_ANY = 10;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    static final byte UNSUPPORTED = 2;
+
+    /**
+     * Guards both sides against a corrupted length, which would make them allocate a huge buffer.
+     */
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private QueueProtocol() {
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        ((Buffer) buffer).position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * @return view of the body within the frame, not copied
+     */
+    static ByteBuffer getBody(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer body = buffer.slice();
+        ((Buffer) body).limit(length);
+        ((Buffer) buffer).position(buffer.position() + length);
+        return body;
+    }
+
+    static BatchResult getFailures(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count == 0) {
+            return BatchResult.successful();
+        }
+        List<BatchResult.Failure> failures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            failures.add(new BatchResult.Failure(buffer.getInt(), getString(buffer), getString(buffer)));
+        }
+        return new BatchResult(failures);
+    }
+
+    /**
+     * Builds a frame in a heap buffer which grows on demand, the frame length is written by {@link #finish()}.
+     */
+    static final class Writer {
+
+        private ByteBuffer buffer;
+
+        Writer(int requestId, byte code) {
+            this(requestId, code, 64);
+        }
+
+        Writer(int requestId, byte code, int expectedSize) {
+            buffer = ByteBuffer.allocate(Integer.BYTES * 2 + 1 + expectedSize);
+            ((Buffer) buffer).position(Integer.BYTES);
+            buffer.putInt(requestId).put(code);
+        }
+
+        Writer putInt(int value) {
+            ensure(Integer.BYTES).putInt(value);
+            return this;
+        }
+
+        Writer putLong(long value) {
+            ensure(Long.BYTES).putLong(value);
+            return this;
+        }
+
+        Writer putString(String value) {
+            if (value == null) {
+                return putInt(-1);
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            ensure(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        Writer putBody(ByteBuffer body) {
+            ensure(Integer.BYTES + body.remaining()).putInt(body.remaining()).put(body.duplicate());
+            return this;
+        }
+
+        Writer putFailures(BatchResult result) {
+            putInt(result.getFailures().size());
+            for (BatchResult.Failure failure : result.getFailures()) {
+                putInt(failure.getIndex()).putString(failure.getCode()).putString(failure.getMessage());
+            }
+            return this;
+        }
+
+        ByteBuffer finish() {
+            buffer.putInt(0, buffer.position() - Integer.BYTES);
+            ((Buffer) buffer).flip();
+            return buffer;
+        }
+
+        private ByteBuffer ensure(int size) {
+            if (buffer.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+                ((Buffer) buffer).flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.github.slamdev.mq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.slamdev.mq.QueueProtocol.*;
+
+/**
+ * Serves a {@link QueueService} over TCP with the {@link QueueProtocol}, so processes on the same host
+ * share in-memory queues without the latency of a file system or of an HTTP stack.
+ * <p>
+ * A single selector thread reads the requests, executes them against the engine and writes the responses,
+ * the engine operations take microseconds, so a thread switch per request would cost more than the operation.
+ * Only a pull with a wait time is moved to a worker thread, so a long poll does not block other connections.
+ * Responses of a connection are written with a single gathering write per selector round, so pipelined
+ * requests share system calls.
+ */
+public class QueueServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueueServer.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final QueueService engine;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final ExecutorService waitingPulls = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "queue-server-pull");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Connections which got responses from worker threads, their output is flushed by the selector thread.
+     */
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private final Thread selectorThread;
+
+    private volatile boolean closed;
+
+    /**
+     * Serves new in-memory queues on the loopback interface.
+     */
+    public QueueServer(int port) {
+        this(new InMemoryQueueService(), new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * @param address port 0 picks a free port, see {@link #getPort()}
+     */
+    public QueueServer(QueueService engine, InetSocketAddress address) {
+        this.engine = engine;
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        selectorThread = new Thread(this::serve, "queue-server");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Closes all connections, the engine is not closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        waitingPulls.shutdownNow();
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    serve(connection, false, true);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    serve((Connection) key.attachment(), key.isReadable(), key.isWritable());
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            LOGGER.warn("Queue server is stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    /**
+     * A failure of a single connection closes only that connection, so the selector thread keeps serving others.
+     */
+    private void serve(Connection connection, boolean readable, boolean writable) {
+        try {
+            if (readable) {
+                connection.read();
+            }
+            if (writable) {
+                connection.flush();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Connection is closed on failure", e);
+            closeQuietly(connection.key);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key, channel));
+    }
+
+    private ByteBuffer execute(ByteBuffer request, int requestId, byte operation) {
+        try {
+            String queueUrl = getString(request);
+            switch (operation) {
+                case PUSH: {
+                    long delay = request.getLong();
+                    engine.push(queueUrl, getBody(request), delay, TimeUnit.MILLISECONDS);
+                    return new Writer(requestId, OK, 0).finish();
+                }
+                case PUSH_BATCH: {
+                    int count = request.getInt();
+                    List<ByteBuffer> bodies = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        bodies.add(getBody(request));
+                    }
+                    return new Writer(requestId, OK).putFailures(engine.pushBinaryBatch(queueUrl, bodies)).finish();
+                }
+                case PULL: {
+                    int visibilityTimeout = request.getInt();
+                    int maxMessages = request.getInt();
+                    int waitTimeSeconds = request.getInt();
+                    List<Message> messages = waitTimeSeconds > 0
+                            ? engine.pullBatch(queueUrl, visibilityTimeout, maxMessages, waitTimeSeconds)
+                            : engine.pullBatch(queueUrl, visibilityTimeout, maxMessages);
+                    int size = 0;
+                    for (Message message : messages) {
+                        size += Integer.BYTES * 3 + message.getReceiptHandle().length() * 3 + message.size();
+                    }
+                    Writer writer = new Writer(requestId, OK, Integer.BYTES + size).putInt(messages.size());
+                    for (Message message : messages) {
+                        writer.putString(message.getReceiptHandle())
+                                .putInt(message.getReceiveCount())
+                                .putBody(message.getBody());
+                    }
+                    return writer.finish();
+                }
+                case DELETE:
+                    engine.delete(queueUrl, getString(request));
+                    return new Writer(requestId, OK, 0).finish();
+                case DELETE_BATCH: {
+                    int count = request.getInt();
+                    List<String> receiptHandles = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        receiptHandles.add(getString(request));
+                    }
+                    return new Writer(requestId, OK).putFailures(engine.deleteBatch(queueUrl, receiptHandles)).finish();
+                }
+                case CHANGE_VISIBILITY:
+                    engine.changeVisibility(queueUrl, getString(request), request.getInt());
+                    return new Writer(requestId, OK, 0).finish();
+                case SET_REDRIVE_POLICY: {
+                    String deadLetterQueueUrl = getString(request);
+                    int maxReceiveCount = request.getInt();
+                    engine.setRedrivePolicy(queueUrl, deadLetterQueueUrl.isEmpty()
+                            ? null : new RedrivePolicy(deadLetterQueueUrl, maxReceiveCount));
+                    return new Writer(requestId, OK, 0).finish();
+                }
+                case REDRIVE: {
+                    String targetQueueUrl = getString(request);
+                    int moved = engine.redrive(queueUrl, targetQueueUrl, request.getInt());
+                    return new Writer(requestId, OK, Integer.BYTES).putInt(moved).finish();
+                }
+                case GET_ATTRIBUTES: {
+                    QueueAttributes attributes = engine.getQueueAttributes(queueUrl);
+                    return new Writer(requestId, OK, Long.BYTES * 4)
+                            .putLong(attributes.getVisibleMessages())
+                            .putLong(attributes.getInFlightMessages())
+                            .putLong(attributes.getDelayedMessages())
+                            .putLong(attributes.getOldestMessageAgeMillis())
+                            .finish();
+                }
+                case PULL_ANY: {
+                    int visibilityTimeout = request.getInt();
+                    int waitTimeSeconds = request.getInt();
+                    int count = request.getInt();
+                    List<String> queueUrls = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        queueUrls.add(getString(request));
+                    }
+                    Message message = waitTimeSeconds > 0
+                            ? engine.pullAny(queueUrls, visibilityTimeout, waitTimeSeconds)
+                            : engine.pullAny(queueUrls, visibilityTimeout);
+                    if (message == null) {
+                        return new Writer(requestId, OK, Integer.BYTES).putInt(0).finish();
+                    }
+                    int size = Integer.BYTES * 5 + (message.getQueueUrl().length()
+                            + message.getReceiptHandle().length()) * 3 + message.size();
+                    return new Writer(requestId, OK, size).putInt(1)
+                            .putString(message.getQueueUrl())
+                            .putString(message.getReceiptHandle())
+                            .putInt(message.getReceiveCount())
+                            .putBody(message.getBody())
+                            .finish();
+                }
+                default:
+                    throw new UnsupportedOperationException("Unknown operation: " + operation);
+            }
+        } catch (UnsupportedOperationException e) {
+            return new Writer(requestId, UNSUPPORTED).putString(e.getMessage()).finish();
+        } catch (RuntimeException e) {
+            return new Writer(requestId, ERROR).putString(String.valueOf(e.getMessage())).finish();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            LOGGER.debug("", e);
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    private class Connection {
+
+        final SelectionKey key;
+
+        final SocketChannel channel;
+
+        /**
+         * Written by the selector thread and by the workers, consumed by the selector thread only.
+         */
+        final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        Connection(SelectionKey key, SocketChannel channel) {
+            this.key = key;
+            this.channel = channel;
+        }
+
+        void read() {
+            try {
+                if (channel.read(input) < 0) {
+                    closeQuietly(key);
+                    return;
+                }
+                ((Buffer) input).flip();
+                while (input.remaining() >= Integer.BYTES) {
+                    int length = input.getInt(input.position());
+                    if (length <= Integer.BYTES || length > MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    if (input.remaining() < Integer.BYTES + length) {
+                        break;
+                    }
+                    // copy of the frame, so bodies pushed to the engine do not reference the reused input buffer
+                    byte[] frame = new byte[length];
+                    ((Buffer) input).position(input.position() + Integer.BYTES);
+                    input.get(frame);
+                    dispatch(ByteBuffer.wrap(frame));
+                }
+                input.compact();
+                if (input.position() >= Integer.BYTES) {
+                    int required = Integer.BYTES + input.getInt(0);
+                    if (required > input.capacity()) {
+                        ByteBuffer grown = ByteBuffer.allocate(required);
+                        ((Buffer) input).flip();
+                        grown.put(input);
+                        input = grown;
+                    }
+                }
+                flush();
+            } catch (IOException e) {
+                LOGGER.debug("Connection is closed", e);
+                closeQuietly(key);
+            }
+        }
+
+        void dispatch(ByteBuffer request) {
+            int requestId = request.getInt();
+            byte operation = request.get();
+            if ((operation == PULL || operation == PULL_ANY) && waitsForMessages(request, operation)) {
+                waitingPulls.execute(() -> {
+                    output.add(execute(request, requestId, operation));
+                    pendingWrites.add(this);
+                    selector.wakeup();
+                });
+            } else {
+                output.add(execute(request, requestId, operation));
+            }
+        }
+
+        /**
+         * Peeks the wait time without consuming the request, a truncated request is not moved to a worker,
+         * so {@link #execute} answers it with an error.
+         */
+        boolean waitsForMessages(ByteBuffer request, byte operation) {
+            if (request.remaining() < Integer.BYTES) {
+                return false;
+            }
+            int queueLength = Math.max(request.getInt(request.position()), 0);
+            // queue, visibility timeout, max messages of a single queue pull, then wait time
+            int fields = operation == PULL ? 3 : 2;
+            long waitTime = request.position() + (long) Integer.BYTES * fields + queueLength;
+            return waitTime + Integer.BYTES <= request.limit() && request.getInt((int) waitTime) > 0;
+        }
+
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                List<ByteBuffer> batch = new ArrayList<>();
+                for (ByteBuffer buffer : output) {
+                    batch.add(buffer);
+                }
+                if (!batch.isEmpty()) {
+                    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                    channel.write(buffers);
+                    for (ByteBuffer buffer : buffers) {
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+                        output.poll();
+                    }
+                }
+                key.interestOps(output.isEmpty()
+                        ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                LOGGER.debug("Connection is closed", e);
+                closeQuietly(key);
+            }
+        }
+    }
+}
@@ -1,10 +1,209 @@
 package com.github.slamdev.mq;
 
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
+
 public interface QueueService {
 
     void delete(String queueUrl, String receiptHandle);
 
+    /**
+     * Makes the received message invisible for visibilityTimeout seconds counted from now,
+     * 0 makes it visible for other consumers immediately. Ignored if the message is not in flight.
+     */
+    void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout);
+
     Message pull(String queueUrl, int visibilityTimeout);
 
-    void push(String queueUrl, String messageBody);
+    /**
+     * Pushes remaining bytes of the buffer, position of the buffer is not changed.
+     */
+    void push(String queueUrl, ByteBuffer body);
+
+    /**
+     * Pushes UTF-8 representation of the message body.
+     */
+    default void push(String queueUrl, String messageBody) {
+        push(queueUrl, Message.encode(messageBody));
+    }
+
+    /**
+     * Pushes the message which becomes visible for consumers after the delay.
+     * Default implementation supports zero delay only.
+     */
+    default void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        if (delay > 0) {
+            throw new UnsupportedOperationException("Delayed push is not supported by " + getClass().getSimpleName());
+        }
+        push(queueUrl, body);
+    }
+
+    default void push(String queueUrl, String messageBody, long delay, TimeUnit unit) {
+        push(queueUrl, Message.encode(messageBody), delay, unit);
+    }
+
+    /**
+     * Pushes the message which becomes visible for consumers at the given time, or right away if it has passed.
+     */
+    default void pushAt(String queueUrl, String messageBody, Instant visibleAt) {
+        push(queueUrl, messageBody, Math.max(Duration.between(Instant.now(), visibleAt).toMillis(), 0),
+                TimeUnit.MILLISECONDS);
+    }
+
+    default void pushAt(String queueUrl, ByteBuffer body, Instant visibleAt) {
+        push(queueUrl, body, Math.max(Duration.between(Instant.now(), visibleAt).toMillis(), 0),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits up to waitTimeSeconds for a message to be pushed or to become visible again,
+     * returns null if there is still no message after the wait time.
+     */
+    default Message pull(String queueUrl, int visibilityTimeout, int waitTimeSeconds) {
+        List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1, waitTimeSeconds);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    default BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        receiptHandles.forEach(receiptHandle -> delete(queueUrl, receiptHandle));
+        return BatchResult.successful();
+    }
+
+    /**
+     * Receives up to maxMessages messages, returns empty list when there are no visible messages in the queue.
+     */
+    default List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        List<Message> messages = new ArrayList<>();
+        Message message;
+        while (messages.size() < maxMessages && (message = pull(queueUrl, visibilityTimeout)) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Waits up to waitTimeSeconds for at least one message, returns empty list if there is still no message after
+     * the wait time. Default implementation polls the queue with an exponential backoff, implementations should
+     * override it with a notification mechanism of the underlying storage.
+     */
+    default List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+        long backoff = TimeUnit.MILLISECONDS.toNanos(1);
+        while (true) {
+            List<Message> messages = pullBatch(queueUrl, visibilityTimeout, maxMessages);
+            long remaining = deadline - System.nanoTime();
+            if (!messages.isEmpty() || remaining <= 0) {
+                return messages;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(backoff, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return messages;
+            }
+            backoff = Math.min(backoff * 2, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    /**
+     * Receives a message from any of the queues, returns null if there are no visible messages in all of them.
+     * Queue of the message is returned by {@link Message#getQueueUrl()}. Default implementation pulls the queues
+     * one by one starting from a random one, so no queue is preferred, implementations should skip the queues
+     * which are known to be empty without asking the storage.
+     */
+    default Message pullAny(List<String> queueUrls, int visibilityTimeout) {
+        int start = queueUrls.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(queueUrls.size());
+        for (int i = 0; i < queueUrls.size(); i++) {
+            String queueUrl = queueUrls.get((start + i) % queueUrls.size());
+            Message message = pull(queueUrl, visibilityTimeout);
+            if (message != null) {
+                return message.withQueueUrl(queueUrl);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits up to waitTimeSeconds for a message in any of the queues, returns null if there is still no message
+     * after the wait time. Default implementation polls the queues with an exponential backoff.
+     */
+    default Message pullAny(List<String> queueUrls, int visibilityTimeout, int waitTimeSeconds) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+        long backoff = TimeUnit.MILLISECONDS.toNanos(1);
+        while (true) {
+            Message message = pullAny(queueUrls, visibilityTimeout);
+            long remaining = deadline - System.nanoTime();
+            if (message != null || remaining <= 0) {
+                return message;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(backoff, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            backoff = Math.min(backoff * 2, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    /**
+     * Messages received more than maxReceiveCount times are moved to the dead-letter queue on the next receive,
+     * null removes the policy. Default implementation does not support dead-letter queues.
+     */
+    default void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        throw new UnsupportedOperationException("Redrive policy is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Moves up to maxMessages visible messages from the dead-letter queue back to the queue and returns
+     * the number of moved messages. Default implementation moves them in batches by pull, push and delete,
+     * so a failure in between leaves a copy of the batch in both queues.
+     */
+    default int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+        int moved = 0;
+        while (moved < maxMessages) {
+            List<Message> messages = pullBatch(deadLetterQueueUrl, 30, Math.min(100, maxMessages - moved));
+            if (messages.isEmpty()) {
+                break;
+            }
+            BatchResult result = pushBinaryBatch(queueUrl, messages.stream().map(Message::getBody).collect(toList()));
+            List<String> pushed = messages.stream().map(Message::getReceiptHandle)
+                    .collect(toCollection(ArrayList::new));
+            // failed messages stay in the dead-letter queue and become visible again after the timeout
+            result.getFailures().forEach(failure -> pushed.set(failure.getIndex(), null));
+            pushed.removeIf(Objects::isNull);
+            deleteBatch(deadLetterQueueUrl, pushed);
+            moved += pushed.size();
+            if (pushed.isEmpty()) {
+                break;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Returns approximate numbers of messages in the queue without scanning it, so it can be polled often,
+     * for example by an autoscaler of consumers. Default implementation does not support it.
+     */
+    default QueueAttributes getQueueAttributes(String queueUrl) {
+        throw new UnsupportedOperationException("Queue attributes are not supported by " + getClass().getSimpleName());
+    }
+
+    default BatchResult pushBatch(String queueUrl, List<String> messageBodies) {
+        return pushBinaryBatch(queueUrl, messageBodies.stream().map(Message::encode).collect(toList()));
+    }
+
+    default BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        bodies.forEach(body -> push(queueUrl, body));
+        return BatchResult.successful();
+    }
 }
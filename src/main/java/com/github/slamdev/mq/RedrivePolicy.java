@@ -0,0 +1,58 @@
+package com.github.slamdev.mq;
+
+import java.util.Objects;
+
+/**
+ * Moves a message to the dead-letter queue instead of delivering it once it was received maxReceiveCount times,
+ * so a message which always fails stops taking consumers from the rest of the queue.
+ */
+public final class RedrivePolicy {
+
+    private final String deadLetterQueueUrl;
+
+    private final int maxReceiveCount;
+
+    public RedrivePolicy(String deadLetterQueueUrl, int maxReceiveCount) {
+        if (maxReceiveCount <= 0) {
+            throw new IllegalArgumentException("Max receive count should be positive: " + maxReceiveCount);
+        }
+        this.deadLetterQueueUrl = deadLetterQueueUrl;
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    public String getDeadLetterQueueUrl() {
+        return deadLetterQueueUrl;
+    }
+
+    public int getMaxReceiveCount() {
+        return maxReceiveCount;
+    }
+
+    /**
+     * @param receiveCount number of receives including the one being made
+     */
+    boolean isExceeded(int receiveCount) {
+        return receiveCount > maxReceiveCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RedrivePolicy that = (RedrivePolicy) o;
+        return maxReceiveCount == that.maxReceiveCount && Objects.equals(deadLetterQueueUrl, that.deadLetterQueueUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(deadLetterQueueUrl, maxReceiveCount);
+    }
+
+    @Override
+    public String toString() {
+        return "{"
+                + "deadLetterQueueUrl='" + deadLetterQueueUrl + '\''
+                + ", maxReceiveCount=" + maxReceiveCount
+                + '}';
+    }
+}
@@ -0,0 +1,642 @@
+package com.github.slamdev.mq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * File based queue which appends messages to segment files instead of creating a file per message.
+ * <p>
+ * Every queue directory contains:
+ * - queue.lock -> file locked exclusively for the duration of every operation
+ * - queue.meta -> memory mapped numbers of the first and the last live segments and the nearest visibility
+ * deadline of the delivered messages
+ * - N.log -> message bodies appended one after another, extended by 4 MB chunks when they are mapped
+ * - N.idx -> memory mapped fixed size entries (offset, length, state, visibility deadline) for the N.log file,
+ * the cursor of the first not deleted entry and the ready entry, the first one which was never delivered
+ * <p>
+ * Index files are mapped by every process working with the queue, so visibility and deletion updates
+ * are shared through the page cache and an operation costs a lock syscall plus a positional read or write.
+ * Segments which have all of their entries deleted are removed by a background compactor.
+ */
+public class SegmentedFileQueueService implements QueueService, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedFileQueueService.class);
+
+    static final int DEFAULT_SEGMENT_CAPACITY = 64 * 1024;
+
+    private static final long COMPACTION_INTERVAL_MILLIS = 1000;
+
+    private static final String SEGMENT_NAME = "%020d";
+
+    private static final int META_SIZE = 24;
+    private static final int META_FIRST_SEGMENT = 0;
+    private static final int META_LAST_SEGMENT = 8;
+    private static final int META_NEXT_VISIBLE_AT = 16;
+
+    private static final int INDEX_HEADER_SIZE = 16;
+    private static final int INDEX_COUNT = 0;
+    private static final int INDEX_DELETED = 4;
+    private static final int INDEX_CURSOR = 8;
+    private static final int INDEX_READY = 12;
+
+    /**
+     * Log is mapped by chunks of this size, so a growing log is never remapped as a whole.
+     */
+    static final int LOG_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int ENTRY_SIZE = 24;
+    private static final int ENTRY_OFFSET = 0;
+    private static final int ENTRY_LENGTH = 8;
+    private static final int ENTRY_STATE = 12;
+    private static final int ENTRY_VISIBLE_AT = 16;
+
+    private static final int STATE_LIVE = 0;
+    private static final int STATE_DELETED = 1;
+
+    /**
+     * File locks are held on behalf of the whole JVM, and taking an overlapping lock from the same JVM fails,
+     * so several service instances sharing a storage directory should be serialized by the same thread lock.
+     */
+    private static final Map<Path, Lock> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private final Map<String, QueueStore> queues = new ConcurrentHashMap<>();
+
+    private final Path storage;
+
+    private final int segmentCapacity;
+
+    private final ScheduledExecutorService compactor;
+
+    private final DirectoryWatcher watcher = new DirectoryWatcher();
+
+    public SegmentedFileQueueService() {
+        this(propagate(() -> Files.createTempDirectory("queues")));
+    }
+
+    public SegmentedFileQueueService(Path storage) {
+        this(storage, DEFAULT_SEGMENT_CAPACITY);
+    }
+
+    SegmentedFileQueueService(Path storage, int segmentCapacity) {
+        this.storage = storage;
+        this.segmentCapacity = segmentCapacity;
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "segmented-queue-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ignores a receipt handle which was not issued by this service, the same way as a handle of a deleted message.
+     */
+    @Override
+    public void delete(String queueUrl, String receiptHandle) {
+        QueueStore queue = queue(queueUrl);
+        queue.locked(() -> {
+            queue.delete(receiptHandle);
+            return null;
+        });
+    }
+
+    /**
+     * Receipt handles which were not issued by this service are reported as failures, the others are deleted.
+     */
+    @Override
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        QueueStore queue = queue(queueUrl);
+        List<BatchResult.Failure> failures = new ArrayList<>();
+        List<String> valid = new ArrayList<>(receiptHandles.size());
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            String receiptHandle = receiptHandles.get(i);
+            if (extractSegment(receiptHandle) < 0 || extractEntry(receiptHandle) < 0) {
+                failures.add(new BatchResult.Failure(i, FileQueueService.INVALID_RECEIPT_HANDLE,
+                        "Receipt handle " + receiptHandle + " is invalid"));
+            } else {
+                valid.add(receiptHandle);
+            }
+        }
+        queue.locked(() -> {
+            valid.forEach(queue::delete);
+            return null;
+        });
+        return failures.isEmpty() ? BatchResult.successful() : new BatchResult(failures);
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        QueueStore queue = queue(queueUrl);
+        queue.locked(() -> {
+            queue.changeVisibility(receiptHandle, visibilityTimeout);
+            return null;
+        });
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        push(queueUrl, body, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delayed message is appended with its visibility deadline, so consumers step over it
+     * the same way as over a message in flight.
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        QueueStore queue = queue(queueUrl);
+        long visibleAt = delay > 0 ? System.currentTimeMillis() + unit.toMillis(delay) : 0;
+        queue.locked(() -> {
+            queue.append(body, visibleAt);
+            return null;
+        });
+    }
+
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        QueueStore queue = queue(queueUrl);
+        queue.locked(() -> {
+            bodies.forEach(body -> queue.append(body, 0));
+            return null;
+        });
+        return BatchResult.successful();
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout) {
+        List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        QueueStore queue = queue(queueUrl);
+        return queue.locked(() -> queue.claim(visibilityTimeout, maxMessages)).messages;
+    }
+
+    /**
+     * Appends to the log files are reported by the directory watcher, so pushes from any process wake up
+     * the consumer. Wait is limited by the nearest visibility deadline seen during the lookup.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        QueueStore queue = queue(queueUrl);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+        while (true) {
+            long version = watcher.version(queue.dir);
+            Claim claim = queue.locked(() -> queue.claim(visibilityTimeout, maxMessages));
+            long remaining = deadline - System.nanoTime();
+            if (!claim.messages.isEmpty() || remaining <= 0) {
+                return claim.messages;
+            }
+            if (claim.nextVisibleAt != Long.MAX_VALUE) {
+                long untilVisible = claim.nextVisibleAt - System.currentTimeMillis();
+                remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(Math.max(untilVisible, 0)));
+            }
+            try {
+                watcher.await(queue.dir, version, remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return claim.messages;
+            }
+        }
+    }
+
+    /**
+     * Removes fully deleted segments from the head of every queue opened by this instance.
+     * Only leading segments are removed, so segment numbers between the first and the last always exist.
+     */
+    void compact() {
+        for (QueueStore queue : queues.values()) {
+            try {
+                queue.locked(() -> {
+                    queue.compact();
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                LOGGER.warn("", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        watcher.close();
+        queues.values().forEach(QueueStore::close);
+        queues.clear();
+    }
+
+    private QueueStore queue(String queueUrl) {
+        return queues.computeIfAbsent(queueUrl, k -> new QueueStore(storage.resolve(k)));
+    }
+
+    private static String createReceiptHandle(long segment, int entry) {
+        return segment + "-" + entry;
+    }
+
+    /**
+     * @return -1 if the handle is not a segment and an entry of a message
+     */
+    private static long extractSegment(String receiptHandle) {
+        int separator = receiptHandle.indexOf('-');
+        try {
+            return separator < 0 ? -1 : Math.max(Long.parseLong(receiptHandle.substring(0, separator)), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return -1 if the handle is not a segment and an entry of a message
+     */
+    private static int extractEntry(String receiptHandle) {
+        int separator = receiptHandle.indexOf('-');
+        try {
+            return separator < 0 ? -1 : Math.max(Integer.parseInt(receiptHandle.substring(separator + 1)), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static <T> T propagate(Callable<T> action) {
+        try {
+            return action.call();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            LOGGER.warn("", e);
+        }
+    }
+
+    private class QueueStore {
+        final Path dir;
+        final Lock lock;
+        final FileChannel lockChannel;
+        final FileChannel metaChannel;
+        final MappedByteBuffer meta;
+        final NavigableMap<Long, Segment> segments = new TreeMap<>();
+
+        QueueStore(Path dir) {
+            this.dir = dir;
+            propagate(() -> Files.createDirectories(dir));
+            Path lockFile = dir.resolve("queue.lock").toAbsolutePath().normalize();
+            lock = JVM_LOCKS.computeIfAbsent(lockFile, k -> new ReentrantLock());
+            lockChannel = propagate(() -> FileChannel.open(lockFile, CREATE, READ, WRITE));
+            metaChannel = propagate(() -> FileChannel.open(dir.resolve("queue.meta"), CREATE, READ, WRITE));
+            // mapping beyond the end of the file extends it with zeros, which is a valid empty queue
+            meta = propagate(() -> metaChannel.map(FileChannel.MapMode.READ_WRITE, 0, META_SIZE));
+        }
+
+        <T> T locked(Supplier<T> action) {
+            lock.lock();
+            try {
+                FileLock fileLock = propagate(lockChannel::lock);
+                try {
+                    evictRemovedSegments();
+                    return action.get();
+                } finally {
+                    propagate(() -> {
+                        fileLock.release();
+                        return null;
+                    });
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long firstSegment() {
+            return meta.getLong(META_FIRST_SEGMENT);
+        }
+
+        long lastSegment() {
+            return meta.getLong(META_LAST_SEGMENT);
+        }
+
+        Segment segment(long number) {
+            if (number < firstSegment() || number > lastSegment()) {
+                return null;
+            }
+            return segments.computeIfAbsent(number, n -> new Segment(dir, n, segmentCapacity));
+        }
+
+        /**
+         * Expired messages are redelivered before the new ones. Delivered entries, the ones before the ready
+         * entry of their segment, are scanned only when the nearest visibility deadline has passed, the deadline
+         * is recalculated by a complete scan. The scan starts from the cursor of every segment, which points
+         * to the first not deleted entry, so fully consumed prefix of the queue is never scanned again.
+         */
+        Claim claim(int visibilityTimeout, int maxMessages) {
+            Claim claim = new Claim();
+            long now = System.currentTimeMillis();
+            long visibleAt = now + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+            long nextVisibleAt = meta.getLong(META_NEXT_VISIBLE_AT);
+            if (nextVisibleAt <= now) {
+                nextVisibleAt = Long.MAX_VALUE;
+                scan:
+                for (long number = firstSegment(); number <= lastSegment(); number++) {
+                    Segment segment = segment(number);
+                    int ready = segment.ready();
+                    for (int entry = segment.advanceCursor(); entry < ready; entry++) {
+                        if (segment.state(entry) != STATE_LIVE) {
+                            continue;
+                        }
+                        if (claim.messages.size() == maxMessages) {
+                            // not scanned entries can contain expired messages
+                            nextVisibleAt = now;
+                            break scan;
+                        }
+                        long entryVisibleAt = segment.visibleAt(entry);
+                        if (entryVisibleAt <= now) {
+                            entryVisibleAt = deliver(claim, number, segment, entry, visibleAt);
+                        }
+                        nextVisibleAt = Math.min(nextVisibleAt, entryVisibleAt);
+                    }
+                }
+            }
+            for (long number = firstSegment(); claim.messages.size() < maxMessages && number <= lastSegment();
+                 number++) {
+                Segment segment = segment(number);
+                int count = segment.count();
+                int ready = segment.ready();
+                for (; claim.messages.size() < maxMessages && ready < count; ready++) {
+                    if (segment.state(ready) != STATE_LIVE) {
+                        continue;
+                    }
+                    long entryVisibleAt = segment.visibleAt(ready);
+                    if (entryVisibleAt > now) {
+                        // delayed message is left behind the ready entry and delivered by the scan when it is due
+                        nextVisibleAt = Math.min(nextVisibleAt, entryVisibleAt);
+                        continue;
+                    }
+                    nextVisibleAt = Math.min(nextVisibleAt, deliver(claim, number, segment, ready, visibleAt));
+                }
+                segment.setReady(ready);
+            }
+            meta.putLong(META_NEXT_VISIBLE_AT, nextVisibleAt);
+            claim.nextVisibleAt = nextVisibleAt;
+            return claim;
+        }
+
+        /**
+         * @return new visibility deadline of the entry
+         */
+        private long deliver(Claim claim, long number, Segment segment, int entry, long visibleAt) {
+            segment.setVisibleAt(entry, visibleAt);
+            claim.messages.add(new Message(segment.read(entry), createReceiptHandle(number, entry)));
+            return visibleAt;
+        }
+
+        void append(ByteBuffer body, long visibleAt) {
+            Segment segment = segment(lastSegment());
+            if (segment.count() == segmentCapacity) {
+                segment = roll();
+            }
+            segment.append(body, visibleAt);
+        }
+
+        void delete(String receiptHandle) {
+            long number = extractSegment(receiptHandle);
+            int entry = extractEntry(receiptHandle);
+            Segment segment = number < 0 || entry < 0 ? null : segment(number);
+            if (segment != null && entry < segment.count() && segment.state(entry) == STATE_LIVE) {
+                segment.markDeleted(entry);
+            }
+        }
+
+        void changeVisibility(String receiptHandle, int visibilityTimeout) {
+            long number = extractSegment(receiptHandle);
+            int entry = extractEntry(receiptHandle);
+            Segment segment = number < 0 || entry < 0 ? null : segment(number);
+            long now = System.currentTimeMillis();
+            if (segment != null && entry < segment.ready() && segment.state(entry) == STATE_LIVE
+                    && segment.visibleAt(entry) > now) {
+                long visibleAt = now + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+                segment.setVisibleAt(entry, visibleAt);
+                meta.putLong(META_NEXT_VISIBLE_AT, Math.min(meta.getLong(META_NEXT_VISIBLE_AT), visibleAt));
+            }
+        }
+
+        Segment roll() {
+            long number = lastSegment() + 1;
+            Segment segment = new Segment(dir, number, segmentCapacity);
+            segments.put(number, segment);
+            meta.putLong(META_LAST_SEGMENT, number);
+            return segment;
+        }
+
+        void compact() {
+            long first = firstSegment();
+            while (first < lastSegment()) {
+                Segment segment = segment(first);
+                if (segment.deleted() < segmentCapacity) {
+                    break;
+                }
+                segments.remove(first);
+                segment.delete();
+                first++;
+                meta.putLong(META_FIRST_SEGMENT, first);
+            }
+        }
+
+        /**
+         * Other processes can compact the queue, so segments below the first live one should be closed.
+         */
+        void evictRemovedSegments() {
+            Iterator<Segment> removed = segments.headMap(firstSegment()).values().iterator();
+            while (removed.hasNext()) {
+                removed.next().close();
+                removed.remove();
+            }
+        }
+
+        /**
+         * Only the thread lock is taken, since closing the channel releases the file lock anyway.
+         */
+        void close() {
+            lock.lock();
+            try {
+                segments.values().forEach(Segment::close);
+                segments.clear();
+                closeQuietly(metaChannel);
+                closeQuietly(lockChannel);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Claim {
+        final List<Message> messages = new ArrayList<>();
+        long nextVisibleAt = Long.MAX_VALUE;
+    }
+
+    private static class Segment {
+        final Path logFile;
+        final Path indexFile;
+        final FileChannel log;
+        final FileChannel indexChannel;
+        final MappedByteBuffer index;
+        MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+        Segment(Path dir, long number, int capacity) {
+            String name = String.format(SEGMENT_NAME, number);
+            logFile = dir.resolve(name + ".log");
+            indexFile = dir.resolve(name + ".idx");
+            log = propagate(() -> FileChannel.open(logFile, CREATE, READ, WRITE));
+            indexChannel = propagate(() -> FileChannel.open(indexFile, CREATE, READ, WRITE));
+            long indexSize = INDEX_HEADER_SIZE + (long) ENTRY_SIZE * capacity;
+            index = propagate(() -> indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize));
+        }
+
+        int count() {
+            return index.getInt(INDEX_COUNT);
+        }
+
+        int deleted() {
+            return index.getInt(INDEX_DELETED);
+        }
+
+        int state(int entry) {
+            return index.getInt(position(entry) + ENTRY_STATE);
+        }
+
+        long visibleAt(int entry) {
+            return index.getLong(position(entry) + ENTRY_VISIBLE_AT);
+        }
+
+        void setVisibleAt(int entry, long visibleAt) {
+            index.putLong(position(entry) + ENTRY_VISIBLE_AT, visibleAt);
+        }
+
+        void markDeleted(int entry) {
+            index.putInt(position(entry) + ENTRY_STATE, STATE_DELETED);
+            index.putInt(INDEX_DELETED, deleted() + 1);
+        }
+
+        int ready() {
+            return index.getInt(INDEX_READY);
+        }
+
+        void setReady(int entry) {
+            index.putInt(INDEX_READY, entry);
+        }
+
+        /**
+         * Moves the cursor over deleted entries and returns the first entry which is not deleted yet.
+         */
+        int advanceCursor() {
+            int cursor = index.getInt(INDEX_CURSOR);
+            int count = count();
+            while (cursor < count && state(cursor) == STATE_DELETED) {
+                cursor++;
+            }
+            index.putInt(INDEX_CURSOR, cursor);
+            return cursor;
+        }
+
+        /**
+         * Body is written before the entry and the entry before the count,
+         * so a process never observes an entry pointing to not written data.
+         * Body is written right after the previous one, since mapped chunks extend the log beyond its data.
+         */
+        void append(ByteBuffer body, long visibleAt) {
+            int entry = count();
+            long offset = entry == 0 ? 0 : index.getLong(position(entry - 1) + ENTRY_OFFSET)
+                    + index.getInt(position(entry - 1) + ENTRY_LENGTH);
+            ByteBuffer buffer = body.duplicate();
+            int length = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                long written = length - buffer.remaining();
+                propagate(() -> log.write(buffer, offset + written));
+            }
+            int position = position(entry);
+            index.putLong(position + ENTRY_OFFSET, offset);
+            index.putInt(position + ENTRY_LENGTH, length);
+            index.putInt(position + ENTRY_STATE, STATE_LIVE);
+            index.putLong(position + ENTRY_VISIBLE_AT, visibleAt);
+            index.putInt(INDEX_COUNT, entry + 1);
+        }
+
+        /**
+         * Returns a read-only view of the body in the memory mapped log, so the body is never copied to the heap.
+         * Log is mapped by fixed size chunks, each chunk is mapped once, which extends the file with zeros up to
+         * the end of the chunk. Body which crosses the chunk boundary is mapped on its own. Mapping stays valid
+         * even after the segment is deleted by the compactor.
+         */
+        ByteBuffer read(int entry) {
+            int position = position(entry);
+            long offset = index.getLong(position + ENTRY_OFFSET);
+            int length = index.getInt(position + ENTRY_LENGTH);
+            long chunk = offset / LOG_CHUNK_SIZE;
+            int chunkOffset = (int) (offset % LOG_CHUNK_SIZE);
+            if (chunkOffset + (long) length > LOG_CHUNK_SIZE) {
+                return propagate(() -> log.map(FileChannel.MapMode.READ_ONLY, offset, length));
+            }
+            ByteBuffer view = chunk((int) chunk).duplicate();
+            ((Buffer) view).limit(chunkOffset + length).position(chunkOffset);
+            return view.slice();
+        }
+
+        private MappedByteBuffer chunk(int chunk) {
+            if (chunk >= chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunk + 1);
+            }
+            if (chunks[chunk] == null) {
+                long position = (long) chunk * LOG_CHUNK_SIZE;
+                chunks[chunk] = propagate(() -> log.map(FileChannel.MapMode.READ_ONLY, position, LOG_CHUNK_SIZE));
+            }
+            return chunks[chunk];
+        }
+
+        void close() {
+            closeQuietly(log);
+            closeQuietly(indexChannel);
+        }
+
+        void delete() {
+            close();
+            propagate(() -> Files.deleteIfExists(logFile));
+            propagate(() -> Files.deleteIfExists(indexFile));
+        }
+
+        private static int position(int entry) {
+            return INDEX_HEADER_SIZE + entry * ENTRY_SIZE;
+        }
+    }
+}
@@ -1,40 +1,305 @@
 package com.github.slamdev.mq;
 
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeName;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.stream.Collectors.toList;
 
 public class SqsQueueService implements QueueService {
 
+    /**
+     * SQS limits batch requests and receive requests to 10 entries
+     */
+    static final int MAX_BATCH_SIZE = 10;
+
+    static final int MAX_WAIT_TIME_SECONDS = 20;
+
+    static final String CONTENT_ENCODING = "ContentEncoding";
+
+    private static final String BASE64 = "base64";
+
+    static final String RECEIVE_COUNT = MessageSystemAttributeName.ApproximateReceiveCount.toString();
+
+    private static final String QUEUE_ARN = QueueAttributeName.QueueArn.toString();
+
+    private static final String REDRIVE_POLICY = QueueAttributeName.RedrivePolicy.toString();
+
+    private static final String VISIBLE_MESSAGES = QueueAttributeName.ApproximateNumberOfMessages.toString();
+
+    private static final String IN_FLIGHT_MESSAGES =
+            QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString();
+
+    private static final String DELAYED_MESSAGES = QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString();
+
+    /**
+     * SQS updates approximate numbers of messages about once a minute, so there is no point to ask it more often.
+     */
+    static final long DEFAULT_ATTRIBUTES_CACHE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Map<String, MessageAttributeValue> BASE64_ATTRIBUTES = singletonMap(CONTENT_ENCODING,
+            new MessageAttributeValue().withDataType("String").withStringValue(BASE64));
+
     private final AmazonSQSClient sqsClient;
 
+    private final Map<String, CachedAttributes> attributes = new ConcurrentHashMap<>();
+
+    private volatile long attributesCacheNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ATTRIBUTES_CACHE_MILLIS);
+
     public SqsQueueService(AmazonSQSClient sqsClient) {
         this.sqsClient = sqsClient;
     }
 
+    /**
+     * Sets the time for which queue attributes are returned without a request to SQS, 0 disables the cache.
+     */
+    public void setAttributesCacheTime(long cacheTime, TimeUnit unit) {
+        attributesCacheNanos = unit.toNanos(cacheTime);
+    }
+
     @Override
     public void delete(String queueUrl, String receiptHandle) {
         sqsClient.deleteMessage(queueUrl, receiptHandle);
     }
 
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        sqsClient.changeMessageVisibility(queueUrl, receiptHandle, visibilityTimeout);
+    }
+
+    @Override
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        return executeInChunks(receiptHandles, (offset, chunk) -> {
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+            for (int i = 0; i < chunk.size(); i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(offset + i), chunk.get(i)));
+            }
+            DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(
+                    new DeleteMessageBatchRequest(queueUrl, entries));
+            return result.getFailed();
+        });
+    }
+
     @Override
     public Message pull(String queueUrl, int visibilityTimeout) {
         ReceiveMessageRequest request = new ReceiveMessageRequest();
         request.setQueueUrl(queueUrl);
         request.setVisibilityTimeout(visibilityTimeout);
+        request.setMessageAttributeNames(singletonList(CONTENT_ENCODING));
+        request.setAttributeNames(singletonList(RECEIVE_COUNT));
         ReceiveMessageResult response = sqsClient.receiveMessage(request);
         List<com.amazonaws.services.sqs.model.Message> messages = response.getMessages();
         if (messages.isEmpty()) {
             return null;
         }
         com.amazonaws.services.sqs.model.Message message = messages.get(0);
-        return new Message(message.getBody(), message.getReceiptHandle());
+        return convertToMessage(message);
+    }
+
+    /**
+     * Receive requests are repeated until maxMessages are received or SQS returns less messages than requested.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        List<Message> messages = new ArrayList<>();
+        while (messages.size() < maxMessages) {
+            int requested = Math.min(maxMessages - messages.size(), MAX_BATCH_SIZE);
+            ReceiveMessageRequest request = new ReceiveMessageRequest();
+            request.setQueueUrl(queueUrl);
+            request.setVisibilityTimeout(visibilityTimeout);
+            request.setMaxNumberOfMessages(requested);
+            request.setMessageAttributeNames(singletonList(CONTENT_ENCODING));
+            request.setAttributeNames(singletonList(RECEIVE_COUNT));
+            List<com.amazonaws.services.sqs.model.Message> received = sqsClient.receiveMessage(request).getMessages();
+            received.stream().map(this::convertToMessage).forEach(messages::add);
+            if (received.size() < requested) {
+                break;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Maps to a single long polling receive request, SQS limits WaitTimeSeconds to 20 seconds.
+     */
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        ReceiveMessageRequest request = new ReceiveMessageRequest();
+        request.setQueueUrl(queueUrl);
+        request.setVisibilityTimeout(visibilityTimeout);
+        request.setMaxNumberOfMessages(Math.min(maxMessages, MAX_BATCH_SIZE));
+        request.setWaitTimeSeconds(Math.min(waitTimeSeconds, MAX_WAIT_TIME_SECONDS));
+        request.setMessageAttributeNames(singletonList(CONTENT_ENCODING));
+        request.setAttributeNames(singletonList(RECEIVE_COUNT));
+        return sqsClient.receiveMessage(request).getMessages().stream()
+                .map(this::convertToMessage)
+                .collect(toList());
     }
 
     @Override
     public void push(String queueUrl, String messageBody) {
         sqsClient.sendMessage(queueUrl, messageBody);
     }
+
+    /**
+     * SQS message body can contain only text, so binary body is sent in Base64
+     * with a message attribute which tells the receiver to decode it.
+     */
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        sqsClient.sendMessage(new SendMessageRequest(queueUrl, encodeBase64(body))
+                .withMessageAttributes(BASE64_ATTRIBUTES));
+    }
+
+    /**
+     * SQS delays messages by whole seconds, so the delay is rounded up. SQS rejects delays longer than 15 minutes.
+     */
+    @Override
+    public void push(String queueUrl, String messageBody, long delay, TimeUnit unit) {
+        sqsClient.sendMessage(new SendMessageRequest(queueUrl, messageBody)
+                .withDelaySeconds(toDelaySeconds(delay, unit)));
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        sqsClient.sendMessage(new SendMessageRequest(queueUrl, encodeBase64(body))
+                .withMessageAttributes(BASE64_ATTRIBUTES)
+                .withDelaySeconds(toDelaySeconds(delay, unit)));
+    }
+
+    @Override
+    public BatchResult pushBatch(String queueUrl, List<String> messageBodies) {
+        return executeInChunks(messageBodies, (offset, chunk) -> {
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+            for (int i = 0; i < chunk.size(); i++) {
+                entries.add(new SendMessageBatchRequestEntry(String.valueOf(offset + i), chunk.get(i)));
+            }
+            SendMessageBatchResult result = sqsClient.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+            return result.getFailed();
+        });
+    }
+
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        return executeInChunks(bodies, (offset, chunk) -> {
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+            for (int i = 0; i < chunk.size(); i++) {
+                entries.add(new SendMessageBatchRequestEntry(String.valueOf(offset + i), encodeBase64(chunk.get(i)))
+                        .withMessageAttributes(BASE64_ATTRIBUTES));
+            }
+            SendMessageBatchResult result = sqsClient.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+            return result.getFailed();
+        });
+    }
+
+    /**
+     * Sets the SQS RedrivePolicy attribute of the queue, the dead-letter queue is referenced by its ARN.
+     * An empty attribute removes the policy.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        String value = "";
+        if (redrivePolicy != null) {
+            String arn = sqsClient.getQueueAttributes(redrivePolicy.getDeadLetterQueueUrl(), singletonList(QUEUE_ARN))
+                    .getAttributes().get(QUEUE_ARN);
+            value = "{\"deadLetterTargetArn\":\"" + arn + "\",\"maxReceiveCount\":\""
+                    + redrivePolicy.getMaxReceiveCount() + "\"}";
+        }
+        sqsClient.setQueueAttributes(queueUrl, singletonMap(REDRIVE_POLICY, value));
+    }
+
+    /**
+     * Maps to GetQueueAttributes with the approximate numbers of messages, cached per queue.
+     * SQS does not return the age of the oldest message, it is a CloudWatch metric only.
+     */
+    @Override
+    public QueueAttributes getQueueAttributes(String queueUrl) {
+        long now = System.nanoTime();
+        CachedAttributes cached = attributes.get(queueUrl);
+        if (cached != null && now - cached.expiresAt < 0) {
+            return cached.attributes;
+        }
+        Map<String, String> values = sqsClient.getQueueAttributes(queueUrl,
+                asList(VISIBLE_MESSAGES, IN_FLIGHT_MESSAGES, DELAYED_MESSAGES)).getAttributes();
+        QueueAttributes result = new QueueAttributes(parseCount(values.get(VISIBLE_MESSAGES)),
+                parseCount(values.get(IN_FLIGHT_MESSAGES)), parseCount(values.get(DELAYED_MESSAGES)), -1);
+        attributes.put(queueUrl, new CachedAttributes(result, now + attributesCacheNanos));
+        return result;
+    }
+
+    private static long parseCount(String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    private Message convertToMessage(com.amazonaws.services.sqs.model.Message message) {
+        String count = message.getAttributes().get(RECEIVE_COUNT);
+        int receiveCount = count == null ? 0 : Integer.parseInt(count);
+        MessageAttributeValue encoding = message.getMessageAttributes().get(CONTENT_ENCODING);
+        if (encoding != null && BASE64.equals(encoding.getStringValue())) {
+            ByteBuffer body = ByteBuffer.wrap(Base64.getDecoder().decode(message.getBody()));
+            return new Message(body, message.getReceiptHandle(), receiveCount);
+        }
+        return new Message(message.getBody(), message.getReceiptHandle(), receiveCount);
+    }
+
+    private static int toDelaySeconds(long delay, TimeUnit unit) {
+        long millis = unit.toMillis(delay);
+        return (int) Math.min(TimeUnit.MILLISECONDS.toSeconds(millis + 999), Integer.MAX_VALUE);
+    }
+
+    private static String encodeBase64(ByteBuffer body) {
+        return new String(Base64.getEncoder().encode(body.duplicate()).array(), US_ASCII);
+    }
+
+    private BatchResult.Failure convertToFailure(BatchResultErrorEntry error) {
+        return new BatchResult.Failure(Integer.parseInt(error.getId()), error.getCode(), error.getMessage());
+    }
+
+    /**
+     * Splits entries into chunks accepted by SQS batch requests.
+     * Entry id is the position of the entry in the original list, so SQS errors can be mapped back to it.
+     */
+    private <T> BatchResult executeInChunks(List<T> entries,
+                                            BiFunction<Integer, List<T>, List<BatchResultErrorEntry>> request) {
+        List<BatchResult.Failure> failures = new ArrayList<>();
+        for (int offset = 0; offset < entries.size(); offset += MAX_BATCH_SIZE) {
+            List<T> chunk = entries.subList(offset, Math.min(offset + MAX_BATCH_SIZE, entries.size()));
+            failures.addAll(request.apply(offset, chunk).stream().map(this::convertToFailure).collect(toList()));
+        }
+        return new BatchResult(failures);
+    }
+
+    private static class CachedAttributes {
+        final QueueAttributes attributes;
+        final long expiresAt;
+
+        CachedAttributes(QueueAttributes attributes, long expiresAt) {
+            this.attributes = attributes;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
@@ -0,0 +1,269 @@
+package com.github.slamdev.mq;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.github.slamdev.mq.QueueProtocol.*;
+
+/**
+ * Client of a {@link QueueServer}.
+ * <p>
+ * A single connection is shared by all threads: every request is written under a lock and gets a future
+ * which is completed by the reader thread when the response with the same id arrives, so requests
+ * of different threads are pipelined and a long poll does not block other threads.
+ * <p>
+ * Failures of the server side are rethrown as {@link IllegalStateException}, operations not supported
+ * by the server engine as {@link UnsupportedOperationException}.
+ */
+public class TcpQueueService implements QueueService, AutoCloseable {
+
+    private final SocketChannel channel;
+
+    private final Lock writeLock = new ReentrantLock();
+
+    private final AtomicInteger requestIds = new AtomicInteger();
+
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    /**
+     * Connects to a server on the loopback interface.
+     */
+    public TcpQueueService(int port) {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public TcpQueueService(InetSocketAddress address) {
+        try {
+            channel = SocketChannel.open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        Thread reader = new Thread(this::readResponses, "queue-client-" + address.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) {
+        call(request(DELETE, queueUrl).putString(receiptHandle));
+    }
+
+    @Override
+    public BatchResult deleteBatch(String queueUrl, List<String> receiptHandles) {
+        Writer request = request(DELETE_BATCH, queueUrl).putInt(receiptHandles.size());
+        receiptHandles.forEach(request::putString);
+        return getFailures(call(request));
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+        call(request(CHANGE_VISIBILITY, queueUrl).putString(receiptHandle).putInt(visibilityTimeout));
+    }
+
+    @Override
+    public Message pull(String queueUrl, int visibilityTimeout) {
+        List<Message> messages = pullBatch(queueUrl, visibilityTimeout, 1, 0);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages) {
+        return pullBatch(queueUrl, visibilityTimeout, maxMessages, 0);
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages, int waitTimeSeconds) {
+        ByteBuffer response = call(request(PULL, queueUrl)
+                .putInt(visibilityTimeout).putInt(maxMessages).putInt(waitTimeSeconds));
+        int count = response.getInt();
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String receiptHandle = getString(response);
+            int receiveCount = response.getInt();
+            messages.add(new Message(getBody(response), receiptHandle, receiveCount));
+        }
+        return messages;
+    }
+
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout) {
+        return pullAny(queueUrls, visibilityTimeout, 0);
+    }
+
+    @Override
+    public Message pullAny(List<String> queueUrls, int visibilityTimeout, int waitTimeSeconds) {
+        int size = 0;
+        for (String queueUrl : queueUrls) {
+            size += Integer.BYTES + queueUrl.length() * 3;
+        }
+        Writer request = request(PULL_ANY, "", size)
+                .putInt(visibilityTimeout).putInt(waitTimeSeconds).putInt(queueUrls.size());
+        queueUrls.forEach(request::putString);
+        ByteBuffer response = call(request);
+        if (response.getInt() == 0) {
+            return null;
+        }
+        String queueUrl = getString(response);
+        String receiptHandle = getString(response);
+        int receiveCount = response.getInt();
+        return new Message(getBody(response), receiptHandle, receiveCount).withQueueUrl(queueUrl);
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body) {
+        push(queueUrl, body, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void push(String queueUrl, ByteBuffer body, long delay, TimeUnit unit) {
+        call(request(PUSH, queueUrl, body.remaining()).putLong(unit.toMillis(delay)).putBody(body));
+    }
+
+    @Override
+    public BatchResult pushBinaryBatch(String queueUrl, List<ByteBuffer> bodies) {
+        int size = 0;
+        for (ByteBuffer body : bodies) {
+            size += Integer.BYTES + body.remaining();
+        }
+        Writer request = request(PUSH_BATCH, queueUrl, size).putInt(bodies.size());
+        bodies.forEach(request::putBody);
+        return getFailures(call(request));
+    }
+
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy redrivePolicy) {
+        call(request(SET_REDRIVE_POLICY, queueUrl)
+                .putString(redrivePolicy == null ? "" : redrivePolicy.getDeadLetterQueueUrl())
+                .putInt(redrivePolicy == null ? 0 : redrivePolicy.getMaxReceiveCount()));
+    }
+
+    @Override
+    public int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+        return call(request(REDRIVE, deadLetterQueueUrl).putString(queueUrl).putInt(maxMessages)).getInt();
+    }
+
+    @Override
+    public QueueAttributes getQueueAttributes(String queueUrl) {
+        ByteBuffer response = call(request(GET_ATTRIBUTES, queueUrl));
+        return new QueueAttributes(response.getLong(), response.getLong(), response.getLong(), response.getLong());
+    }
+
+    /**
+     * Fails all requests which are waiting for responses.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Writer request(byte operation, String queueUrl) {
+        return request(operation, queueUrl, 0);
+    }
+
+    private Writer request(byte operation, String queueUrl, int bodiesSize) {
+        return new Writer(requestIds.incrementAndGet(), operation, 64 + bodiesSize).putString(queueUrl);
+    }
+
+    private ByteBuffer call(Writer request) {
+        ByteBuffer frame = request.finish();
+        int requestId = frame.getInt(Integer.BYTES);
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection is closed");
+            }
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            throw new IllegalStateException(e);
+        } finally {
+            writeLock.unlock();
+        }
+        ByteBuffer result;
+        try {
+            result = response.get();
+        } catch (InterruptedException e) {
+            pending.remove(requestId);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        byte status = result.get();
+        if (status == UNSUPPORTED) {
+            throw new UnsupportedOperationException(getString(result));
+        }
+        if (status != OK) {
+            throw new IllegalStateException(getString(result));
+        }
+        return result;
+    }
+
+    private void readResponses() {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        IOException failure = new IOException("Connection is closed");
+        try {
+            while (true) {
+                ((Buffer) header).clear();
+                readFully(header);
+                int length = header.getInt(0);
+                if (length <= Integer.BYTES || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                readFully(frame);
+                ((Buffer) frame).flip();
+                CompletableFuture<ByteBuffer> response = pending.remove(frame.getInt());
+                if (response != null) {
+                    response.complete(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                failure = e;
+            }
+        }
+        closed = true;
+        for (Integer requestId : pending.keySet()) {
+            CompletableFuture<ByteBuffer> response = pending.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection is closed by the server");
+            }
+        }
+    }
+}
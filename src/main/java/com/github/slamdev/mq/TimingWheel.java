@@ -0,0 +1,173 @@
+package com.github.slamdev.mq;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: every level has 64 buckets, a bucket of level N covers 64^N ticks.
+ * Entry is put to the level of the highest digit (base 64) in which its tick differs from the current tick,
+ * and is moved one or more levels down when the current tick enters its bucket.
+ * <p>
+ * Insert and expiry are O(1) per entry: an entry is moved at most once per level. Advance jumps straight
+ * to the next not empty bucket using the bitmap of not empty buckets of every level, so idle time costs nothing.
+ * <p>
+ * Not thread-safe, the owner guards it with its own lock.
+ */
+class TimingWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int LEVELS = 6;
+
+    /**
+     * Entries up to 64^6 ticks ahead, which is about two years of 1 ms ticks.
+     */
+    static final long MAX_DELAY = (1L << (BITS * LEVELS)) - 1;
+
+    private final ArrayDeque<Entry<T>>[][] buckets = newBuckets();
+
+    private final long[] occupied = new long[LEVELS];
+
+    private long current;
+
+    private int size;
+
+    TimingWheel(long current) {
+        this.current = current;
+    }
+
+    /**
+     * @return false if the tick has passed already, the entry is not added then
+     */
+    boolean add(long tick, T value) {
+        if (tick <= current) {
+            return false;
+        }
+        if (tick - current > MAX_DELAY) {
+            throw new IllegalArgumentException("Tick " + tick + " is too far from the current tick " + current);
+        }
+        place(new Entry<>(tick, value));
+        size++;
+        return true;
+    }
+
+    /**
+     * Moves the current tick to now and passes entries which ticks have passed to the consumer, in tick order.
+     */
+    void advance(long now, Consumer<T> expired) {
+        while (current < now) {
+            long next = nextTick();
+            if (next > now) {
+                // no bucket is entered between the current tick and now, so placement of entries is still valid
+                current = now;
+                return;
+            }
+            current = next;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((next & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level, expired);
+                }
+            }
+            ArrayDeque<Entry<T>> bucket = take(0, index(next, 0));
+            if (bucket != null) {
+                bucket.forEach(entry -> expired.accept(entry.value));
+            }
+        }
+    }
+
+    /**
+     * Tick at which the next bucket is entered, the nearest entry is due not earlier than this tick.
+     *
+     * @return Long.MAX_VALUE if the wheel is empty
+     */
+    long nextTick() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int index = index(current, level);
+            // bucket of the current tick is always empty, it was cascaded when the current tick entered it
+            long later = occupied[level] & (-2L << index);
+            if (later != 0) {
+                return start(current, level + 1) + ((long) Long.numberOfTrailingZeros(later) << (BITS * level));
+            }
+        }
+        // entries of the top level which are in the next round of the wheel
+        int top = LEVELS - 1;
+        long wrapped = occupied[top];
+        return start(current, LEVELS) + (1L << (BITS * LEVELS))
+                + ((long) Long.numberOfTrailingZeros(wrapped) << (BITS * top));
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void cascade(int level, Consumer<T> expired) {
+        ArrayDeque<Entry<T>> bucket = take(level, index(current, level));
+        if (bucket == null) {
+            return;
+        }
+        for (Entry<T> entry : bucket) {
+            if (entry.tick <= current) {
+                size--;
+                expired.accept(entry.value);
+            } else {
+                place(entry);
+            }
+        }
+    }
+
+    private void place(Entry<T> entry) {
+        long diff = entry.tick ^ current;
+        int level = Math.min((Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / BITS, LEVELS - 1);
+        int index = index(entry.tick, level);
+        ArrayDeque<Entry<T>> bucket = buckets[level][index];
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets[level][index] = bucket;
+        }
+        bucket.addLast(entry);
+        occupied[level] |= 1L << index;
+    }
+
+    /**
+     * Bucket is detached and replaced by a new one on the next placement, so the caller can iterate it
+     * while entries are placed back to the same level.
+     */
+    private ArrayDeque<Entry<T>> take(int level, int index) {
+        ArrayDeque<Entry<T>> bucket = buckets[level][index];
+        if ((occupied[level] & (1L << index)) == 0 || bucket == null) {
+            return null;
+        }
+        buckets[level][index] = null;
+        occupied[level] &= ~(1L << index);
+        if (level == 0) {
+            size -= bucket.size();
+        }
+        return bucket;
+    }
+
+    private static int index(long tick, int level) {
+        return (int) (tick >>> (BITS * level)) & (SIZE - 1);
+    }
+
+    private static long start(long tick, int level) {
+        return tick >>> (BITS * level) << (BITS * level);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> ArrayDeque<Entry<T>>[][] newBuckets() {
+        return new ArrayDeque[LEVELS][SIZE];
+    }
+
+    private static class Entry<T> {
+        final long tick;
+        final T value;
+
+        Entry(long tick, T value) {
+            this.tick = tick;
+            this.value = value;
+        }
+    }
+}
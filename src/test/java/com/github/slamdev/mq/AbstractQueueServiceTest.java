@@ -3,14 +3,21 @@ package com.github.slamdev.mq;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.function.Supplier;
 
 import static java.time.Duration.ofSeconds;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.number.IsCloseTo.closeTo;
 import static org.junit.Assert.assertThat;
 
@@ -40,6 +47,14 @@ public abstract class AbstractQueueServiceTest {
         assertThat(message.getMessageBody(), equalTo("message"));
     }
 
+    @Test
+    public void shouldPushBinaryMessageToQueue() {
+        byte[] body = {0, -1, 'm', 's', 'g', -128};
+        service.push("queue", ByteBuffer.wrap(body));
+        Message message = service.pull("queue", 0);
+        assertThat(message.getBody(), equalTo(ByteBuffer.wrap(body)));
+    }
+
     @Test
     public void shouldNotPullMessageWhenItIsNotVisible() {
         service.push("queue", "message");
@@ -59,6 +74,129 @@ public abstract class AbstractQueueServiceTest {
         assertThat((double) executionTime.toMillis(), closeTo(ofSeconds(1).toMillis(), 100));
     }
 
+    @Test
+    public void shouldNotPullMessageWhenItsVisibilityIsExtended() throws InterruptedException {
+        service.push("queue", "message");
+        Message message = service.pull("queue", 1);
+        service.changeVisibility("queue", message.getReceiptHandle(), 10);
+        TimeUnit.MILLISECONDS.sleep(1500);
+        assertThat(service.pull("queue", 0), nullValue());
+    }
+
+    @Test
+    public void shouldPullMessageWhenItsVisibilityIsReset() {
+        service.push("queue", "message");
+        Message message = service.pull("queue", 10);
+        service.changeVisibility("queue", message.getReceiptHandle(), 0);
+        Message redelivered = executeUntilNonNull(() -> service.pull("queue", 10), ofSeconds(1));
+        assertThat(redelivered.getMessageBody(), equalTo("message"));
+    }
+
+    @Test
+    public void shouldPushAndPullMessagesInBatch() {
+        BatchResult result = service.pushBatch("queue", asList("first", "second", "third"));
+        List<Message> messages = new ArrayList<>(service.pullBatch("queue", 10, 2));
+        assertThat(messages.size(), equalTo(2));
+        messages.addAll(service.pullBatch("queue", 10, 2));
+        assertThat(result.isSuccessful(), equalTo(true));
+        assertThat(messages.stream().map(Message::getMessageBody).collect(toList()),
+                containsInAnyOrder("first", "second", "third"));
+    }
+
+    @Test
+    public void shouldDeleteMessagesInBatch() {
+        service.pushBatch("queue", asList("first", "second"));
+        List<Message> messages = service.pullBatch("queue", 0, 2);
+        service.deleteBatch("queue", messages.stream().map(Message::getReceiptHandle).collect(toList()));
+        assertThat(service.pullBatch("queue", 0, 2), empty());
+    }
+
+    @Test
+    public void shouldWaitForPushedMessage() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(() -> service.push("queue", "message"), 500, TimeUnit.MILLISECONDS);
+            Instant start = Instant.now();
+            Message message = service.pull("queue", 10, 5);
+            Duration executionTime = Duration.between(start, Instant.now());
+            assertThat(message.getMessageBody(), equalTo("message"));
+            assertThat((double) executionTime.toMillis(), closeTo(500, 400));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldWaitUntilMessageBecameVisible() {
+        service.push("queue", "message");
+        service.pull("queue", 1);
+        Instant start = Instant.now();
+        Message message = service.pull("queue", 0, 5);
+        Duration executionTime = Duration.between(start, Instant.now());
+        assertThat(message.getMessageBody(), equalTo("message"));
+        assertThat((double) executionTime.toMillis(), closeTo(ofSeconds(1).toMillis(), 200));
+    }
+
+    @Test
+    public void shouldReturnNullWhenNoMessageArrivedDuringWaitTime() {
+        Instant start = Instant.now();
+        Message message = service.pull("queue", 0, 1);
+        Duration executionTime = Duration.between(start, Instant.now());
+        assertThat(message, nullValue());
+        assertThat((double) executionTime.toMillis(), closeTo(ofSeconds(1).toMillis(), 200));
+    }
+
+    @Test
+    public void shouldNotPullDelayedMessageBeforeDelay() {
+        service.push("queue", "delayed", 10, TimeUnit.SECONDS);
+        service.push("queue", "message");
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("message"));
+        assertThat(service.pull("queue", 10), nullValue());
+    }
+
+    @Test
+    public void shouldWaitForDelayedMessage() {
+        service.push("queue", "message", 500, TimeUnit.MILLISECONDS);
+        Instant start = Instant.now();
+        Message message = service.pull("queue", 10, 5);
+        Duration executionTime = Duration.between(start, Instant.now());
+        assertThat(message.getMessageBody(), equalTo("message"));
+        assertThat((double) executionTime.toMillis(), closeTo(500, 200));
+    }
+
+    @Test
+    public void shouldPullMessageAtScheduledTime() {
+        service.pushAt("queue", "message", Instant.now().plusMillis(300));
+        assertThat(service.pull("queue", 10), nullValue());
+        Message message = executeUntilNonNull(() -> service.pull("queue", 10), ofSeconds(2));
+        assertThat(message.getMessageBody(), equalTo("message"));
+    }
+
+    @Test
+    public void shouldPullMessageFromAnyQueue() {
+        service.push("second", "message");
+        Message message = service.pullAny(asList("first", "second", "third"), 10);
+        assertThat(message.getMessageBody(), equalTo("message"));
+        assertThat(message.getQueueUrl(), equalTo("second"));
+        service.delete(message.getQueueUrl(), message.getReceiptHandle());
+        assertThat(service.pullAny(asList("first", "second", "third"), 0), nullValue());
+    }
+
+    @Test
+    public void shouldWaitForMessageInAnyQueue() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(() -> service.push("second", "message"), 500, TimeUnit.MILLISECONDS);
+            Instant start = Instant.now();
+            Message message = service.pullAny(asList("first", "second"), 10, 5);
+            Duration executionTime = Duration.between(start, Instant.now());
+            assertThat(message.getQueueUrl(), equalTo("second"));
+            assertThat((double) executionTime.toMillis(), closeTo(500, 400));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Execute action in separate thread until execution result is not null.
      * Execution will be canceled after specified timeout
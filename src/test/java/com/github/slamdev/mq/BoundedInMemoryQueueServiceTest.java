@@ -0,0 +1,128 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BoundedInMemoryQueueServiceTest extends AbstractQueueServiceTest {
+
+    @Override
+    public QueueService createQueueService() {
+        return new BoundedInMemoryQueueService(16);
+    }
+
+    @Test
+    public void shouldReuseSlotsOfDeletedMessages() {
+        QueueService service = new BoundedInMemoryQueueService(2, Backpressure.FAIL);
+        for (int i = 0; i < 5; i++) {
+            service.push("queue", "message " + i);
+            Message message = service.pull("queue", 10);
+            assertThat(message.getMessageBody(), equalTo("message " + i));
+            service.delete("queue", message.getReceiptHandle());
+        }
+    }
+
+    @Test
+    public void shouldIgnoreReceiptHandleOfMessageFromPreviousLap() {
+        QueueService service = new BoundedInMemoryQueueService(2, Backpressure.FAIL);
+        service.push("queue", "first");
+        service.push("queue", "second");
+        Message first = service.pull("queue", 10);
+        service.delete("queue", first.getReceiptHandle());
+        service.push("queue", "third");
+        service.delete("queue", service.pull("queue", 10).getReceiptHandle());
+        service.delete("queue", first.getReceiptHandle());
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("third"));
+    }
+
+    @Test
+    public void shouldIgnoreInvalidReceiptHandles() {
+        QueueService service = new BoundedInMemoryQueueService(2, Backpressure.FAIL);
+        service.push("queue", "message");
+        Message message = service.pull("queue", 10);
+        service.delete("queue", "foreign");
+        service.delete("queue", "-1");
+        service.changeVisibility("queue", "foreign", 0);
+        assertThat(service.pull("queue", 10), nullValue());
+        service.delete("queue", message.getReceiptHandle());
+        service.push("queue", "first");
+        service.push("queue", "second");
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("first"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectPushWhenQueueIsFull() {
+        QueueService service = new BoundedInMemoryQueueService(2, Backpressure.FAIL);
+        service.push("queue", "first");
+        service.push("queue", "second");
+        service.push("queue", "third");
+    }
+
+    @Test
+    public void shouldDropOldestMessageWhenQueueIsFull() {
+        QueueService service = new BoundedInMemoryQueueService(2, Backpressure.DROP_OLDEST);
+        service.push("queue", "first");
+        service.push("queue", "second");
+        service.pull("queue", 10);
+        service.push("queue", "third");
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("second"));
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("third"));
+        assertThat(service.pull("queue", 0), nullValue());
+    }
+
+    @Test
+    public void shouldSkipMessageDroppedWhileItIsClaimed() throws Exception {
+        QueueService service = new BoundedInMemoryQueueService(2, Backpressure.DROP_OLDEST);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(executor.submit(() -> IntStream.range(0, 100_000)
+                        .forEach(i -> service.push("queue", "message"))));
+                futures.add(executor.submit(() -> IntStream.range(0, 100_000).forEach(i -> {
+                    Message message = service.pull("queue", 10);
+                    if (message != null) {
+                        assertThat(message.getMessageBody(), equalTo("message"));
+                    }
+                })));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldBlockPushUntilMessageIsDeleted() throws Exception {
+        QueueService service = new BoundedInMemoryQueueService(2, Backpressure.BLOCK);
+        service.push("queue", "first");
+        service.push("queue", "second");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> push = executor.submit(() -> service.push("queue", "third"));
+        try {
+            push.get(200, TimeUnit.MILLISECONDS);
+            fail("push should wait for a free slot");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        service.delete("queue", service.pull("queue", 10).getReceiptHandle());
+        push.get(1, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("second"));
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("third"));
+    }
+}
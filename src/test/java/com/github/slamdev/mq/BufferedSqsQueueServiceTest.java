@@ -0,0 +1,142 @@
+package com.github.slamdev.mq;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BufferedSqsQueueServiceTest {
+
+    @Mock
+    private AmazonSQSClient sqsClient;
+
+    private BufferedSqsQueueService service;
+
+    @After
+    public void tearDown() {
+        service.close();
+    }
+
+    @Test
+    public void shouldSendPushesAsSingleBatchAfterLingerTime() throws Exception {
+        service = new BufferedSqsQueueService(sqsClient, 10, 50, 10);
+        when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(new SendMessageBatchResult());
+        CompletableFuture<Void> first = service.push("queue", "first");
+        CompletableFuture<Void> second = service.push("queue", "second");
+        CompletableFuture.allOf(first, second).get(1, TimeUnit.SECONDS);
+        ArgumentCaptor<SendMessageBatchRequest> captor = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(sqsClient).sendMessageBatch(captor.capture());
+        assertThat(captor.getValue().getEntries().size(), equalTo(2));
+    }
+
+    @Test
+    public void shouldSendBatchWithoutLingerWhenItIsFull() throws Exception {
+        service = new BufferedSqsQueueService(sqsClient, 2, TimeUnit.MINUTES.toMillis(1), 10);
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+                .thenReturn(new DeleteMessageBatchResult());
+        CompletableFuture<Void> first = service.delete("queue", "first");
+        CompletableFuture<Void> second = service.delete("queue", "second");
+        CompletableFuture.allOf(first, second).get(1, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void shouldFailFutureOfFailedBatchEntry() throws Exception {
+        service = new BufferedSqsQueueService(sqsClient, 2, TimeUnit.MINUTES.toMillis(1), 10);
+        SendMessageBatchResult result = new SendMessageBatchResult()
+                .withFailed(new BatchResultErrorEntry().withId("1").withCode("InvalidMessageContents"));
+        when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(result);
+        CompletableFuture<Void> first = service.push("queue", "first");
+        CompletableFuture<Void> second = service.push("queue", "second");
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldServePullsFromPrefetchedMessages() throws Exception {
+        service = new BufferedSqsQueueService(sqsClient, 10, 50, 10);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(createResult("first", "second"))
+                .thenReturn(new ReceiveMessageResult());
+        assertThat(service.pull("queue", 10, 1).get(2, TimeUnit.SECONDS).getMessageBody(), equalTo("first"));
+        assertThat(service.pull("queue", 10).get(1, TimeUnit.SECONDS).getMessageBody(), equalTo("second"));
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient, timeout(1000).atLeastOnce()).receiveMessage(captor.capture());
+        assertThat(captor.getAllValues().get(0).getMaxNumberOfMessages(), equalTo(10));
+        assertThat(captor.getAllValues().get(0).getWaitTimeSeconds(), equalTo(20));
+    }
+
+    @Test
+    public void shouldNotServeBufferedMessageAfterVisibilityTimeout() throws Exception {
+        service = new BufferedSqsQueueService(sqsClient, 10, 50, 10);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(createResult("first", "second"))
+                .thenReturn(new ReceiveMessageResult());
+        assertThat(service.pull("queue", 1, 1).get(2, TimeUnit.SECONDS).getMessageBody(), equalTo("first"));
+        TimeUnit.MILLISECONDS.sleep(1100);
+        assertThat(service.pull("queue", 1).get(1, TimeUnit.SECONDS), nullValue());
+    }
+
+    @Test
+    public void shouldCompleteWaitingPullsOnClose() throws Exception {
+        service = new BufferedSqsQueueService(sqsClient, 10, 50, 10);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+            TimeUnit.SECONDS.sleep(20);
+            return new ReceiveMessageResult();
+        });
+        CompletableFuture<Message> waiting = service.pull("queue", 10, 20);
+        verify(sqsClient, timeout(1000)).receiveMessage(any(ReceiveMessageRequest.class));
+        service.close();
+        assertThat(waiting.get(1, TimeUnit.SECONDS), nullValue());
+    }
+
+    @Test
+    public void shouldRejectOperationsAfterClose() throws Exception {
+        service = new BufferedSqsQueueService(sqsClient, 10, 50, 10);
+        service.close();
+        for (CompletableFuture<?> future : asList(service.push("queue", "message"), service.delete("queue", "handle"),
+                service.pull("queue", 10, 1))) {
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("operation after close should fail");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+            }
+        }
+    }
+
+    private static ReceiveMessageResult createResult(String... bodies) {
+        ReceiveMessageResult result = new ReceiveMessageResult();
+        for (String body : bodies) {
+            result.getMessages().add(new com.amazonaws.services.sqs.model.Message()
+                    .withBody(body)
+                    .withReceiptHandle(body));
+        }
+        return result;
+    }
+}
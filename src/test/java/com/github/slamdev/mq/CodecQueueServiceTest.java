@@ -0,0 +1,128 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static java.util.Collections.nCopies;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class CodecQueueServiceTest extends AbstractQueueServiceTest {
+
+    private static final String LARGE_BODY = String.join(",", nCopies(10_000, "{\"key\":\"value\"}"));
+
+    private final InMemoryQueueService delegate = new InMemoryQueueService();
+
+    @Override
+    public QueueService createQueueService() {
+        return new CodecQueueService(new InMemoryQueueService(), mock(BlobStore.class));
+    }
+
+    @Test
+    public void shouldCompressLargeBody() {
+        QueueService service = new CodecQueueService(delegate, mock(BlobStore.class));
+        service.push("queue", LARGE_BODY);
+        Message message = service.pull("queue", 0);
+        assertThat(message.getMessageBody(), equalTo(LARGE_BODY));
+        assertThat(delegate.pull("queue", 0).getBody().remaining(), lessThan(LARGE_BODY.length() / 10));
+    }
+
+    @Test
+    public void shouldOffloadBodyToBlobStoreAndDeleteItWithMessage() throws IOException {
+        Path blobs = Files.createTempDirectory("blobs");
+        QueueService service = new CodecQueueService(delegate, new FileBlobStore(blobs), 1024, 64);
+        service.push("queue", LARGE_BODY);
+        Message message = service.pull("queue", 10);
+        assertThat(message.getMessageBody(), equalTo(LARGE_BODY));
+        assertThat(countFiles(blobs), equalTo(1L));
+        service.delete("queue", message.getReceiptHandle());
+        assertThat(countFiles(blobs), equalTo(0L));
+    }
+
+    @Test
+    public void shouldReadBlobOnlyWhenBodyIsRequested() {
+        BlobStore blobStore = mock(BlobStore.class);
+        ByteBuffer blob = ByteBuffer.allocate(100);
+        when(blobStore.put(any(ByteBuffer.class))).thenReturn("key");
+        when(blobStore.get("key")).thenReturn(blob);
+        QueueService service = new CodecQueueService(delegate, blobStore, 1024, 64);
+        service.push("queue", blob);
+        Message message = service.pull("queue", 10);
+        verify(blobStore, never()).get(anyString());
+        assertThat(message.getBody(), equalTo(blob));
+        assertThat(message.getBody(), equalTo(blob));
+        verify(blobStore, times(1)).get("key");
+    }
+
+    @Test
+    public void shouldDeliverPlainBodyWhichLooksLikeEncodedOne() {
+        QueueService service = new CodecQueueService(delegate, mock(BlobStore.class));
+        ByteBuffer body = ByteBuffer.wrap(new byte[]{0, 'M', 'Q', 'B', 'k', 'e', 'y'});
+        service.push("queue", body);
+        assertThat(service.pull("queue", 10).getBody(), equalTo(body));
+    }
+
+    @Test
+    public void shouldDeliverBodiesPushedWithoutCodec() {
+        QueueService service = new CodecQueueService(delegate, mock(BlobStore.class));
+        delegate.push("queue", LARGE_BODY);
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo(LARGE_BODY));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailOnTruncatedCompressedBody() {
+        QueueService service = new CodecQueueService(delegate, mock(BlobStore.class));
+        service.push("queue", LARGE_BODY);
+        ByteBuffer encoded = delegate.pull("queue", 10).getBody();
+        ((Buffer) encoded).limit(encoded.limit() / 2);
+        delegate.push("truncated", encoded);
+        service.pull("truncated", 10).getBody();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailOnCompressedBodyDeclaringLargerSize() {
+        QueueService service = new CodecQueueService(delegate, mock(BlobStore.class));
+        service.push("queue", LARGE_BODY);
+        ByteBuffer pulled = delegate.pull("queue", 10).getBody();
+        ByteBuffer encoded = ByteBuffer.allocate(pulled.remaining());
+        encoded.put(pulled);
+        ((Buffer) encoded).flip();
+        encoded.putInt(4, Integer.MAX_VALUE);
+        delegate.push("corrupted", encoded);
+        service.pull("corrupted", 10).getBody();
+    }
+
+    @Test
+    public void shouldInflateBodyLargerThanInitialOutput() {
+        String body = String.join(",", nCopies(100_000, "{\"key\":\"value\"}"));
+        QueueService service = new CodecQueueService(delegate, mock(BlobStore.class));
+        service.push("queue", body);
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo(body));
+    }
+
+    @Test
+    public void shouldCompareMessagesWithoutReadingBlob() {
+        BlobStore blobStore = mock(BlobStore.class);
+        when(blobStore.put(any(ByteBuffer.class))).thenReturn("key");
+        QueueService service = new CodecQueueService(delegate, blobStore, 1024, 64);
+        service.push("queue", ByteBuffer.allocate(100));
+        Message message = service.pull("queue", 10);
+        assertThat(message.equals(new Message(ByteBuffer.allocate(100), "handle")), equalTo(false));
+        assertThat(message.hashCode(), equalTo(message.getReceiptHandle().hashCode()));
+        verify(blobStore, never()).get(anyString());
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
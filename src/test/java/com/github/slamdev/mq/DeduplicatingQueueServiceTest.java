@@ -0,0 +1,122 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class DeduplicatingQueueServiceTest extends AbstractQueueServiceTest {
+
+    private final InMemoryQueueService delegate = new InMemoryQueueService();
+
+    /**
+     * Common tests push the same body several times on purpose, so the window is empty.
+     */
+    @Override
+    public QueueService createQueueService() {
+        return new DeduplicatingQueueService(new InMemoryQueueService(), 0, TimeUnit.MILLISECONDS, 1024);
+    }
+
+    @Test
+    public void shouldDropMessageWithSameBody() {
+        DeduplicatingQueueService service = new DeduplicatingQueueService(delegate, 1024);
+        service.push("queue", "message");
+        service.push("queue", "message");
+        service.push("other", "message");
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("message"));
+        assertThat(service.pull("queue", 10), nullValue());
+        assertThat(service.pull("other", 10).getMessageBody(), equalTo("message"));
+        assertThat(service.getMetrics().getHitCount(), equalTo(1L));
+        assertThat(service.getMetrics().getHitRatio(), equalTo(1.0 / 3));
+    }
+
+    @Test
+    public void shouldDropMessageWithSameDeduplicationId() {
+        DeduplicatingQueueService service = new DeduplicatingQueueService(delegate, 1024);
+        service.push("queue", "first", "id");
+        service.push("queue", "second", "id");
+        service.push("queue", "first");
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("first"));
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("first"));
+        assertThat(service.pull("queue", 10), nullValue());
+    }
+
+    @Test
+    public void shouldAcceptDuplicateAfterWindow() throws InterruptedException {
+        DeduplicatingQueueService service = new DeduplicatingQueueService(delegate, 50, TimeUnit.MILLISECONDS, 1024);
+        service.push("queue", "message");
+        TimeUnit.MILLISECONDS.sleep(100);
+        service.push("queue", "message");
+        assertThat(service.pullBatch("queue", 10, 10).size(), equalTo(2));
+        assertThat(service.getMetrics().getEntryCount(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldEvictEntriesWhenWindowIsFull() {
+        DeduplicatingQueueService service = new DeduplicatingQueueService(delegate, 16);
+        long memoryUsage = service.getMetrics().getMemoryUsage();
+        for (int i = 0; i < 100; i++) {
+            service.push("queue", "message " + i);
+        }
+        assertThat(service.getMetrics().getEntryCount(), equalTo(16L));
+        assertThat(service.getMetrics().getEvictionCount(), equalTo(84L));
+        assertThat(service.getMetrics().getMemoryUsage(), equalTo(memoryUsage));
+    }
+
+    @Test
+    public void shouldNotRememberFailedPush() {
+        QueueService failing = mock(QueueService.class);
+        doThrow(new IllegalStateException()).doNothing().when(failing).push("queue", "message");
+        DeduplicatingQueueService service = new DeduplicatingQueueService(failing, 1024);
+        try {
+            service.push("queue", "message");
+            fail();
+        } catch (IllegalStateException e) {
+            service.push("queue", "message");
+        }
+        verify(failing, times(2)).push("queue", "message");
+    }
+
+    @Test
+    public void shouldDropDuplicatesWithinBatch() {
+        DeduplicatingQueueService service = new DeduplicatingQueueService(delegate, 1024);
+        service.push("queue", "first");
+        assertThat(service.pushBatch("queue", asList("first", "second", "second")).isSuccessful(), equalTo(true));
+        assertThat(service.pullBatch("queue", 10, 10).size(), equalTo(2));
+    }
+
+    @Test
+    public void shouldShareWindowFileBetweenInstances() throws IOException {
+        Path file = Files.createTempDirectory("dedup").resolve("window");
+        try (DeduplicatingQueueService first = new DeduplicatingQueueService(delegate, file, 1, TimeUnit.MINUTES, 64);
+             DeduplicatingQueueService second = new DeduplicatingQueueService(delegate, file, 1, TimeUnit.MINUTES,
+                     1024)) {
+            first.push("queue", "message");
+            second.push("queue", "message");
+            assertThat(second.getMetrics().getHitCount(), equalTo(1L));
+            assertThat(second.getMetrics().getMemoryUsage(), equalTo(first.getMetrics().getMemoryUsage()));
+        }
+        assertThat(delegate.pullBatch("queue", 10, 10).size(), equalTo(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectWindowWhichDoesNotFitIntoBuffer() {
+        new DeduplicatingQueueService(delegate, Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectWindowFileWithInvalidCapacity() throws IOException {
+        Path file = Files.createTempDirectory("dedup").resolve("window");
+        Files.write(file, new byte[]{(byte) 0x80, 0, 0, 0});
+        new DeduplicatingQueueService(delegate, file, 1, TimeUnit.MINUTES, 64);
+    }
+}
@@ -1,60 +1,100 @@
 package com.github.slamdev.mq;
 
-import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
-import org.junit.runner.JUnitCore;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
 
 public class FileQueueServiceMultiProcessesTest {
 
+    private static final int PROCESSES = 4;
+
+    private static final int MESSAGES = 400;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     /**
-     * This test spawns 5 separate java processes and runs {@link FileQueueServiceMultiThreadsTest} in all of them
-     * It can be used only for local development and nether enabled
+     * This test spawns separate java processes which consume the same queue concurrently,
+     * every message should be received and deleted exactly once.
      */
-    @Ignore
     @Test
-    public void shouldHandleMultiProcessesOperations() throws InterruptedException {
-        ExecutorService executor = Executors.newFixedThreadPool(5);
-        List<Callable<Integer>> tasks = IntStream.range(0, 5)
-                .mapToObj(this::createExecution)
-                .collect(toList());
-        executor.invokeAll(tasks);
+    public void shouldHandleMultiProcessesOperations() throws Exception {
+        Path storage = folder.newFolder("storage").toPath();
+        FileQueueService service = new FileQueueService(storage);
+        List<String> bodies = IntStream.range(0, MESSAGES).mapToObj(i -> "message " + i).collect(toList());
+        service.pushBatch("queue", bodies);
+        List<Process> processes = new ArrayList<>();
+        List<Path> outputs = new ArrayList<>();
+        for (int i = 0; i < PROCESSES; i++) {
+            Path output = folder.getRoot().toPath().resolve("consumer-" + i + ".txt");
+            outputs.add(output);
+            processes.add(exec(Consumer.class, storage.toString(), "queue", output.toString()));
+        }
+        for (Process process : processes) {
+            assertThat(process.waitFor(1, TimeUnit.MINUTES), equalTo(true));
+            assertThat(process.exitValue(), equalTo(0));
+        }
+        List<String> received = new ArrayList<>();
+        for (Path output : outputs) {
+            received.addAll(Files.readAllLines(output, UTF_8));
+        }
+        assertThat(received, containsInAnyOrder(bodies.toArray()));
+        assertThat(service.pull("queue", 0), nullValue());
+        service.close();
     }
 
-    private Callable<Integer> createExecution(int i) {
-        return () -> exec(JUnitCore.class, FileQueueServiceMultiThreadsTest.class.getCanonicalName());
+    /**
+     * Pulls messages with a long visibility timeout until the queue is empty,
+     * writes received bodies to the output file.
+     */
+    public static class Consumer {
+
+        public static void main(String[] args) throws IOException {
+            FileQueueService service = new FileQueueService(Paths.get(args[0]));
+            List<String> received = new ArrayList<>();
+            List<Message> messages;
+            while (!(messages = service.pullBatch(args[1], 60, 3, 1)).isEmpty()) {
+                for (Message message : messages) {
+                    received.add(message.getMessageBody());
+                    service.delete(args[1], message.getReceiptHandle());
+                }
+            }
+            Files.write(Paths.get(args[2]), received, UTF_8);
+            service.close();
+        }
     }
 
-    private static int exec(Class type, String... args) {
+    private static Process exec(Class type, String... args) throws IOException {
         String javaHome = System.getProperty("java.home");
         String javaBin = javaHome + File.separator + "bin" + File.separator + "java";
         String classpath = System.getProperty("java.class.path");
-        String className = type.getCanonicalName();
+        String className = type.getName();
         List<String> commands = new ArrayList<>();
         commands.add(javaBin);
         commands.add("-cp");
         commands.add(classpath);
         commands.add(className);
         commands.addAll(Arrays.asList(args));
-        try {
-            Process process = new ProcessBuilder(commands)
-                    .inheritIO()
-                    .start();
-            process.waitFor();
-            return process.exitValue();
-        } catch (IOException | InterruptedException e) {
-            throw new IllegalStateException(e);
-        }
+        return new ProcessBuilder(commands)
+                .inheritIO()
+                .start();
     }
 }
@@ -1,9 +1,295 @@
 package com.github.slamdev.mq;
 
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
 public class FileQueueServiceTest extends AbstractQueueServiceTest {
 
     @Override
     public QueueService createQueueService() {
         return new FileQueueService();
     }
+
+    @Test
+    public void shouldMoveMessageToDeadLetterQueueWhenMaxReceiveCountIsExceeded() throws IOException {
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues"))) {
+            service.setRedrivePolicy("queue", new RedrivePolicy("dlq", 1));
+            service.push("queue", "message");
+            assertThat(service.pull("queue", 0).getReceiveCount(), equalTo(1));
+            assertThat(service.pull("queue", 0), nullValue());
+            assertThat(service.pull("dlq", 10).getMessageBody(), equalTo("message"));
+        }
+    }
+
+    @Test
+    public void shouldRedriveMessagesFromDeadLetterQueue() throws IOException {
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues"))) {
+            service.push("dlq", "first");
+            service.push("dlq", "second");
+            assertThat(service.redrive("dlq", "queue", 10), equalTo(2));
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("first"));
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("second"));
+            assertThat(service.pull("dlq", 10), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldReuseSlotsOfDeletedMessages() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (FileQueueService service = new FileQueueService(storage, 2)) {
+            for (int i = 0; i < 5; i++) {
+                service.push("queue", "message " + i);
+                Message message = service.pull("queue", 10);
+                assertThat(message.getMessageBody(), equalTo("message " + i));
+                service.delete("queue", message.getReceiptHandle());
+            }
+            assertThat(Files.exists(storage.resolve("queue").resolve("4.msg")), equalTo(false));
+        }
+    }
+
+    @Test
+    public void shouldKeepMessageCountersInIndex() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (FileQueueService service = new FileQueueService(storage)) {
+            service.push("queue", "first");
+            service.push("queue", "second");
+            service.push("queue", "third");
+            service.push("queue", "delayed", 10, TimeUnit.SECONDS);
+            service.pull("queue", 10);
+            service.delete("queue", service.pull("queue", 10).getReceiptHandle());
+        }
+        try (FileQueueService service = new FileQueueService(storage)) {
+            QueueAttributes attributes = service.getQueueAttributes("queue");
+            assertThat(attributes.getVisibleMessages(), equalTo(1L));
+            assertThat(attributes.getInFlightMessages(), equalTo(1L));
+            assertThat(attributes.getDelayedMessages(), equalTo(1L));
+            assertThat(attributes.getOldestMessageAgeMillis(), greaterThanOrEqualTo(0L));
+        }
+    }
+
+    @Test
+    public void shouldIgnoreInvalidReceiptHandles() throws IOException {
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues"))) {
+            service.push("queue", "message");
+            Message message = service.pull("queue", 10);
+            service.delete("queue", "foreign");
+            service.changeVisibility("queue", "-1", 0);
+            BatchResult result = service.deleteBatch("queue", asList("foreign", message.getReceiptHandle()));
+            assertThat(result.getFailures().size(), equalTo(1));
+            assertThat(result.getFailures().get(0).getIndex(), equalTo(0));
+            assertThat(result.getFailures().get(0).getCode(), equalTo(FileQueueService.INVALID_RECEIPT_HANDLE));
+            assertThat(service.getQueueAttributes("queue"), equalTo(QueueAttributes.empty()));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectPushWhenQueueIsFull() throws IOException {
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues"), 2)) {
+            service.push("queue", "first");
+            service.push("queue", "second");
+            service.push("queue", "third");
+        }
+    }
+
+    @Test
+    public void shouldReportEntriesWhichDoNotFitIntoQueue() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (FileQueueService service = new FileQueueService(storage, 2)) {
+            service.push("queue", "first");
+            BatchResult result = service.pushBatch("queue", asList("second", "third", "fourth"));
+            assertThat(result.getFailures().stream().map(BatchResult.Failure::getIndex).collect(toList()),
+                    equalTo(asList(1, 2)));
+            assertThat(result.getFailures().get(0).getCode(), equalTo(FileQueueService.QUEUE_FULL));
+            try (Stream<Path> incoming = Files.list(storage.resolve(".incoming"))) {
+                assertThat(incoming.count(), equalTo(0L));
+            }
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("first"));
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("second"));
+        }
+    }
+
+    @Test
+    public void shouldNotCreateQueuesOnReads() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (FileQueueService service = new FileQueueService(storage)) {
+            assertThat(service.getQueueAttributes("queue"), equalTo(QueueAttributes.empty()));
+            assertThat(service.pull("queue", 10), nullValue());
+            assertThat(service.pullAny(asList("queue", "other"), 10), nullValue());
+            service.delete("queue", "0");
+            service.changeVisibility("queue", "0", 10);
+            assertThat(service.deleteBatch("queue", singletonList("0")).getFailures().isEmpty(), equalTo(true));
+            assertThat(Files.exists(storage.resolve("queue")), equalTo(false));
+            assertThat(Files.exists(storage.resolve("other")), equalTo(false));
+        }
+    }
+
+    @Test
+    public void shouldWakeUpConsumerWhenQueueIsCreatedByOtherInstance() throws Exception {
+        Path storage = Files.createTempDirectory("queues");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (FileQueueService consumer = new FileQueueService(storage);
+             FileQueueService producer = new FileQueueService(storage)) {
+            Future<Message> single = executor.submit(() -> consumer.pull("queue", 10, 5));
+            Future<Message> any = executor.submit(() -> consumer.pullAny(asList("other", "queue"), 10, 5));
+            TimeUnit.MILLISECONDS.sleep(200);
+            producer.pushBatch("queue", asList("first", "second"));
+            assertThat(single.get(3, TimeUnit.SECONDS), notNullValue());
+            assertThat(any.get(3, TimeUnit.SECONDS), notNullValue());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldDeliverMessagesPushedWithGroupCommit() throws Exception {
+        Durability durability = Durability.groupCommit(5, TimeUnit.MILLISECONDS);
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues"), durability)) {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Callable<Void>> pushes = IntStream.range(0, 40).mapToObj(i -> (Callable<Void>) () -> {
+                service.push("queue", "message " + i);
+                return null;
+            }).collect(toList());
+            for (Future<Void> push : executor.invokeAll(pushes)) {
+                push.get();
+            }
+            executor.shutdown();
+            assertThat(service.pullBatch("queue", 10, 100).size(), equalTo(40));
+        }
+    }
+
+    @Test
+    public void shouldReopenExistingStorage() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (FileQueueService service = new FileQueueService(storage)) {
+            service.push("queue", "first");
+            service.push("queue", "second");
+            service.pull("queue", 10);
+        }
+        try (FileQueueService service = new FileQueueService(storage)) {
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("second"));
+            assertThat(service.pull("queue", 10), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldDropMessageWhichBodyWasLostInCrash() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (FileQueueService service = new FileQueueService(storage)) {
+            service.push("queue", "first");
+            service.push("queue", "second");
+        }
+        Files.delete(storage.resolve("queue").resolve("0.msg"));
+        try (FileQueueService service = new FileQueueService(storage)) {
+            assertThat(service.pull("queue", 0).getMessageBody(), equalTo("second"));
+            assertThat(service.pull("queue", 0).getMessageBody(), equalTo("second"));
+        }
+    }
+
+    @Test
+    public void shouldRemoveIncomingFilesOfCrashedProducers() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        new FileQueueService(storage).close();
+        Path orphan = Files.createFile(storage.resolve(".incoming").resolve("orphan"));
+        Files.setLastModifiedTime(orphan, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+        new FileQueueService(storage).close();
+        assertThat(Files.exists(orphan), equalTo(false));
+    }
+
+    @Test
+    public void shouldShareQueueBetweenInstancesWithSameStorage() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (FileQueueService producer = new FileQueueService(storage);
+             FileQueueService consumer = new FileQueueService(storage)) {
+            producer.push("queue", "first");
+            producer.push("queue", "second");
+            Message first = consumer.pull("queue", 10);
+            assertThat(first.getMessageBody(), equalTo("first"));
+            producer.delete("queue", first.getReceiptHandle());
+            assertThat(producer.pull("queue", 10).getMessageBody(), equalTo("second"));
+            assertThat(consumer.pull("queue", 10), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldServeQueuesInTurns() throws IOException {
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues"))) {
+            service.pushBatch("first", asList("1", "2", "3"));
+            service.pushBatch("second", asList("1", "2", "3"));
+            List<String> queues = asList("first", "empty", "second");
+            List<String> served = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                served.add(service.pullAny(queues, 10).getQueueUrl());
+            }
+            assertThat(served, equalTo(asList("first", "second", "first", "second")));
+        }
+    }
+
+    /**
+     * Publishing the body wakes up consumers which check the index header without the lock,
+     * so the header should have the message before the body appears in the queue directory.
+     */
+    @Test
+    public void shouldAppendMessageToIndexBeforeBodyIsPublished() throws IOException {
+        List<QueueAttributes> published = new ArrayList<>();
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues")) {
+            @Override
+            void publish(Path incomingFile, Path messageFile) {
+                published.add(getQueueAttributes("queue"));
+                super.publish(incomingFile, messageFile);
+            }
+        }) {
+            service.push("queue", "message");
+            assertThat(published, equalTo(singletonList(new QueueAttributes(1, 0, 0, -1))));
+            assertThat(service.pullAny(asList("other", "queue"), 10).getMessageBody(), equalTo("message"));
+        }
+    }
+
+    @Test
+    public void shouldTakeSlotBackWhenBodyIsNotPublished() throws IOException {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues")) {
+            @Override
+            void publish(Path incomingFile, Path messageFile) {
+                if (failing.get()) {
+                    throw new IllegalStateException("Disk is full");
+                }
+                super.publish(incomingFile, messageFile);
+            }
+        }) {
+            try {
+                service.push("queue", "lost");
+                fail("Push should fail when the body is not published");
+            } catch (IllegalStateException e) {
+                assertThat(service.getQueueAttributes("queue"), equalTo(QueueAttributes.empty()));
+            }
+            failing.set(false);
+            service.push("queue", "message");
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("message"));
+            assertThat(service.pull("queue", 10), nullValue());
+        }
+    }
 }
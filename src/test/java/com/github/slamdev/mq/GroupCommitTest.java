@@ -0,0 +1,88 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class GroupCommitTest {
+
+    @Test
+    public void shouldForceConcurrentRequestsTogether() throws Exception {
+        GroupCommit groupCommit = new GroupCommit(TimeUnit.MILLISECONDS.toNanos(50));
+        AtomicInteger forces = new AtomicInteger();
+        List<Future<Object>> results = runConcurrently(16, () -> {
+            groupCommit.await(forces::incrementAndGet);
+            return null;
+        });
+        for (Future<Object> result : results) {
+            result.get(1, TimeUnit.SECONDS);
+        }
+        assertThat(forces.get(), lessThan(16));
+    }
+
+    @Test
+    public void shouldFailAllRequestsOfFailedForce() throws Exception {
+        GroupCommit groupCommit = new GroupCommit(TimeUnit.MILLISECONDS.toNanos(50));
+        AtomicInteger failures = new AtomicInteger();
+        List<Future<Object>> results = runConcurrently(4, () -> {
+            try {
+                groupCommit.await(() -> {
+                    throw new IllegalStateException("disk failure");
+                });
+            } catch (IllegalStateException e) {
+                failures.incrementAndGet();
+            }
+            return null;
+        });
+        for (Future<Object> result : results) {
+            result.get(1, TimeUnit.SECONDS);
+        }
+        assertThat(failures.get(), equalTo(4));
+    }
+
+    @Test
+    public void shouldFailRequestsOfEveryFailedForce() throws Exception {
+        GroupCommit groupCommit = new GroupCommit(0);
+        AtomicInteger succeeded = new AtomicInteger();
+        List<Future<Object>> results = runConcurrently(16, () -> {
+            for (int i = 0; i < 1000; i++) {
+                try {
+                    groupCommit.await(() -> {
+                        throw new IllegalStateException("disk failure");
+                    });
+                    succeeded.incrementAndGet();
+                } catch (IllegalStateException e) {
+                    // every force fails
+                }
+            }
+            return null;
+        });
+        for (Future<Object> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(succeeded.get(), equalTo(0));
+    }
+
+    private static List<Future<Object>> runConcurrently(int threads, Callable<Object> task)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            return executor.invokeAll(IntStream.range(0, threads).mapToObj(i -> task).collect(toList()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class InFlightTrackerTest {
+
+    @Test
+    public void shouldCountReceivedAndNotDeletedMessages() {
+        InFlightTracker tracker = new InFlightTracker();
+        assertThat(tracker.received("first", 10), equalTo(false));
+        assertThat(tracker.received("second", 10), equalTo(false));
+        tracker.deleted("first");
+        assertThat(tracker.count(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldDetectRedeliveryAfterVisibilityTimeout() {
+        InFlightTracker tracker = new InFlightTracker();
+        tracker.received("message", 0);
+        assertThat(tracker.count(), equalTo(0L));
+        assertThat(tracker.received("message", 10), equalTo(true));
+        assertThat(tracker.count(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldNotCountMessageMadeVisible() {
+        InFlightTracker tracker = new InFlightTracker();
+        tracker.received("message", 10);
+        tracker.visibilityChanged("message", 0);
+        assertThat(tracker.count(), equalTo(0L));
+    }
+
+    @Test
+    public void shouldKeepCapacityWhenMessagesAreNeverDeleted() {
+        InFlightTracker tracker = new InFlightTracker(64);
+        for (int i = 0; i < 10_000; i++) {
+            tracker.received("message " + i, 10);
+        }
+        assertThat(tracker.count() <= 64, equalTo(true));
+        assertThat(tracker.count() > 0, equalTo(true));
+    }
+}
@@ -1,9 +1,137 @@
 package com.github.slamdev.mq;
 
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
 public class InMemoryQueueServiceTest extends AbstractQueueServiceTest {
 
     @Override
     public QueueService createQueueService() {
         return new InMemoryQueueService();
     }
+
+    @Test
+    public void shouldCountReceivesOfMessage() {
+        QueueService service = createQueueService();
+        service.push("queue", "message");
+        assertThat(service.pull("queue", 0).getReceiveCount(), equalTo(1));
+        assertThat(service.pull("queue", 0).getReceiveCount(), equalTo(2));
+    }
+
+    @Test
+    public void shouldMoveMessageToDeadLetterQueueWhenMaxReceiveCountIsExceeded() {
+        QueueService service = createQueueService();
+        service.setRedrivePolicy("queue", new RedrivePolicy("dlq", 2));
+        service.push("queue", "message");
+        service.pull("queue", 0);
+        service.pull("queue", 0);
+        assertThat(service.pull("queue", 0), nullValue());
+        Message deadLetter = service.pull("dlq", 10);
+        assertThat(deadLetter.getMessageBody(), equalTo("message"));
+        assertThat(deadLetter.getReceiveCount(), equalTo(1));
+    }
+
+    @Test
+    public void shouldRedriveMessagesFromDeadLetterQueue() {
+        QueueService service = createQueueService();
+        service.push("dlq", "first");
+        service.push("dlq", "second");
+        service.push("dlq", "third");
+        assertThat(service.redrive("dlq", "queue", 2), equalTo(2));
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("first"));
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("second"));
+        assertThat(service.pull("queue", 10), nullValue());
+        assertThat(service.pull("dlq", 10).getMessageBody(), equalTo("third"));
+    }
+
+    @Test
+    public void shouldCountMessagesByState() throws InterruptedException {
+        QueueService service = new InMemoryQueueService(4);
+        service.push("queue", "first");
+        service.push("queue", "second");
+        service.push("queue", "third");
+        service.push("queue", "delayed", 10, TimeUnit.SECONDS);
+        Message received = service.pull("queue", 10);
+        service.delete("queue", service.pull("queue", 10).getReceiptHandle());
+        TimeUnit.MILLISECONDS.sleep(50);
+        QueueAttributes attributes = service.getQueueAttributes("queue");
+        assertThat(attributes.getVisibleMessages(), equalTo(1L));
+        assertThat(attributes.getInFlightMessages(), equalTo(1L));
+        assertThat(attributes.getDelayedMessages(), equalTo(1L));
+        assertThat(attributes.getOldestMessageAgeMillis(), greaterThanOrEqualTo(50L));
+        service.delete("queue", received.getReceiptHandle());
+        assertThat(service.getQueueAttributes("queue").getInFlightMessages(), equalTo(0L));
+    }
+
+    @Test
+    public void shouldRejectDelayBeyondTimingWheelWithoutTouchingQueue() {
+        QueueService service = createQueueService();
+        for (long delay : new long[]{Long.MAX_VALUE, TimeUnit.DAYS.toMillis(3 * 365)}) {
+            try {
+                service.push("queue", "message", delay, TimeUnit.MILLISECONDS);
+                fail("delay of " + delay + " ms should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertThat(service.getQueueAttributes("queue"), equalTo(QueueAttributes.empty()));
+        service.push("queue", "message", TimingWheel.MAX_DELAY - 1, TimeUnit.MILLISECONDS);
+        assertThat(service.pull("queue", 10), nullValue());
+        assertThat(service.getQueueAttributes("queue").getDelayedMessages(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldReturnEmptyAttributesOfUnknownQueue() {
+        assertThat(createQueueService().getQueueAttributes("queue"), equalTo(QueueAttributes.empty()));
+    }
+
+    @Test
+    public void shouldServeQueuesInTurns() {
+        QueueService service = createQueueService();
+        service.pushBatch("first", asList("1", "2", "3"));
+        service.pushBatch("second", asList("1", "2", "3"));
+        List<String> queues = asList("first", "never-pushed", "second");
+        List<String> served = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            served.add(service.pullAny(queues, 10).getQueueUrl());
+        }
+        assertThat(served, equalTo(asList("first", "second", "first", "second")));
+    }
+
+    @Test
+    public void shouldReportInvalidReceiptHandlesOfBatchDelete() {
+        QueueService service = new InMemoryQueueService(2);
+        service.pushBatch("queue", asList("first", "second", "third"));
+        List<String> handles = new ArrayList<>();
+        service.pullBatch("queue", 10, 10).forEach(message -> handles.add(message.getReceiptHandle()));
+        handles.add(1, "foreign");
+        handles.add("5-0");
+        BatchResult result = service.deleteBatch("queue", handles);
+        assertThat(result.getFailures().size(), equalTo(2));
+        assertThat(result.getFailures().get(0).getIndex(), equalTo(1));
+        assertThat(result.getFailures().get(1).getIndex(), equalTo(4));
+        assertThat(result.getFailures().get(1).getCode(), equalTo(FileQueueService.INVALID_RECEIPT_HANDLE));
+        assertThat(service.getQueueAttributes("queue"), equalTo(QueueAttributes.empty()));
+    }
+
+    @Test
+    public void shouldReleaseMessageOnceAfterVisibilityWasReset() throws InterruptedException {
+        QueueService service = createQueueService();
+        service.push("queue", "message");
+        Message message = service.pull("queue", 1);
+        service.changeVisibility("queue", message.getReceiptHandle(), 0);
+        assertThat(service.pull("queue", 1).getReceiveCount(), equalTo(2));
+        TimeUnit.MILLISECONDS.sleep(1100);
+        assertThat(service.pullBatch("queue", 10, 10).size(), equalTo(1));
+    }
 }
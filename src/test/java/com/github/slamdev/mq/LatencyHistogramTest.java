@@ -0,0 +1,35 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.number.IsCloseTo.closeTo;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldMapValuesToMonotonicBuckets() {
+        int previous = 0;
+        for (long value = 0; value < 1_000_000; value++) {
+            int index = LatencyHistogram.index(value);
+            assertThat(index >= previous, equalTo(true));
+            previous = index;
+        }
+        assertThat(LatencyHistogram.index(Long.MAX_VALUE), equalTo(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void shouldCalculatePercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), equalTo(10_000L));
+        assertThat((double) snapshot.getP50(), closeTo(5_000_000, 5_000_000 * 0.125));
+        assertThat((double) snapshot.getP99(), closeTo(9_900_000, 9_900_000 * 0.125));
+        assertThat(snapshot.getMax(), equalTo(10_000_000L));
+        assertThat(snapshot.getMean(), closeTo(5_000_500, 1));
+    }
+}
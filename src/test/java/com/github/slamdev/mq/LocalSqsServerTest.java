@@ -0,0 +1,124 @@
+package com.github.slamdev.mq;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class LocalSqsServerTest extends AbstractQueueServiceTest {
+
+    private final List<LocalSqsServer> servers = new ArrayList<>();
+
+    @Override
+    QueueService createQueueService() {
+        return new SqsQueueService(createClient(start(), 3));
+    }
+
+    @After
+    public void tearDown() {
+        servers.forEach(LocalSqsServer::close);
+    }
+
+    /**
+     * SQS delays messages by whole seconds, so the delay of the contract test is rounded up to a second.
+     */
+    @Override
+    @Test
+    public void shouldWaitForDelayedMessage() {
+        QueueService service = createQueueService();
+        service.push("queue", "message", 500, TimeUnit.MILLISECONDS);
+        Instant start = Instant.now();
+        Message message = service.pull("queue", 10, 5);
+        assertThat(message.getMessageBody(), equalTo("message"));
+        assertThat(Duration.between(start, Instant.now()).toMillis(), greaterThanOrEqualTo(500L));
+    }
+
+    @Test
+    public void shouldAcceptQueueUrlsOfServer() {
+        LocalSqsServer server = start();
+        QueueService service = new SqsQueueService(createClient(server, 3));
+        service.push(server.getQueueUrl("queue"), "message");
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("message"));
+    }
+
+    @Test
+    public void shouldMoveMessageToDeadLetterQueue() {
+        LocalSqsServer server = start();
+        QueueService service = new SqsQueueService(createClient(server, 3));
+        service.setRedrivePolicy("queue", new RedrivePolicy(server.getQueueUrl("dlq"), 1));
+        service.push("queue", "message");
+        assertThat(service.pull("queue", 0).getReceiveCount(), equalTo(1));
+        assertThat(service.pull("queue", 0), nullValue());
+        assertThat(service.pull("dlq", 0).getMessageBody(), equalTo("message"));
+    }
+
+    @Test
+    public void shouldReturnApproximateNumbersOfMessages() {
+        SqsQueueService service = new SqsQueueService(createClient(start(), 3));
+        service.setAttributesCacheTime(0, TimeUnit.SECONDS);
+        service.push("queue", "first");
+        service.push("queue", "second");
+        service.pull("queue", 10);
+        assertThat(service.getQueueAttributes("queue"), equalTo(new QueueAttributes(1, 1, 0, -1)));
+    }
+
+    @Test
+    public void shouldDelayRequests() {
+        LocalSqsServer server = start();
+        QueueService service = new SqsQueueService(createClient(server, 3));
+        server.setLatency(200, TimeUnit.MILLISECONDS);
+        Instant start = Instant.now();
+        service.pushBatch("queue", asList("first", "second"));
+        assertThat(Duration.between(start, Instant.now()).toMillis(), greaterThanOrEqualTo(200L));
+    }
+
+    @Test
+    public void shouldThrottleRequestsAboveRateLimit() {
+        LocalSqsServer server = start();
+        QueueService service = new SqsQueueService(createClient(server, 0));
+        server.setRequestRateLimit(5);
+        try {
+            for (int i = 0; i < 10; i++) {
+                service.push("queue", "message");
+            }
+            fail("Requests above the rate limit should be throttled");
+        } catch (AmazonServiceException e) {
+            assertThat(e.getErrorCode(), equalTo("Throttling"));
+        }
+    }
+
+    private LocalSqsServer start() {
+        LocalSqsServer server = new LocalSqsServer(new InMemoryQueueService(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        servers.add(server);
+        return server;
+    }
+
+    private static AmazonSQSClient createClient(LocalSqsServer server, int maxErrorRetry) {
+        return (AmazonSQSClient) AmazonSQSClientBuilder.standard()
+                .withEndpointConfiguration(new EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(maxErrorRetry))
+                .build();
+    }
+}
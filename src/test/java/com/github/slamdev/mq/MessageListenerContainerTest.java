@@ -0,0 +1,128 @@
+package com.github.slamdev.mq;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class MessageListenerContainerTest {
+
+    private QueueService service;
+
+    private MessageListenerContainer container;
+
+    @Before
+    public void setUp() {
+        service = new InMemoryQueueService();
+    }
+
+    @After
+    public void tearDown() {
+        container.close();
+    }
+
+    @Test
+    public void shouldDeleteMessagesAfterSuccessfulHandling() throws InterruptedException {
+        List<String> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        container = new MessageListenerContainer(service, "queue", message -> {
+            handled.add(message.getMessageBody());
+            latch.countDown();
+        }, 2, 1, 1);
+        service.pushBatch("queue", asList("first", "second", "third"));
+        container.start();
+        assertThat(latch.await(2, TimeUnit.SECONDS), equalTo(true));
+        assertThat(container.stop(1, TimeUnit.SECONDS), equalTo(true));
+        assertThat(handled, containsInAnyOrder("first", "second", "third"));
+        TimeUnit.MILLISECONDS.sleep(1100);
+        assertThat(service.pull("queue", 0), nullValue());
+    }
+
+    @Test
+    public void shouldExtendVisibilityWhileHandlerIsRunning() throws InterruptedException {
+        List<String> handled = new CopyOnWriteArrayList<>();
+        container = new MessageListenerContainer(service, "queue", message -> {
+            handled.add(message.getMessageBody());
+            TimeUnit.MILLISECONDS.sleep(2500);
+        }, 2, 1, 1);
+        service.push("queue", "message");
+        container.start();
+        TimeUnit.MILLISECONDS.sleep(2000);
+        assertThat(handled, equalTo(asList("message")));
+    }
+
+    @Test
+    public void shouldRedeliverMessageWhenHandlerFailed() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(2);
+        container = new MessageListenerContainer(service, "queue", message -> {
+            latch.countDown();
+            throw new IllegalStateException("failure");
+        }, 1, 1, 1);
+        service.push("queue", "message");
+        container.start();
+        assertThat(latch.await(3, TimeUnit.SECONDS), equalTo(true));
+    }
+
+    @Test
+    public void shouldWaitForRunningHandlersOnStop() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        container = new MessageListenerContainer(service, "queue", message -> {
+            started.countDown();
+            TimeUnit.MILLISECONDS.sleep(500);
+            handled.add(message.getMessageBody());
+        }, 1, 1, 1);
+        service.push("queue", "message");
+        container.start();
+        started.await(1, TimeUnit.SECONDS);
+        assertThat(container.stop(2, TimeUnit.SECONDS), equalTo(true));
+        assertThat(handled, equalTo(asList("message")));
+    }
+
+    @Test
+    public void shouldStopWithinTimeoutWhenPullIgnoresInterrupt() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        QueueService slowService = new InMemoryQueueService() {
+            @Override
+            public List<Message> pullBatch(String queueUrl, int visibilityTimeout, int maxMessages,
+                                           int waitTimeSeconds) {
+                List<Message> messages = super.pullBatch(queueUrl, visibilityTimeout, maxMessages);
+                if (messages.isEmpty()) {
+                    Uninterruptibles.sleepUninterruptibly(2, TimeUnit.SECONDS);
+                }
+                return messages;
+            }
+        };
+        container = new MessageListenerContainer(slowService, "queue", message -> {
+            started.countDown();
+            TimeUnit.SECONDS.sleep(10);
+        }, 2, 1, 1);
+        slowService.push("queue", "message");
+        container.start();
+        started.await(1, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        assertThat(container.stop(500, TimeUnit.MILLISECONDS), equalTo(false));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(800L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectStartAfterStop() {
+        container = new MessageListenerContainer(service, "queue", message -> {
+        }, 1, 1, 1);
+        container.start();
+        container.stop(1, TimeUnit.SECONDS);
+        container.start();
+    }
+}
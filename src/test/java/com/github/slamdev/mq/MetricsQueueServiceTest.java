@@ -0,0 +1,65 @@
+package com.github.slamdev.mq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+public class MetricsQueueServiceTest {
+
+    private MetricsQueueService service;
+
+    @Before
+    public void setUp() {
+        service = new MetricsQueueService(new InMemoryQueueService(), "test");
+    }
+
+    @After
+    public void tearDown() {
+        service.close();
+    }
+
+    @Test
+    public void shouldCountOperations() {
+        service.pushBatch("queue", asList("first", "second"));
+        Message message = service.pull("queue", 10);
+        service.pull("queue", 10);
+        service.pull("queue", 10);
+        service.delete("queue", message.getReceiptHandle());
+        QueueMetrics metrics = service.getMetrics("queue");
+        assertThat(metrics.getPushCount(), equalTo(2L));
+        assertThat(metrics.getPullHitCount(), equalTo(2L));
+        assertThat(metrics.getPullMissCount(), equalTo(1L));
+        assertThat(metrics.getDeleteCount(), equalTo(1L));
+        assertThat(metrics.getInFlightCount(), equalTo(1L));
+        assertThat(metrics.getApproximateDepth(), equalTo(1L));
+        assertThat(metrics.getPullLatency().getCount(), equalTo(3L));
+    }
+
+    @Test
+    public void shouldCountRedeliveries() {
+        service.push("queue", "message");
+        service.pull("queue", 0);
+        service.pull("queue", 0);
+        assertThat(service.getMetrics("queue").getRedeliveryCount(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldExposeMetricsThroughJmx() throws Exception {
+        service.push("queue", "message");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.github.slamdev.mq:type=QueueMetrics,service=\"test\",queue=\"queue\"");
+        assertThat(server.getAttribute(name, "PushCount"), equalTo(1L));
+        CompositeData latency = (CompositeData) server.getAttribute(name, "PushLatency");
+        assertThat((Long) latency.get("max"), greaterThan(0L));
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.nCopies;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PriorityQueueServiceTest extends AbstractQueueServiceTest {
+
+    private final InMemoryQueueService delegate = new InMemoryQueueService();
+
+    @Override
+    QueueService createQueueService() {
+        return new PriorityQueueService(new InMemoryQueueService(), 3, 1);
+    }
+
+    @Test
+    public void shouldPullUrgentMessageBeforeBacklog() {
+        PriorityQueueService service = new PriorityQueueService(delegate, 3, 1);
+        service.pushBatch("queue", nCopies(10, "bulk"));
+        service.push("queue", "urgent", 0);
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("urgent"));
+        assertThat(delegate.pull("queue-priority-0", 10), nullValue());
+        assertThat(delegate.pull("queue", 10).getMessageBody(), equalTo("bulk"));
+    }
+
+    @Test
+    public void shouldShareMessagesByWeightsWithoutStarvingLowPriority() {
+        PriorityQueueService service = new PriorityQueueService(delegate, 3, 1);
+        service.pushBatch("queue", nCopies(100, "high"), 0);
+        service.pushBatch("queue", nCopies(100, "low"), 1);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            bodies.add(service.pull("queue", 10).getMessageBody());
+        }
+        assertThat(bodies.stream().filter("low"::equals).count(), equalTo(2L));
+        List<Message> batch = service.pullBatch("queue", 10, 8);
+        assertThat(batch.stream().filter(message -> message.getMessageBody().equals("low")).count(), equalTo(2L));
+    }
+
+    @Test
+    public void shouldGiveShareOfEmptyLaneToOthers() {
+        PriorityQueueService service = new PriorityQueueService(delegate, 1, 1, 1);
+        service.pushBatch("queue", asList("first", "second"), 1);
+        service.push("queue", "third");
+        List<Message> messages = service.pullBatch("queue", 10, 10);
+        assertThat(messages.stream().map(Message::getMessageBody).collect(toList()),
+                equalTo(asList("first", "second", "third")));
+    }
+
+    @Test
+    public void shouldDeleteMessagesOfDifferentLanes() {
+        PriorityQueueService service = new PriorityQueueService(delegate, 3, 1);
+        service.push("queue", "high", 0);
+        service.push("queue", "low", 1);
+        List<Message> messages = service.pullBatch("queue", 0, 2);
+        BatchResult result = service.deleteBatch("queue", messages.stream()
+                .map(Message::getReceiptHandle).collect(toList()));
+        assertThat(result, equalTo(BatchResult.successful()));
+        assertThat(service.pull("queue", 0), nullValue());
+    }
+
+    @Test
+    public void shouldChangeVisibilityOfLaneMessage() {
+        PriorityQueueService service = new PriorityQueueService(delegate, 3, 1);
+        service.push("queue", "high", 0);
+        Message message = service.pull("queue", 10);
+        service.changeVisibility("queue", message.getReceiptHandle(), 0);
+        assertThat(service.pull("queue", 10).getReceiveCount(), equalTo(2));
+    }
+
+    @Test
+    public void shouldSumAttributesOfLanes() {
+        PriorityQueueService service = new PriorityQueueService(delegate, 3, 1);
+        service.push("queue", "high", 0);
+        service.push("queue", "low", 1);
+        service.pull("queue", 10);
+        QueueAttributes attributes = service.getQueueAttributes("queue");
+        assertThat(attributes.getVisibleMessages(), equalTo(1L));
+        assertThat(attributes.getInFlightMessages(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldKeepLanesInFiles() throws IOException {
+        PriorityQueueService service = new PriorityQueueService(
+                new FileQueueService(Files.createTempDirectory("queues")), 3, 1);
+        service.push("queue", "low");
+        service.push("queue", "high", 0);
+        Message message = service.pull("queue", 10);
+        assertThat(message.getMessageBody(), equalTo("high"));
+        service.delete("queue", message.getReceiptHandle());
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("low"));
+        assertThat(service.pull("queue", 10), nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownPriority() {
+        new PriorityQueueService(delegate, 3, 1).push("queue", "message", 2);
+    }
+
+    @Test
+    public void shouldWaitForMessageInAnyLane() {
+        PriorityQueueService service = new PriorityQueueService(delegate, 3, 1);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(() -> service.push("queue", "urgent", 0), 200, TimeUnit.MILLISECONDS);
+            Message message = service.pull("queue", 10, 5);
+            assertThat(message.getMessageBody(), equalTo("urgent"));
+            service.delete("queue", message.getReceiptHandle());
+            assertThat(delegate.getQueueAttributes("queue-priority-0"), equalTo(QueueAttributes.empty()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
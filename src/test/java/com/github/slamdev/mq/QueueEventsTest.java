@@ -0,0 +1,64 @@
+package com.github.slamdev.mq;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class QueueEventsTest {
+
+    @Test
+    public void shouldRecordOperationsOfInMemoryQueue() throws Exception {
+        List<RecordedEvent> events = record(new InMemoryQueueService());
+        assertThat(names(events), equalTo(asNames("Push", "Pull", "Pull", "Delete")));
+        assertThat(events.get(0).getLong("size"), equalTo(7L));
+        assertThat(events.get(1).getBoolean("hit"), equalTo(true));
+        assertThat(events.get(2).getBoolean("hit"), equalTo(false));
+        assertThat(events.get(3).getString("queue"), equalTo("queue"));
+    }
+
+    @Test
+    public void shouldRecordOperationsOfFileQueue() throws Exception {
+        try (FileQueueService service = new FileQueueService(Files.createTempDirectory("queues"))) {
+            List<RecordedEvent> events = record(service);
+            assertThat(names(events), equalTo(asNames("Push", "Pull", "Pull", "Delete")));
+            assertThat(events.get(1).getLong("size"), equalTo(7L));
+        }
+    }
+
+    private static List<RecordedEvent> record(QueueService service) throws Exception {
+        Path file = Files.createTempFile("queue", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : asNames("Push", "Pull", "Delete")) {
+                recording.enable(name).withoutThreshold();
+            }
+            recording.start();
+            service.push("queue", "message");
+            Message message = service.pull("queue", 10);
+            service.pull("queue", 10);
+            service.delete("queue", message.getReceiptHandle());
+            recording.stop();
+            recording.dump(file);
+        }
+        return RecordingFile.readAllEvents(file).stream()
+                .sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+                .collect(toList());
+    }
+
+    private static List<String> names(List<RecordedEvent> events) {
+        return events.stream().map(event -> event.getEventType().getName()).collect(toList());
+    }
+
+    private static List<String> asNames(String... names) {
+        return Arrays.stream(names).map(name -> "com.github.slamdev.mq." + name).collect(toList());
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SegmentedFileQueueServiceTest extends AbstractQueueServiceTest {
+
+    @Override
+    public QueueService createQueueService() {
+        return new SegmentedFileQueueService();
+    }
+
+    @Test
+    public void shouldRemoveFullyDeletedSegments() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (SegmentedFileQueueService service = new SegmentedFileQueueService(storage, 2)) {
+            for (int i = 0; i < 5; i++) {
+                service.push("queue", "message " + i);
+            }
+            for (int i = 0; i < 4; i++) {
+                service.delete("queue", service.pull("queue", 10).getReceiptHandle());
+            }
+            service.compact();
+            assertThat(Files.exists(storage.resolve("queue").resolve(String.format("%020d.log", 0))), equalTo(false));
+            assertThat(Files.exists(storage.resolve("queue").resolve(String.format("%020d.log", 1))), equalTo(false));
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("message 4"));
+        }
+    }
+
+    @Test
+    public void shouldShareQueueBetweenInstancesWithSameStorage() throws IOException {
+        Path storage = Files.createTempDirectory("queues");
+        try (SegmentedFileQueueService producer = new SegmentedFileQueueService(storage, 2);
+             SegmentedFileQueueService consumer = new SegmentedFileQueueService(storage, 2)) {
+            producer.push("queue", "first");
+            producer.push("queue", "second");
+            producer.push("queue", "third");
+            Message first = consumer.pull("queue", 10);
+            assertThat(first.getMessageBody(), equalTo("first"));
+            assertThat(producer.pull("queue", 10).getMessageBody(), equalTo("second"));
+            producer.delete("queue", first.getReceiptHandle());
+            assertThat(consumer.pull("queue", 10).getMessageBody(), equalTo("third"));
+            assertThat(producer.pull("queue", 10), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldReadBodiesAcrossLogChunks() throws IOException {
+        try (SegmentedFileQueueService service = new SegmentedFileQueueService(Files.createTempDirectory("queues"))) {
+            List<ByteBuffer> bodies = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                byte[] body = new byte[SegmentedFileQueueService.LOG_CHUNK_SIZE * 3 / 4];
+                Arrays.fill(body, (byte) i);
+                bodies.add(ByteBuffer.wrap(body));
+            }
+            service.pushBinaryBatch("queue", bodies);
+            for (ByteBuffer body : bodies) {
+                assertThat(service.pull("queue", 10).getBody(), equalTo(body));
+            }
+        }
+    }
+
+    @Test
+    public void shouldDeliverNewMessagesBehindMessagesInFlight() throws IOException {
+        try (SegmentedFileQueueService service = new SegmentedFileQueueService(Files.createTempDirectory("queues"), 2)) {
+            service.pushBatch("queue", asList("first", "second", "third"));
+            Message first = service.pull("queue", 0);
+            assertThat(service.pullBatch("queue", 10, 2).stream().map(Message::getMessageBody).collect(toList()),
+                    equalTo(asList("first", "second")));
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("third"));
+            service.changeVisibility("queue", first.getReceiptHandle(), 0);
+            assertThat(service.pull("queue", 10).getMessageBody(), equalTo("first"));
+            assertThat(service.pull("queue", 10), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldIgnoreInvalidReceiptHandles() throws IOException {
+        try (SegmentedFileQueueService service = new SegmentedFileQueueService(Files.createTempDirectory("queues"))) {
+            service.push("queue", "message");
+            Message message = service.pull("queue", 10);
+            service.delete("queue", "foreign");
+            service.delete("queue", "0--1");
+            service.changeVisibility("queue", "42", 0);
+            BatchResult result = service.deleteBatch("queue", asList("foreign", message.getReceiptHandle(), "x-1"));
+            assertThat(result.getFailures().stream().map(BatchResult.Failure::getIndex).collect(toList()),
+                    equalTo(asList(0, 2)));
+            assertThat(result.getFailures().get(0).getCode(), equalTo(FileQueueService.INVALID_RECEIPT_HANDLE));
+            service.changeVisibility("queue", message.getReceiptHandle(), 0);
+            assertThat(service.pull("queue", 10), nullValue());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ShardedInMemoryQueueServiceTest extends AbstractQueueServiceTest {
+
+    @Override
+    public QueueService createQueueService() {
+        return new InMemoryQueueService(4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNoShards() {
+        new InMemoryQueueService(0);
+    }
+
+    @Test
+    public void shouldStealMessagesPushedByOtherThreads() throws Exception {
+        QueueService service = createQueueService();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<?>[] pushes = new Future<?>[4];
+        for (int i = 0; i < pushes.length; i++) {
+            int producer = i;
+            pushes[i] = executor.submit(() -> service.push("queue", "message " + producer));
+        }
+        for (Future<?> push : pushes) {
+            push.get();
+        }
+        executor.shutdown();
+        Set<String> bodies = new HashSet<>();
+        for (int i = 0; i < pushes.length; i++) {
+            bodies.add(service.pull("queue", 10).getMessageBody());
+        }
+        assertThat(bodies.size(), equalTo(4));
+        assertThat(service.pull("queue", 10), nullValue());
+    }
+}
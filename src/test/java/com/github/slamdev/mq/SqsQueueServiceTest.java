@@ -1,17 +1,36 @@
 package com.github.slamdev.mq;
 
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.contains;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
 
@@ -30,6 +49,12 @@ public class SqsQueueServiceTest {
         verify(sqsClient).deleteMessage("queue", "id");
     }
 
+    @Test
+    public void shouldCallSqsWhenChangingVisibility() {
+        service.changeVisibility("queue", "id", 30);
+        verify(sqsClient).changeMessageVisibility("queue", "id", 30);
+    }
+
     @Test
     public void shouldCallSqsWhenPushingMessage() {
         service.push("queue", "message");
@@ -44,6 +69,8 @@ public class SqsQueueServiceTest {
         ReceiveMessageRequest request = new ReceiveMessageRequest();
         request.setQueueUrl("queue");
         request.setVisibilityTimeout(10);
+        request.setMessageAttributeNames(singletonList(SqsQueueService.CONTENT_ENCODING));
+        request.setAttributeNames(singletonList(SqsQueueService.RECEIVE_COUNT));
         verify(sqsClient).receiveMessage(request);
     }
 
@@ -60,6 +87,125 @@ public class SqsQueueServiceTest {
         assertThat(message.getReceiptHandle(), equalTo("id"));
     }
 
+    @Test
+    public void shouldSplitPushBatchIntoSqsBatchRequests() {
+        when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(new SendMessageBatchResult());
+        List<String> bodies = IntStream.range(0, 15).mapToObj(i -> "message " + i).collect(toList());
+        service.pushBatch("queue", bodies);
+        ArgumentCaptor<SendMessageBatchRequest> captor = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(sqsClient, times(2)).sendMessageBatch(captor.capture());
+        assertThat(captor.getAllValues().get(0).getEntries().size(), equalTo(10));
+        assertThat(captor.getAllValues().get(1).getEntries().get(4),
+                equalTo(new SendMessageBatchRequestEntry("14", "message 14")));
+    }
+
+    @Test
+    public void shouldReportPartialFailuresOfDeleteBatch() {
+        DeleteMessageBatchResult result = new DeleteMessageBatchResult()
+                .withFailed(new BatchResultErrorEntry().withId("1").withCode("ReceiptHandleIsInvalid"));
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(result);
+        BatchResult batchResult = service.deleteBatch("queue", asList("first", "second"));
+        assertThat(batchResult.getFailures(), contains(new BatchResult.Failure(1, "ReceiptHandleIsInvalid", null)));
+    }
+
+    @Test
+    public void shouldRequestMaxNumberOfMessagesWhenPullingBatch() {
+        ReceiveMessageResult result = new ReceiveMessageResult();
+        com.amazonaws.services.sqs.model.Message sqsMessage = new com.amazonaws.services.sqs.model.Message();
+        sqsMessage.setBody("message");
+        sqsMessage.setReceiptHandle("id");
+        result.setMessages(singletonList(sqsMessage));
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(result);
+        List<Message> messages = service.pullBatch("queue", 10, 5);
+        ReceiveMessageRequest request = new ReceiveMessageRequest();
+        request.setQueueUrl("queue");
+        request.setVisibilityTimeout(10);
+        request.setMessageAttributeNames(singletonList(SqsQueueService.CONTENT_ENCODING));
+        request.setAttributeNames(singletonList(SqsQueueService.RECEIVE_COUNT));
+        request.setMaxNumberOfMessages(5);
+        verify(sqsClient).receiveMessage(request);
+        assertThat(messages, contains(new Message("message", "id")));
+    }
+
+    @Test
+    public void shouldUseLongPollingWhenPullingWithWaitTime() {
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult());
+        Message message = service.pull("queue", 10, 30);
+        ReceiveMessageRequest request = new ReceiveMessageRequest();
+        request.setQueueUrl("queue");
+        request.setVisibilityTimeout(10);
+        request.setMessageAttributeNames(singletonList(SqsQueueService.CONTENT_ENCODING));
+        request.setAttributeNames(singletonList(SqsQueueService.RECEIVE_COUNT));
+        request.setMaxNumberOfMessages(1);
+        request.setWaitTimeSeconds(20);
+        verify(sqsClient).receiveMessage(request);
+        assertThat(message, nullValue());
+    }
+
+    @Test
+    public void shouldSendBinaryBodyInBase64() {
+        service.push("queue", ByteBuffer.wrap(new byte[]{0, -1, 2}));
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqsClient).sendMessage(captor.capture());
+        assertThat(captor.getValue().getMessageBody(), equalTo("AP8C"));
+        assertThat(captor.getValue().getMessageAttributes().get(SqsQueueService.CONTENT_ENCODING).getStringValue(),
+                equalTo("base64"));
+    }
+
+    @Test
+    public void shouldSendDelayRoundedUpToSeconds() {
+        service.push("queue", "message", 1500, TimeUnit.MILLISECONDS);
+        verify(sqsClient).sendMessage(new SendMessageRequest("queue", "message").withDelaySeconds(2));
+    }
+
+    @Test
+    public void shouldDecodeBinaryBodyFromBase64() {
+        ReceiveMessageResult result = new ReceiveMessageResult();
+        com.amazonaws.services.sqs.model.Message sqsMessage = new com.amazonaws.services.sqs.model.Message()
+                .withBody("AP8C")
+                .withReceiptHandle("id")
+                .addMessageAttributesEntry(SqsQueueService.CONTENT_ENCODING,
+                        new MessageAttributeValue().withDataType("String").withStringValue("base64"));
+        result.setMessages(singletonList(sqsMessage));
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(result);
+        Message message = service.pull("queue", 10);
+        assertThat(message.getBody(), equalTo(ByteBuffer.wrap(new byte[]{0, -1, 2})));
+    }
+
+    @Test
+    public void shouldReadApproximateReceiveCount() {
+        ReceiveMessageResult result = new ReceiveMessageResult();
+        com.amazonaws.services.sqs.model.Message sqsMessage = new com.amazonaws.services.sqs.model.Message()
+                .withBody("message")
+                .withReceiptHandle("id")
+                .addAttributesEntry(SqsQueueService.RECEIVE_COUNT, "3");
+        result.setMessages(singletonList(sqsMessage));
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(result);
+        assertThat(service.pull("queue", 10).getReceiveCount(), equalTo(3));
+    }
+
+    @Test
+    public void shouldSetRedrivePolicyWithArnOfDeadLetterQueue() {
+        when(sqsClient.getQueueAttributes("dlq", singletonList("QueueArn")))
+                .thenReturn(new GetQueueAttributesResult().addAttributesEntry("QueueArn", "arn:aws:sqs:dlq"));
+        service.setRedrivePolicy("queue", new RedrivePolicy("dlq", 5));
+        verify(sqsClient).setQueueAttributes("queue", singletonMap("RedrivePolicy",
+                "{\"deadLetterTargetArn\":\"arn:aws:sqs:dlq\",\"maxReceiveCount\":\"5\"}"));
+    }
+
+    @Test
+    public void shouldCacheQueueAttributes() {
+        when(sqsClient.getQueueAttributes("queue", asList("ApproximateNumberOfMessages",
+                "ApproximateNumberOfMessagesNotVisible", "ApproximateNumberOfMessagesDelayed")))
+                .thenReturn(new GetQueueAttributesResult()
+                        .addAttributesEntry("ApproximateNumberOfMessages", "3")
+                        .addAttributesEntry("ApproximateNumberOfMessagesNotVisible", "2")
+                        .addAttributesEntry("ApproximateNumberOfMessagesDelayed", "1"));
+        assertThat(service.getQueueAttributes("queue"), equalTo(new QueueAttributes(3, 2, 1, -1)));
+        assertThat(service.getQueueAttributes("queue"), equalTo(new QueueAttributes(3, 2, 1, -1)));
+        verify(sqsClient, times(1)).getQueueAttributes(eq("queue"), anyList());
+    }
+
     @Test
     public void shouldReturnNullWhenNoMessagesInSqs() {
         ReceiveMessageResult result = new ReceiveMessageResult();
@@ -0,0 +1,116 @@
+package com.github.slamdev.mq;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TcpQueueServiceTest extends AbstractQueueServiceTest {
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @Override
+    QueueService createQueueService() {
+        QueueServer server = start(new QueueServer(new InMemoryQueueService(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+        return start(new TcpQueueService(server.getPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    public void shouldShareQueuesBetweenClients() {
+        QueueServer server = start(new QueueServer(0));
+        TcpQueueService producer = start(new TcpQueueService(server.getPort()));
+        TcpQueueService consumer = start(new TcpQueueService(server.getPort()));
+        producer.push("queue", "message");
+        Message message = consumer.pull("queue", 10);
+        assertThat(message.getMessageBody(), equalTo("message"));
+        consumer.delete("queue", message.getReceiptHandle());
+    }
+
+    @Test
+    public void shouldPipelineRequestsOfConcurrentThreads() throws Exception {
+        QueueServer server = start(new QueueServer(0));
+        TcpQueueService service = start(new TcpQueueService(server.getPort()));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // a long poll must not block requests of other threads sharing the connection
+            Future<Message> waiting = executor.submit(() -> service.pull("empty", 10, 5));
+            Set<String> received = ConcurrentHashMap.newKeySet();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int offset = thread * 250;
+                futures.add(executor.submit(() -> IntStream.range(offset, offset + 250).forEach(i -> {
+                    service.push("queue", String.valueOf(i));
+                    Message message = service.pull("queue", 10);
+                    received.add(message.getMessageBody());
+                    service.delete("queue", message.getReceiptHandle());
+                })));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertThat(waiting.isDone(), equalTo(false));
+            assertThat(received, equalTo(IntStream.range(0, 1000).mapToObj(String::valueOf).collect(toSet())));
+            service.push("empty", "message");
+            assertThat(waiting.get().getMessageBody(), equalTo("message"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldRethrowUnsupportedOperationOfServerEngine() {
+        QueueServer server = start(new QueueServer(new BoundedInMemoryQueueService(10),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+        start(new TcpQueueService(server.getPort())).setRedrivePolicy("queue", new RedrivePolicy("dlq", 1));
+    }
+
+    @Test
+    public void shouldAnswerTruncatedRequestWithErrorAndKeepServing() throws Exception {
+        QueueServer server = start(new QueueServer(0));
+        try (SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()))) {
+            ByteBuffer request = ByteBuffer.allocate(Integer.BYTES * 2 + 1);
+            request.putInt(Integer.BYTES + 1).putInt(7).put(QueueProtocol.PULL);
+            ((Buffer) request).flip();
+            channel.write(request);
+            ByteBuffer response = ByteBuffer.allocate(Integer.BYTES * 2 + 1);
+            while (response.hasRemaining() && channel.read(response) >= 0) {
+                // reading the frame length, the request id and the status
+            }
+            assertThat(response.getInt(Integer.BYTES), equalTo(7));
+            assertThat(response.get(Integer.BYTES * 2), equalTo(QueueProtocol.ERROR));
+        }
+        TcpQueueService service = start(new TcpQueueService(server.getPort()));
+        service.push("queue", "message");
+        assertThat(service.pull("queue", 10).getMessageBody(), equalTo("message"));
+    }
+
+    private <T extends AutoCloseable> T start(T resource) {
+        resources.add(resource);
+        return resource;
+    }
+}
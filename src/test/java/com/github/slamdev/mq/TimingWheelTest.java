@@ -0,0 +1,61 @@
+package com.github.slamdev.mq;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TimingWheelTest {
+
+    @Test
+    public void shouldExpireEveryEntryAtItsTick() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1000);
+        Random random = new Random(42);
+        List<Long> ticks = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            long tick = 1001 + (long) (random.nextDouble() * random.nextDouble() * 10_000_000);
+            ticks.add(tick);
+            wheel.add(tick, tick);
+        }
+        long now = 1000;
+        while (wheel.size() > 0) {
+            long next = now + 1 + random.nextInt(5000);
+            long previous = now;
+            List<Long> expired = new ArrayList<>();
+            wheel.advance(next, expired::add);
+            for (long tick : expired) {
+                assertThat(tick > previous && tick <= next, equalTo(true));
+            }
+            ticks.removeAll(expired);
+            now = next;
+        }
+        assertThat(ticks.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void shouldReturnFalseForPassedTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(100);
+        assertThat(wheel.add(100, "now"), equalTo(false));
+        assertThat(wheel.add(101, "next"), equalTo(true));
+        List<String> expired = new ArrayList<>();
+        wheel.advance(101, expired::add);
+        assertThat(expired, equalTo(asList("next")));
+    }
+
+    @Test
+    public void shouldExpireEntryOfNextRoundOfTheWheel() {
+        long current = TimingWheel.MAX_DELAY - 10;
+        TimingWheel<String> wheel = new TimingWheel<>(current);
+        wheel.add(current + TimingWheel.MAX_DELAY, "far");
+        List<String> expired = new ArrayList<>();
+        wheel.advance(current + TimingWheel.MAX_DELAY - 1, expired::add);
+        assertThat(expired.isEmpty(), equalTo(true));
+        wheel.advance(current + TimingWheel.MAX_DELAY, expired::add);
+        assertThat(expired, equalTo(asList("far")));
+    }
+}